@@ -15,20 +15,19 @@
  */
 package org.vaadin.addons.lazyquerycontainer;
 
-import java.beans.BeanInfo;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
 import com.vaadin.data.Item;
 import com.vaadin.data.util.BeanItem;
-import com.vaadin.data.util.ObjectProperty;
 
 /**
  * Simple generics bean query implementation which dynamically injects missing
- * query definition properties to CompositeItems.
+ * query definition properties to CompositeItems. Container filters are not
+ * applied by this class. Subclasses which apply them read the filters from
+ * the query definition and declare the supported filter types with
+ * LazyQueryDefinition.addSupportedFilterType.
  * 
  * @author Tommi S.E. Laukkanen
  * @param <T> Bean class.
@@ -42,6 +41,12 @@ public abstract class AbstractBeanQuery<T extends Object> implements Query {
 	private Object[] sortPropertyIds;
 	/** The ascending or descending state of sort properties. */
 	private boolean[] sortStates;
+	/** The resolved default values of new beans or null if not resolved yet. */
+	private transient BeanMetadata.DefaultValues defaultValues;
+	/** The default properties shared by composite items or null if not resolved yet. */
+	private transient DefaultPropertyItem.Defaults defaultProperties;
+	/** The bean class the default properties were resolved for. */
+	private transient Class<?> defaultPropertiesBeanClass;
 
 	/**
 	 * Default constructor for serialization.
@@ -101,15 +106,11 @@ public abstract class AbstractBeanQuery<T extends Object> implements Query {
 	public final Item constructItem() {
 		try {
 			T bean = constructBean();
-			BeanInfo info = Introspector.getBeanInfo(bean.getClass());
-			for (PropertyDescriptor pd : info.getPropertyDescriptors()) {
-				for (Object propertyId : queryDefinition.getPropertyIds()) {
-					if (pd.getName().equals(propertyId)) {
-						pd.getWriteMethod().invoke(bean,
-								queryDefinition.getPropertyDefaultValue(propertyId));
-					}
-				}
+			if (defaultValues == null || defaultValues.getBeanClass() != bean.getClass()) {
+				defaultValues = BeanMetadata.getBeanMetadata(bean.getClass())
+						.getDefaultValues(queryDefinition);
 			}
+			defaultValues.apply(bean);
 			return toItem(bean);
 		} catch (Exception e) {
 			throw new RuntimeException(
@@ -190,29 +191,27 @@ public abstract class AbstractBeanQuery<T extends Object> implements Query {
 
 	/**
 	 * Converts bean to Item. Implemented by encapsulating the Bean
-	 * first to BeanItem and then to CompositeItem.
+	 * first to BeanItem or LightweightBeanItem and then to CompositeItem.
 	 * @param bean bean to be converted.
 	 * @return item converted from bean.
 	 */
-	@SuppressWarnings({ "unchecked", "rawtypes" })
     private Item toItem(final T bean) {
-		BeanItem<T> beanItem = new BeanItem<T>(bean);
+		Item beanItem;
+		if (queryDefinition instanceof LazyQueryDefinition
+				&& ((LazyQueryDefinition) queryDefinition).isLightweightBeanItems()) {
+			beanItem = new LightweightBeanItem<T>(bean);
+		} else {
+			beanItem = new BeanItem<T>(bean);
+		}
 
 		if (queryDefinition.isCompositeItems()) {
-    		CompositeItem compositeItem = new CompositeItem();
-    		compositeItem.addItem("bean", beanItem);
-    
-    		for (Object propertyId : queryDefinition.getPropertyIds()) {
-    			if (compositeItem.getItemProperty(propertyId) == null) {
-    				compositeItem.addItemProperty(
-    						propertyId,
-    						new ObjectProperty(queryDefinition
-    								.getPropertyDefaultValue(propertyId),
-    								queryDefinition.getPropertyType(propertyId),
-    								queryDefinition.isPropertyReadOnly(propertyId)));
-    			}
+    		if (defaultProperties == null || defaultPropertiesBeanClass != bean.getClass()) {
+    			defaultProperties = new DefaultPropertyItem.Defaults(queryDefinition,
+    					beanItem.getItemPropertyIds());
+    			defaultPropertiesBeanClass = bean.getClass();
     		}
-    
+    		CompositeItem compositeItem = new CompositeItem(new DefaultPropertyItem(defaultProperties));
+    		compositeItem.addItem("bean", beanItem);
     		return compositeItem;
 		} else {
 		    return beanItem;
@@ -227,10 +226,9 @@ public abstract class AbstractBeanQuery<T extends Object> implements Query {
 	@SuppressWarnings("unchecked")
     private T fromItem(final Item item) {
        if (queryDefinition.isCompositeItems()) {
-        return ((BeanItem<T>) (((CompositeItem) item).getItem("bean")))
-				.getBean();
+        return (T) LightweightBeanItem.getBean(((CompositeItem) item).getItem("bean"));
        } else {
-           return ((BeanItem<T>) item).getBean();
+           return (T) LightweightBeanItem.getBean(item);
        }
 	}
 
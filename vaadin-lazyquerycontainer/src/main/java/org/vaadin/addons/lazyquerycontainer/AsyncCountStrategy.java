@@ -0,0 +1,196 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Count strategy which shows provisional count while exact count is
+ * resolved in background. The provisional count is fixed value by
+ * default. Subclasses can override estimateCount to provide estimate for
+ * example from database statistics. Queries implementing CountingQuery are
+ * counted with countItems and other queries with Query.size of a separate
+ * query instance so that the count never runs concurrently on the query
+ * used for loading items.
+ * <p>
+ * Count is executed with the count executor and the result is delivered to
+ * the container with the notification executor. Notification executor has
+ * to run the commands while holding the lock of the user session, for
+ * example by locking the VaadinSession, as the container fires item set
+ * change events to the attached components.
+ * @author Tommi S.E. Laukkanen
+ */
+public class AsyncCountStrategy implements CountStrategy {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The provisional count. */
+    private final int provisionalCount;
+    /** The executor running the counts. */
+    private final Executor countExecutor;
+    /** The executor delivering the count notifications. */
+    private final Executor notificationExecutor;
+
+    /**
+     * Constructor for configuring the strategy to count in daemon threads.
+     * @param provisionalCount The count shown until exact count is available.
+     * @param notificationExecutor The executor delivering count notifications
+     *            while holding the session lock.
+     */
+    public AsyncCountStrategy(final int provisionalCount, final Executor notificationExecutor) {
+        this(provisionalCount, new DaemonThreadExecutor("AsyncCountStrategy"), notificationExecutor);
+    }
+
+    /**
+     * Constructor for configuring the strategy.
+     * @param provisionalCount The count shown until exact count is available.
+     * @param countExecutor The executor running the counts.
+     * @param notificationExecutor The executor delivering count notifications
+     *            while holding the session lock.
+     */
+    public AsyncCountStrategy(final int provisionalCount, final Executor countExecutor,
+            final Executor notificationExecutor) {
+        if (countExecutor == null || notificationExecutor == null) {
+            throw new IllegalArgumentException("Count and notification executors have to be provided.");
+        }
+        this.provisionalCount = provisionalCount;
+        this.countExecutor = countExecutor;
+        this.notificationExecutor = notificationExecutor;
+    }
+
+    /**
+     * Creates counter for a new query and starts counting in background.
+     * @param query The query to count.
+     * @param querySource The source of separate query instances for counting
+     *            queries which do not implement CountingQuery.
+     * @param listener The listener to notify when exact count is available.
+     * @return the counter.
+     */
+    @Override
+    public final Counter createCounter(final Query query, final QuerySource querySource, final Listener listener) {
+        final AsyncCounter counter = new AsyncCounter(estimateCount(query), listener);
+        final Query countQuery = query instanceof CountingQuery ? query : querySource.constructQuery();
+        countExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final int count;
+                    if (countQuery instanceof CountingQuery) {
+                        count = ((CountingQuery) countQuery).countItems(Integer.MAX_VALUE);
+                    } else {
+                        count = countQuery.size();
+                    }
+                    notificationExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            counter.setExactCount(count);
+                        }
+                    });
+                } catch (final RuntimeException e) {
+                    notificationExecutor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            listener.countFailed(counter, e);
+                        }
+                    });
+                }
+            }
+        });
+        return counter;
+    }
+
+    /**
+     * Estimates count of the query. Invoked in the thread constructing the
+     * query and hence has to be fast.
+     * @param query The query.
+     * @return the provisional count.
+     */
+    protected int estimateCount(final Query query) {
+        return provisionalCount;
+    }
+
+    /**
+     * Counter which is updated with the exact count through the notification
+     * executor.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class AsyncCounter implements Counter {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The listener to notify when count changes. */
+        private final Listener listener;
+        /** The current count. */
+        private int count;
+        /** True if count is exact. */
+        private boolean exact;
+
+        /**
+         * Constructor for configuring the counter.
+         * @param provisionalCount The provisional count.
+         * @param listener The listener to notify when count changes.
+         */
+        private AsyncCounter(final int provisionalCount, final Listener listener) {
+            this.count = provisionalCount;
+            this.listener = listener;
+        }
+
+        /**
+         * Sets the exact count and notifies the listener.
+         * @param exactCount the exact count.
+         */
+        private void setExactCount(final int exactCount) {
+            synchronized (this) {
+                count = exactCount;
+                exact = true;
+            }
+            listener.countChanged(this, exactCount);
+        }
+
+        /**
+         * @return the count
+         */
+        @Override
+        public synchronized int getCount() {
+            return count;
+        }
+
+        /**
+         * @return true if exact count is available.
+         */
+        @Override
+        public synchronized boolean isExact() {
+            return exact;
+        }
+
+        /**
+         * Shrinks provisional count and notifies the listener if query ended before it.
+         * @param startIndex Starting index of the batch.
+         * @param requestedCount Count of the items requested.
+         * @param loadedCount Count of the items loaded.
+         */
+        @Override
+        public void itemsLoaded(final int startIndex, final int requestedCount, final int loadedCount) {
+            final int shrunkCount;
+            synchronized (this) {
+                if (exact || loadedCount >= requestedCount || startIndex + loadedCount >= count) {
+                    return;
+                }
+                count = startIndex + loadedCount;
+                shrunkCount = count;
+            }
+            listener.countChanged(this, shrunkCount);
+        }
+    }
+}
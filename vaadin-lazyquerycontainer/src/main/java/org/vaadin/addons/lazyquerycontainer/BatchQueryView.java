@@ -0,0 +1,57 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+
+import com.vaadin.data.Item;
+
+/**
+ * Interface for query views which load ranges of items in batches, iterate
+ * items without the item cache and accept visible property hints. Other
+ * views are accessed item by item through QueryView.getItem.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface BatchQueryView extends QueryView {
+	/**
+	 * Sets the IDs of the properties visible in user interface and refreshes the view.
+	 * Queries may load only the visible properties eagerly and the rest on demand.
+	 * Buffered changes would be discarded by the refresh and hence have to be
+	 * committed or discarded first.
+	 * @param visiblePropertyIds the visible property IDs or null if all properties are visible.
+	 * @throws IllegalStateException if the view has buffered changes.
+	 */
+	void setVisiblePropertyIds(Collection<?> visiblePropertyIds);
+	/**
+	 * Iterates all items of the current sort and filter in batches without
+	 * using the item cache. Buffered changes are not included and iterated
+	 * items are not tracked for modifications.
+	 * @param batchSize The number of items loaded at once.
+	 * @return Iterator of the items.
+	 */
+	Iterator<Item> iterateItems(int batchSize);
+	/**
+	 * Gets contiguous range of items. Missing batches are loaded with one query
+	 * each and the returned list is shorter than count if the range exceeds the
+	 * size of the view.
+	 * @param startIndex The index of the first item.
+	 * @param count The maximum number of items.
+	 * @return list of the items in the range.
+	 */
+	List<Item> getItems(int startIndex, int count);
+}
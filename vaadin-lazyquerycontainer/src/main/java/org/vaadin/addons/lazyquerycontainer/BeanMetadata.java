@@ -0,0 +1,294 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.beans.IntrospectionException;
+import java.beans.Introspector;
+import java.beans.PropertyDescriptor;
+import java.lang.ref.SoftReference;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Introspection metadata of a bean class. Metadata is resolved once per class
+ * and shared by all queries and containers. Registry does not prevent unloading
+ * of the bean classes as metadata is referenced softly.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class BeanMetadata {
+    /** Registry of the resolved bean metadata by bean class. */
+    private static final Map<Class<?>, SoftReference<BeanMetadata>> REGISTRY =
+            new WeakHashMap<Class<?>, SoftReference<BeanMetadata>>();
+    /** The bean class. */
+    private final Class<?> beanClass;
+    /** The readable properties excluding class property. */
+    private final List<PropertyDescriptor> readablePropertyDescriptors;
+    /** The names of the readable properties. */
+    private final List<String> propertyIds;
+    /** The indexes of the readable properties by property name. */
+    private final Map<String, Integer> propertyIndexes;
+    /** The read methods of the readable properties by property index. */
+    private final Method[] readMethods;
+    /** The write methods of the readable properties by property index or null for read only properties. */
+    private final Method[] propertyWriteMethods;
+    /** The types of the readable properties with primitive types converted to wrapper types. */
+    private final Class<?>[] propertyTypes;
+    /** The write methods by property name. */
+    private final Map<String, Method> writeMethods;
+
+    /**
+     * Constructor which introspects the bean class.
+     * @param beanClass The bean class.
+     */
+    private BeanMetadata(final Class<?> beanClass) {
+        this.beanClass = beanClass;
+        final List<PropertyDescriptor> readableProperties = new ArrayList<PropertyDescriptor>();
+        final Map<String, Method> writeMethodMap = new HashMap<String, Method>();
+        try {
+            for (final PropertyDescriptor pd : Introspector.getBeanInfo(beanClass).getPropertyDescriptors()) {
+                if (pd.getReadMethod() != null && !"class".equals(pd.getName())) {
+                    readableProperties.add(pd);
+                }
+                if (pd.getWriteMethod() != null) {
+                    writeMethodMap.put(pd.getName(), pd.getWriteMethod());
+                }
+            }
+        } catch (final IntrospectionException e) {
+            throw new RuntimeException("Error in introspection of " + beanClass.getName(), e);
+        }
+        this.readablePropertyDescriptors = Collections.unmodifiableList(readableProperties);
+        this.writeMethods = writeMethodMap;
+        final int propertyCount = readableProperties.size();
+        final List<String> names = new ArrayList<String>(propertyCount);
+        this.propertyIndexes = new HashMap<String, Integer>();
+        this.readMethods = new Method[propertyCount];
+        this.propertyWriteMethods = new Method[propertyCount];
+        this.propertyTypes = new Class<?>[propertyCount];
+        for (int i = 0; i < propertyCount; i++) {
+            final PropertyDescriptor pd = readableProperties.get(i);
+            names.add(pd.getName());
+            propertyIndexes.put(pd.getName(), i);
+            readMethods[i] = pd.getReadMethod();
+            propertyWriteMethods[i] = pd.getWriteMethod();
+            propertyTypes[i] = toWrapperType(pd.getPropertyType());
+        }
+        this.propertyIds = Collections.unmodifiableList(names);
+    }
+
+    /**
+     * Gets metadata of the bean class from registry or introspects the class
+     * if metadata has not been resolved yet.
+     * @param beanClass The bean class.
+     * @return the bean metadata.
+     */
+    public static BeanMetadata getBeanMetadata(final Class<?> beanClass) {
+        synchronized (REGISTRY) {
+            final SoftReference<BeanMetadata> reference = REGISTRY.get(beanClass);
+            BeanMetadata beanMetadata = reference != null ? reference.get() : null;
+            if (beanMetadata == null) {
+                beanMetadata = new BeanMetadata(beanClass);
+                REGISTRY.put(beanClass, new SoftReference<BeanMetadata>(beanMetadata));
+            }
+            return beanMetadata;
+        }
+    }
+
+    /**
+     * @return the beanClass
+     */
+    public Class<?> getBeanClass() {
+        return beanClass;
+    }
+
+    /**
+     * @return the readable property descriptors excluding class property.
+     */
+    public List<PropertyDescriptor> getReadablePropertyDescriptors() {
+        return readablePropertyDescriptors;
+    }
+
+    /**
+     * @return the names of the readable properties in index order.
+     */
+    public List<String> getPropertyIds() {
+        return propertyIds;
+    }
+
+    /**
+     * Gets index of the readable property.
+     * @param propertyId The property ID.
+     * @return the property index or -1 if bean does not have readable property with given ID.
+     */
+    public int getPropertyIndex(final Object propertyId) {
+        final Integer index = propertyIndexes.get(propertyId);
+        return index != null ? index : -1;
+    }
+
+    /**
+     * Gets type of the readable property. Primitive types are converted to wrapper types.
+     * @param propertyIndex The property index.
+     * @return the property type.
+     */
+    public Class<?> getPropertyType(final int propertyIndex) {
+        return propertyTypes[propertyIndex];
+    }
+
+    /**
+     * @param propertyIndex The property index.
+     * @return true if the readable property does not have write method.
+     */
+    public boolean isPropertyReadOnly(final int propertyIndex) {
+        return propertyWriteMethods[propertyIndex] == null;
+    }
+
+    /**
+     * Reads property value from bean.
+     * @param bean The bean.
+     * @param propertyIndex The property index.
+     * @return the property value.
+     */
+    public Object getPropertyValue(final Object bean, final int propertyIndex) {
+        try {
+            return readMethods[propertyIndex].invoke(bean);
+        } catch (final Exception e) {
+            throw new RuntimeException("Error reading property " + propertyIds.get(propertyIndex)
+                    + " of " + beanClass.getName(), e);
+        }
+    }
+
+    /**
+     * Writes property value to bean.
+     * @param bean The bean.
+     * @param propertyIndex The property index.
+     * @param value The property value.
+     */
+    public void setPropertyValue(final Object bean, final int propertyIndex, final Object value) {
+        try {
+            propertyWriteMethods[propertyIndex].invoke(bean, value);
+        } catch (final Exception e) {
+            throw new RuntimeException("Error writing property " + propertyIds.get(propertyIndex)
+                    + " of " + beanClass.getName(), e);
+        }
+    }
+
+    /**
+     * Gets write method of the property.
+     * @param propertyId The property ID.
+     * @return the write method or null if property does not exist or is read only.
+     */
+    public Method getWriteMethod(final Object propertyId) {
+        return writeMethods.get(propertyId);
+    }
+
+    /**
+     * Resolves write methods and default values of query definition properties
+     * which are writable properties of the bean.
+     * @param queryDefinition The query definition.
+     * @return the default values.
+     */
+    public DefaultValues getDefaultValues(final QueryDefinition queryDefinition) {
+        final Collection<?> propertyIds = queryDefinition.getPropertyIds();
+        final List<Method> methods = new ArrayList<Method>(propertyIds.size());
+        final List<Object> values = new ArrayList<Object>(propertyIds.size());
+        for (final Object propertyId : propertyIds) {
+            final Method writeMethod = writeMethods.get(propertyId);
+            if (writeMethod != null) {
+                methods.add(writeMethod);
+                values.add(queryDefinition.getPropertyDefaultValue(propertyId));
+            }
+        }
+        return new DefaultValues(beanClass, methods.toArray(new Method[methods.size()]), values.toArray());
+    }
+
+    /**
+     * Converts primitive type to corresponding wrapper type.
+     * @param type the type to convert.
+     * @return the wrapper type or the type itself if it is not primitive.
+     */
+    private static Class<?> toWrapperType(final Class<?> type) {
+        if (!type.isPrimitive()) {
+            return type;
+        } else if (type == Integer.TYPE) {
+            return Integer.class;
+        } else if (type == Long.TYPE) {
+            return Long.class;
+        } else if (type == Boolean.TYPE) {
+            return Boolean.class;
+        } else if (type == Double.TYPE) {
+            return Double.class;
+        } else if (type == Float.TYPE) {
+            return Float.class;
+        } else if (type == Short.TYPE) {
+            return Short.class;
+        } else if (type == Byte.TYPE) {
+            return Byte.class;
+        } else if (type == Character.TYPE) {
+            return Character.class;
+        }
+        return type;
+    }
+
+    /**
+     * Resolved write methods and default values of query definition properties.
+     * @author Tommi S.E. Laukkanen
+     */
+    public static final class DefaultValues {
+        /** The bean class. */
+        private final Class<?> beanClass;
+        /** The write methods. */
+        private final Method[] writeMethods;
+        /** The default values in the order of write methods. */
+        private final Object[] values;
+
+        /**
+         * Constructor for setting the resolved default values.
+         * @param beanClass The bean class.
+         * @param writeMethods The write methods.
+         * @param values The default values in the order of write methods.
+         */
+        private DefaultValues(final Class<?> beanClass, final Method[] writeMethods, final Object[] values) {
+            this.beanClass = beanClass;
+            this.writeMethods = writeMethods;
+            this.values = values;
+        }
+
+        /**
+         * @return the beanClass
+         */
+        public Class<?> getBeanClass() {
+            return beanClass;
+        }
+
+        /**
+         * Sets default values to bean properties.
+         * @param bean The bean.
+         * @throws IllegalAccessException if write method is not accessible.
+         * @throws InvocationTargetException if write method throws exception.
+         */
+        public void apply(final Object bean) throws IllegalAccessException, InvocationTargetException {
+            for (int i = 0; i < writeMethods.length; i++) {
+                writeMethods[i].invoke(bean, values[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+/**
+ * Count strategy which counts items only up to a cap. If there are more
+ * items than the cap, the cap is shown as provisional count and the cap is
+ * doubled and items counted again when items at the end of the provisional
+ * count are loaded. Queries implementing CountingQuery are counted with
+ * countItems and other queries with Query.size.
+ * <p>
+ * The grown cap is counted synchronously while the view loads items and the
+ * count change is notified after the view has returned the loaded items.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class CappedCountStrategy implements CountStrategy {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The initial cap. */
+    private final int initialCap;
+
+    /**
+     * Constructor for configuring the strategy.
+     * @param initialCap The initial cap of the count.
+     */
+    public CappedCountStrategy(final int initialCap) {
+        if (initialCap < 1) {
+            throw new IllegalArgumentException("Cap has to be positive: " + initialCap);
+        }
+        this.initialCap = initialCap;
+    }
+
+    /**
+     * Creates counter for a new query and counts items up to the initial cap.
+     * @param query The query to count.
+     * @param querySource The source of separate query instances which is not used.
+     * @param listener The listener to notify when cap is grown.
+     * @return the counter.
+     */
+    @Override
+    public Counter createCounter(final Query query, final QuerySource querySource, final Listener listener) {
+        final CappedCounter counter = new CappedCounter(query, listener);
+        counter.countItems(initialCap);
+        return counter;
+    }
+
+    /**
+     * Counter which grows its cap when end of the provisional count is reached.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class CappedCounter implements Counter {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The counted query. */
+        private final Query query;
+        /** The listener to notify when cap is grown. */
+        private final Listener listener;
+        /** The current cap. */
+        private int cap;
+        /** The current count. */
+        private int count;
+        /** True if count is exact. */
+        private boolean exact;
+
+        /**
+         * Constructor for configuring the counter.
+         * @param query The counted query.
+         * @param listener The listener to notify when cap is grown.
+         */
+        private CappedCounter(final Query query, final Listener listener) {
+            this.query = query;
+            this.listener = listener;
+        }
+
+        /**
+         * Counts items up to the cap. One item over the cap is counted to
+         * find out whether the count is exact.
+         * @param newCap The cap.
+         */
+        private void countItems(final int newCap) {
+            cap = newCap;
+            final int maximumCount = cap == Integer.MAX_VALUE ? cap : cap + 1;
+            final int cappedCount;
+            if (query instanceof CountingQuery) {
+                cappedCount = ((CountingQuery) query).countItems(maximumCount);
+            } else {
+                cappedCount = Math.min(query.size(), maximumCount);
+            }
+            exact = cappedCount <= cap;
+            count = Math.min(cappedCount, cap);
+        }
+
+        /**
+         * @return the count
+         */
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return true if there are no more items than the count.
+         */
+        @Override
+        public boolean isExact() {
+            return exact;
+        }
+
+        /**
+         * Doubles the cap and counts again if the end of the provisional count was loaded.
+         * @param startIndex Starting index of the batch.
+         * @param requestedCount Count of the items requested.
+         * @param loadedCount Count of the items loaded.
+         */
+        @Override
+        public void itemsLoaded(final int startIndex, final int requestedCount, final int loadedCount) {
+            if (!exact && startIndex + loadedCount >= count) {
+                countItems(cap > Integer.MAX_VALUE / 2 ? Integer.MAX_VALUE : cap * 2);
+                listener.countChanged(this, count);
+            }
+        }
+    }
+}
@@ -19,8 +19,11 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
@@ -29,11 +32,16 @@ import com.vaadin.data.util.PropertysetItem;
 /**
  * CompositeItem enables joining multiple items as single item. CompositeItem
  * contains PropertysetItem as default item to support adding and removing of
- * properties.
+ * properties. Property IDs of the items are indexed so that property lookup
+ * is a single hash lookup. Index is rebuilt on access after items or their
+ * properties have changed, except for properties added and removed through
+ * the composite item which update the index in place. Value change listeners of the composite item are
+ * added to the items which notify value changes themselves and to the
+ * properties of the other items.
  * 
  * @author Tommi Laukkanen
  */
-public final class CompositeItem implements Item {
+public final class CompositeItem implements ItemValueChangeNotifier {
     /** Serial version UID for this class. */
     private static final long serialVersionUID = 1L;
     /** Key for default item. */
@@ -43,12 +51,40 @@ public final class CompositeItem implements Item {
     /** Map of items. */
     private Map<String, Item> items = new HashMap<String, Item>();
     /** The default item. */
-    private Item defaultItem = new PropertysetItem();
+    private Item defaultItem;
+    /** Index of items by the IDs of their properties or null if index has to be rebuilt. */
+    private transient Map<Object, Item> propertyIndex;
+    /** Unmodifiable property IDs in item order or null if they have to be listed again. */
+    private transient Collection<?> propertyIds;
+    /** True while properties of the default item are changed through this item. */
+    private transient boolean changingDefaultItem;
+    /** The value change listeners or null if no listener has been added. */
+    private List<Property.ValueChangeListener> valueChangeListeners;
+    /** Listener which invalidates index when properties of the items change. */
+    private final Item.PropertySetChangeListener propertySetChangeListener = new Item.PropertySetChangeListener() {
+        /** Serial version UID for this class. */
+        private static final long serialVersionUID = 1L;
+        @Override
+        public void itemPropertySetChange(final Item.PropertySetChangeEvent event) {
+            if (!changingDefaultItem) {
+                invalidateIndex();
+            }
+        }
+    };
 
     /**
      * Default constructor initializes default Item.
      */
     public CompositeItem() {
+        this(new PropertysetItem());
+    }
+
+    /**
+     * Constructor which sets the default Item.
+     * @param defaultItem The default item which properties are added to and removed from.
+     */
+    public CompositeItem(final Item defaultItem) {
+        this.defaultItem = defaultItem;
         addItem(DEFAULT_ITEM_KEY, defaultItem);
     }
 
@@ -60,6 +96,15 @@ public final class CompositeItem implements Item {
     public void addItem(final String key, final Item item) {
         itemKeys.add(key);
         items.put(key, item);
+        if (item instanceof Item.PropertySetChangeNotifier) {
+            ((Item.PropertySetChangeNotifier) item).addListener(propertySetChangeListener);
+        }
+        if (valueChangeListeners != null) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                addValueChangeListener(item, listener);
+            }
+        }
+        invalidateIndex();
     }
 
     /**
@@ -68,7 +113,16 @@ public final class CompositeItem implements Item {
      */
     public void removeItem(final String key) {
         itemKeys.remove(key);
-        items.remove(key);
+        final Item item = items.remove(key);
+        if (item instanceof Item.PropertySetChangeNotifier) {
+            ((Item.PropertySetChangeNotifier) item).removeListener(propertySetChangeListener);
+        }
+        if (item != null && valueChangeListeners != null) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                removeValueChangeListener(item, listener);
+            }
+        }
+        invalidateIndex();
     }
 
     /**
@@ -93,14 +147,13 @@ public final class CompositeItem implements Item {
      * @return Collection of property IDs.
      */
     public Collection<?> getItemPropertyIds() {
-        List<Object> itemPropertyIds = new ArrayList<Object>();
-        for (String itemKey : itemKeys) {
-            Item item = items.get(itemKey);
-            for (Object propertyId : item.getItemPropertyIds()) {
-                itemPropertyIds.add(propertyId);
-            }
+        if (propertyIndex == null) {
+            buildIndex();
         }
-        return itemPropertyIds;
+        if (propertyIds == null) {
+            listPropertyIds();
+        }
+        return propertyIds;
     }
 
     /**
@@ -109,14 +162,14 @@ public final class CompositeItem implements Item {
      * @return property corresponding to the given ID or null if no matching property is found.
      */
     public Property getItemProperty(final Object id) {
-        for (String itemKey : itemKeys) {
-            Item item = items.get(itemKey);
-            Property property = item.getItemProperty(id);
-            if (property != null) {
-                return property;
-            }
+        if (propertyIndex == null) {
+            buildIndex();
         }
-        return null;
+        final Item item = propertyIndex.get(id);
+        if (item == null) {
+            return null;
+        }
+        return item.getItemProperty(id);
     }
 
     /**
@@ -126,7 +179,31 @@ public final class CompositeItem implements Item {
      * @return true if Property was added successfully.
      */
     public boolean addItemProperty(final Object id, final Property property) {
-        return defaultItem.addItemProperty(id, property);
+        final boolean added;
+        changingDefaultItem = true;
+        try {
+            added = defaultItem.addItemProperty(id, property);
+        } finally {
+            changingDefaultItem = false;
+        }
+        if (!added) {
+            return false;
+        }
+        if (propertyIndex != null) {
+            if (!propertyIndex.containsKey(id) && items.get(DEFAULT_ITEM_KEY) == defaultItem) {
+                propertyIndex.put(id, defaultItem);
+                propertyIds = null;
+            } else {
+                reindexProperty(id);
+            }
+        }
+        if (valueChangeListeners != null && !(defaultItem instanceof ItemValueChangeNotifier)
+                && property instanceof Property.ValueChangeNotifier) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                ((Property.ValueChangeNotifier) property).addListener(listener);
+            }
+        }
+        return true;
     }
 
     /**
@@ -135,7 +212,152 @@ public final class CompositeItem implements Item {
      * @return true if Property was removed successfully.
      */
     public boolean removeItemProperty(final Object id) {
-        return defaultItem.removeItemProperty(id);
+        final boolean listenedProperties = valueChangeListeners != null
+                && !(defaultItem instanceof ItemValueChangeNotifier);
+        final Property property = listenedProperties ? defaultItem.getItemProperty(id) : null;
+        final boolean removed;
+        changingDefaultItem = true;
+        try {
+            removed = defaultItem.removeItemProperty(id);
+        } finally {
+            changingDefaultItem = false;
+        }
+        if (!removed) {
+            return false;
+        }
+        if (propertyIndex != null && propertyIndex.get(id) == defaultItem) {
+            reindexProperty(id);
+        }
+        if (listenedProperties && property instanceof Property.ValueChangeNotifier) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                ((Property.ValueChangeNotifier) property).removeListener(listener);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds value change listener to the items and to the items added later.
+     * @param listener The listener to add.
+     */
+    public void addValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null) {
+            valueChangeListeners = new ArrayList<Property.ValueChangeListener>(1);
+        }
+        valueChangeListeners.add(listener);
+        for (final String itemKey : itemKeys) {
+            addValueChangeListener(items.get(itemKey), listener);
+        }
+    }
+
+    /**
+     * Removes value change listener from the items.
+     * @param listener The listener to remove.
+     */
+    public void removeValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null || !valueChangeListeners.remove(listener)) {
+            return;
+        }
+        for (final String itemKey : itemKeys) {
+            removeValueChangeListener(items.get(itemKey), listener);
+        }
+    }
+
+    /**
+     * Adds value change listener to the item or to its properties if item
+     * does not notify value changes itself.
+     * @param item The item.
+     * @param listener The listener to add.
+     */
+    private static void addValueChangeListener(final Item item, final Property.ValueChangeListener listener) {
+        if (item instanceof ItemValueChangeNotifier) {
+            ((ItemValueChangeNotifier) item).addValueChangeListener(listener);
+            return;
+        }
+        for (final Object propertyId : item.getItemPropertyIds()) {
+            final Property property = item.getItemProperty(propertyId);
+            if (property instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) property).addListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes value change listener from the item or from its properties if
+     * item does not notify value changes itself.
+     * @param item The item.
+     * @param listener The listener to remove.
+     */
+    private static void removeValueChangeListener(final Item item, final Property.ValueChangeListener listener) {
+        if (item instanceof ItemValueChangeNotifier) {
+            ((ItemValueChangeNotifier) item).removeValueChangeListener(listener);
+            return;
+        }
+        for (final Object propertyId : item.getItemPropertyIds()) {
+            final Property property = item.getItemProperty(propertyId);
+            if (property instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) property).removeListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Indexes items by property IDs. Property of the first item in item order
+     * is used if multiple items contain property with the same ID.
+     */
+    private void buildIndex() {
+        final Map<Object, Item> index = new LinkedHashMap<Object, Item>();
+        for (final String itemKey : itemKeys) {
+            final Item item = items.get(itemKey);
+            for (final Object propertyId : item.getItemPropertyIds()) {
+                if (!index.containsKey(propertyId)) {
+                    index.put(propertyId, item);
+                }
+            }
+        }
+        propertyIndex = index;
+        propertyIds = Collections.unmodifiableList(new ArrayList<Object>(index.keySet()));
+    }
+
+    /**
+     * Indexes single property to the first item in item order which contains
+     * it or removes it from the index if no item contains it.
+     * @param id ID of the property.
+     */
+    private void reindexProperty(final Object id) {
+        propertyIds = null;
+        for (final String itemKey : itemKeys) {
+            final Item item = items.get(itemKey);
+            if (item.getItemPropertyIds().contains(id)) {
+                propertyIndex.put(id, item);
+                return;
+            }
+        }
+        propertyIndex.remove(id);
+    }
+
+    /**
+     * Lists indexed property IDs in item order.
+     */
+    private void listPropertyIds() {
+        final Set<Object> ids = new LinkedHashSet<Object>();
+        for (final String itemKey : itemKeys) {
+            final Item item = items.get(itemKey);
+            for (final Object propertyId : item.getItemPropertyIds()) {
+                if (propertyIndex.get(propertyId) == item) {
+                    ids.add(propertyId);
+                }
+            }
+        }
+        propertyIds = Collections.unmodifiableList(new ArrayList<Object>(ids));
+    }
+
+    /**
+     * Invalidates property index.
+     */
+    private void invalidateIndex() {
+        propertyIndex = null;
+        propertyIds = null;
     }
 
 }
@@ -0,0 +1,98 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.io.Serializable;
+
+/**
+ * Strategy for resolving the number of items of a query. Strategies can
+ * provide provisional counts which are replaced with exact counts later
+ * so that query view does not have to wait for expensive count queries.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface CountStrategy extends Serializable {
+	/**
+	 * Creates counter for a new query.
+	 * @param query The query to count.
+	 * @param querySource The source of separate query instances for counting
+	 *            queries which can not be counted concurrently with loading items.
+	 * @param listener The listener to notify when count of the counter changes.
+	 * @return the counter.
+	 */
+	Counter createCounter(Query query, QuerySource querySource, Listener listener);
+
+	/**
+	 * Source of new instances of the counted query with the same sort and
+	 * filter state. Has to be invoked from the thread using the query view.
+	 * @author Tommi S.E. Laukkanen
+	 */
+	interface QuerySource extends Serializable {
+		/**
+		 * Constructs new instance of the counted query.
+		 * @return the new query.
+		 */
+		Query constructQuery();
+	}
+
+	/**
+	 * Count of a single query.
+	 * @author Tommi S.E. Laukkanen
+	 */
+	interface Counter extends Serializable {
+		/**
+		 * Gets the current count which may be provisional.
+		 * @return the count.
+		 */
+		int getCount();
+		/**
+		 * Checks whether the current count is exact.
+		 * @return true if count is exact.
+		 */
+		boolean isExact();
+		/**
+		 * Invoked after batch of items has been loaded. Counters with provisional
+		 * counts can adjust the count according to the loaded batch.
+		 * @param startIndex Starting index of the batch.
+		 * @param requestedCount Count of the items requested.
+		 * @param loadedCount Count of the items loaded.
+		 */
+		void itemsLoaded(int startIndex, int requestedCount, int loadedCount);
+	}
+
+	/**
+	 * Listener for count changes. Strategies counting in background threads
+	 * deliver the notifications through executor supplied by the application
+	 * so that listeners can access the query view and user interface. Query
+	 * view defers notifications caused by loading items until the loading
+	 * method has returned its items.
+	 * @author Tommi S.E. Laukkanen
+	 */
+	interface Listener extends Serializable {
+		/**
+		 * Invoked when count of counter has changed.
+		 * @param counter The counter.
+		 * @param count The new count.
+		 */
+		void countChanged(Counter counter, int count);
+		/**
+		 * Invoked when counting failed. The count of the counter remains
+		 * provisional.
+		 * @param counter The counter.
+		 * @param exception The exception thrown by the count.
+		 */
+		void countFailed(Counter counter, RuntimeException exception);
+	}
+}
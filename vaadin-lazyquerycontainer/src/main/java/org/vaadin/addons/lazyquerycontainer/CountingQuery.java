@@ -0,0 +1,32 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+/**
+ * Interface for queries which can count items up to given maximum and
+ * which can be counted from other threads than the one loading items.
+ * Used by count strategies. Other queries are counted with Query.size.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface CountingQuery extends Query {
+	/**
+	 * Counts items up to the maximum count. Has to be safe to invoke
+	 * concurrently with other methods of the query.
+	 * @param maximumCount The maximum count or Integer.MAX_VALUE for exact count.
+	 * @return number of items or maximumCount if there are at least that many items.
+	 */
+	int countItems(int maximumCount);
+}
@@ -0,0 +1,41 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+/**
+ * Interface for query views which count items with a count strategy and
+ * hence may report provisional sizes. LazyQueryContainer treats sizes of
+ * other views as exact.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface CountingQueryView extends QueryView {
+	/**
+	 * Checks whether the size is exact or provisional count of the count strategy.
+	 * @return true if size is exact.
+	 */
+	boolean isSizeExact();
+	/**
+	 * Sets the strategy used to count items of queries and refreshes the view.
+	 * @param countStrategy The count strategy.
+	 */
+	void setCountStrategy(CountStrategy countStrategy);
+	/**
+	 * Sets listener which is notified when size changes after count strategy
+	 * has resolved the count. The notified count is the size of the view.
+	 * @param countListener The count listener or null.
+	 */
+	void setCountListener(CountStrategy.Listener countListener);
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.io.Serializable;
+import java.util.concurrent.Executor;
+
+/**
+ * Executor which runs each command in new daemon thread. Used as default
+ * by the components running background work when application does not
+ * provide an executor.
+ * @author Tommi S.E. Laukkanen
+ */
+final class DaemonThreadExecutor implements Executor, Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The name of the threads. */
+    private final String threadName;
+
+    /**
+     * Constructor which sets the name of the threads.
+     * @param threadName The name of the threads.
+     */
+    DaemonThreadExecutor(final String threadName) {
+        this.threadName = threadName;
+    }
+
+    /**
+     * Runs the command in new daemon thread.
+     * @param command The command.
+     */
+    @Override
+    public void execute(final Runnable command) {
+        final Thread thread = new Thread(command, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
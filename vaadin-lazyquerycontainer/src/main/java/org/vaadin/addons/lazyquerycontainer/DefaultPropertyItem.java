@@ -0,0 +1,412 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
+
+/**
+ * Default item of composite items containing the query definition properties
+ * which are not bean properties. Read only default properties read the default
+ * value shared by all items and are copied to the item only when their read
+ * only state is changed. Other properties are copied to the item on first
+ * access so that their value and read only state can change per item.
+ * Item status and debug properties are always copied as LazyQueryView
+ * updates them. Value change listeners of the item are registered to the
+ * properties when they are copied or added, so listening the item does not
+ * copy its writable default properties.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class DefaultPropertyItem implements ItemValueChangeNotifier {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The shared default properties. */
+    private final Defaults defaults;
+    /** The item specific properties by default property index or null if none has been copied. */
+    private Property[] properties;
+    /** Properties added to this item or null if none has been added. */
+    private Map<Object, Property> addedProperties;
+    /** The removed states by default property index or null if no default property has been removed. */
+    private boolean[] removed;
+    /** The value change listeners or null if no listener has been added. */
+    private List<Property.ValueChangeListener> valueChangeListeners;
+
+    /**
+     * Constructor which sets the shared default properties.
+     * @param defaults The shared default properties.
+     */
+    public DefaultPropertyItem(final Defaults defaults) {
+        this.defaults = defaults;
+    }
+
+    /**
+     * Gets property by ID copying default property on first access if it is not read only.
+     * @param id ID of the property.
+     * @return the property or null if item does not contain property with given ID.
+     */
+    @SuppressWarnings("rawtypes")
+    @Override
+    public Property getItemProperty(final Object id) {
+        if (addedProperties != null && addedProperties.containsKey(id)) {
+            return addedProperties.get(id);
+        }
+        final int index = defaults.getIndex(id);
+        if (index == -1) {
+            return null;
+        }
+        if (removed != null && removed[index]) {
+            return null;
+        }
+        if (properties != null && properties[index] != null) {
+            return properties[index];
+        }
+        if (defaults.copyOnWriteStates[index]) {
+            if (properties == null) {
+                properties = new Property[defaults.propertyIds.size()];
+            }
+            properties[index] = new DefaultProperty(index);
+            return properties[index];
+        }
+        return copyProperty(index);
+    }
+
+    /**
+     * Copies default property to the item and registers the value change
+     * listeners of the item to the copy unless the property has been removed.
+     * @param index The default property index.
+     * @return the copied property.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    private Property copyProperty(final int index) {
+        if (properties == null) {
+            properties = new Property[defaults.propertyIds.size()];
+        }
+        properties[index] = new ObjectProperty(defaults.values[index], defaults.types[index],
+                defaults.readOnlyStates[index]);
+        if (removed == null || !removed[index]) {
+            addValueChangeListeners(properties[index]);
+        }
+        return properties[index];
+    }
+
+    /**
+     * Lists IDs of the properties in the item.
+     * @return Collection of property IDs.
+     */
+    @Override
+    public Collection<?> getItemPropertyIds() {
+        if (addedProperties == null && removed == null) {
+            return defaults.propertyIds;
+        }
+        final List<Object> propertyIds = new ArrayList<Object>();
+        for (int i = 0; i < defaults.propertyIds.size(); i++) {
+            if (removed == null || !removed[i]) {
+                propertyIds.add(defaults.propertyIds.get(i));
+            }
+        }
+        if (addedProperties != null) {
+            propertyIds.addAll(addedProperties.keySet());
+        }
+        return Collections.unmodifiableList(propertyIds);
+    }
+
+    /**
+     * Adds property to the item.
+     * @param id ID of the property to be added.
+     * @param property Property to be added.
+     * @return true if property was added or false if item already contains property with given ID.
+     */
+    @Override
+    public boolean addItemProperty(final Object id, final Property property) {
+        if (getItemProperty(id) != null) {
+            return false;
+        }
+        if (addedProperties == null) {
+            addedProperties = new LinkedHashMap<Object, Property>();
+        }
+        addedProperties.put(id, property);
+        addValueChangeListeners(property);
+        return true;
+    }
+
+    /**
+     * Removes property from the item.
+     * @param id ID of the property to be removed.
+     * @return true if property was removed.
+     */
+    @Override
+    public boolean removeItemProperty(final Object id) {
+        if (addedProperties != null && addedProperties.containsKey(id)) {
+            removeValueChangeListeners(addedProperties.remove(id));
+            return true;
+        }
+        if (getItemProperty(id) == null) {
+            return false;
+        }
+        if (removed == null) {
+            removed = new boolean[defaults.propertyIds.size()];
+        }
+        final int index = defaults.getIndex(id);
+        removed[index] = true;
+        if (properties != null && properties[index] != null) {
+            removeValueChangeListeners(properties[index]);
+        }
+        return true;
+    }
+
+    /**
+     * Adds value change listener to the copied and added properties and to
+     * the properties copied or added later.
+     * @param listener The listener to add.
+     */
+    @Override
+    public void addValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null) {
+            valueChangeListeners = new ArrayList<Property.ValueChangeListener>(1);
+        }
+        valueChangeListeners.add(listener);
+        for (final Property property : getOwnProperties()) {
+            if (property instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) property).addListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes value change listener from the item and its copied and added properties.
+     * @param listener The listener to remove.
+     */
+    @Override
+    public void removeValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null || !valueChangeListeners.remove(listener)) {
+            return;
+        }
+        for (final Property property : getOwnProperties()) {
+            if (property instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) property).removeListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Lists the properties copied or added to this item which have not been removed.
+     * @return list of properties.
+     */
+    private List<Property> getOwnProperties() {
+        final List<Property> ownProperties = new ArrayList<Property>();
+        if (properties != null) {
+            for (int i = 0; i < properties.length; i++) {
+                if (properties[i] != null && (removed == null || !removed[i])) {
+                    ownProperties.add(properties[i]);
+                }
+            }
+        }
+        if (addedProperties != null) {
+            ownProperties.addAll(addedProperties.values());
+        }
+        return ownProperties;
+    }
+
+    /**
+     * Registers the value change listeners of the item to the property.
+     * @param property The property.
+     */
+    private void addValueChangeListeners(final Property property) {
+        if (valueChangeListeners != null && property instanceof Property.ValueChangeNotifier) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                ((Property.ValueChangeNotifier) property).addListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes the value change listeners of the item from the property.
+     * @param property The property.
+     */
+    private void removeValueChangeListeners(final Property property) {
+        if (valueChangeListeners != null && property instanceof Property.ValueChangeNotifier) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                ((Property.ValueChangeNotifier) property).removeListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Default properties shared by the items of a query.
+     * @author Tommi S.E. Laukkanen
+     */
+    public static final class Defaults implements Serializable {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The IDs of the properties updated by LazyQueryView. */
+        private static final List<String> VIEW_PROPERTY_IDS = Arrays.asList(LazyQueryView.PROPERTY_ID_ITEM_STATUS,
+                LazyQueryView.DEBUG_PROPERTY_ID_BATCH_INDEX, LazyQueryView.DEBUG_PROPERTY_ID_QUERY_INDEX,
+                LazyQueryView.DEBUG_PROPERTY_ID_BATCH_QUERY_TIME);
+        /** The property IDs. */
+        private final List<Object> propertyIds;
+        /** The property indexes by property ID. */
+        private final Map<Object, Integer> indexes = new HashMap<Object, Integer>();
+        /** The property types. */
+        private final Class<?>[] types;
+        /** The default values. */
+        private final Object[] values;
+        /** The read only states. */
+        private final boolean[] readOnlyStates;
+        /** True for read only properties which are copied to items only when their read only state changes. */
+        private final boolean[] copyOnWriteStates;
+
+        /**
+         * Constructor which resolves default properties from the query definition.
+         * @param queryDefinition The query definition.
+         * @param excludedPropertyIds The IDs of the properties which are not default properties.
+         */
+        public Defaults(final QueryDefinition queryDefinition, final Collection<?> excludedPropertyIds) {
+            final List<Object> ids = new ArrayList<Object>();
+            for (final Object propertyId : queryDefinition.getPropertyIds()) {
+                if (!excludedPropertyIds.contains(propertyId)) {
+                    ids.add(propertyId);
+                }
+            }
+            this.propertyIds = Collections.unmodifiableList(ids);
+            this.types = new Class<?>[ids.size()];
+            this.values = new Object[ids.size()];
+            this.readOnlyStates = new boolean[ids.size()];
+            this.copyOnWriteStates = new boolean[ids.size()];
+            for (int i = 0; i < ids.size(); i++) {
+                final Object propertyId = ids.get(i);
+                indexes.put(propertyId, i);
+                types[i] = queryDefinition.getPropertyType(propertyId);
+                values[i] = queryDefinition.getPropertyDefaultValue(propertyId);
+                readOnlyStates[i] = queryDefinition.isPropertyReadOnly(propertyId);
+                copyOnWriteStates[i] = readOnlyStates[i] && !VIEW_PROPERTY_IDS.contains(propertyId);
+            }
+        }
+
+        /**
+         * @return the IDs of the default properties.
+         */
+        public List<Object> getPropertyIds() {
+            return propertyIds;
+        }
+
+        /**
+         * Gets index of the default property.
+         * @param propertyId The property ID.
+         * @return the index or -1 if there is no default property with given ID.
+         */
+        private int getIndex(final Object propertyId) {
+            final Integer index = indexes.get(propertyId);
+            return index != null ? index : -1;
+        }
+    }
+
+    /**
+     * Read only default property which reads the shared default value until
+     * its read only state is changed. The property is then copied to the item
+     * and the copy is used through this property as well.
+     * @author Tommi S.E. Laukkanen
+     */
+    @SuppressWarnings("rawtypes")
+    private final class DefaultProperty implements Property {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The default property index. */
+        private final int index;
+        /** The copy of the property or null if the property has not been copied. */
+        private Property copy;
+
+        /**
+         * Constructor which sets the default property index.
+         * @param index The default property index.
+         */
+        private DefaultProperty(final int index) {
+            this.index = index;
+        }
+
+        /**
+         * @return the default value or the value of the copy.
+         */
+        @Override
+        public Object getValue() {
+            return copy != null ? copy.getValue() : defaults.values[index];
+        }
+
+        /**
+         * Sets value of the copy.
+         * @param newValue the value to set.
+         * @throws Property.ReadOnlyException if the property is read only.
+         */
+        @SuppressWarnings("unchecked")
+        @Override
+        public void setValue(final Object newValue) {
+            if (copy == null) {
+                throw new Property.ReadOnlyException();
+            }
+            copy.setValue(newValue);
+        }
+
+        /**
+         * @return the type.
+         */
+        @Override
+        public Class<?> getType() {
+            return defaults.types[index];
+        }
+
+        /**
+         * @return true if the property has not been copied or the copy is read only.
+         */
+        @Override
+        public boolean isReadOnly() {
+            return copy == null || copy.isReadOnly();
+        }
+
+        /**
+         * Sets read only state copying the property to the item when it is made writable.
+         * @param newStatus the read only state to set.
+         */
+        @Override
+        public void setReadOnly(final boolean newStatus) {
+            if (copy == null) {
+                if (newStatus) {
+                    return;
+                }
+                copy = copyProperty(index);
+            }
+            copy.setReadOnly(newStatus);
+        }
+
+        /**
+         * @return the value as string or null.
+         */
+        @Override
+        public String toString() {
+            final Object value = getValue();
+            return value != null ? value.toString() : null;
+        }
+    }
+}
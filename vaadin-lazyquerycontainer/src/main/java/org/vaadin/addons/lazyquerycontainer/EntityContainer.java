@@ -18,8 +18,7 @@ package org.vaadin.addons.lazyquerycontainer;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
-
-import com.vaadin.data.util.BeanItem;
+import javax.persistence.EntityManagerFactory;
 
 /**
  * EntityContainer enables using JPA entities with lazy batch loading, filter, sort
@@ -51,6 +50,25 @@ public final class EntityContainer<T extends Object> extends LazyQueryContainer
                 entityClass, batchSize, nativeSortPropertyIds, nativeSortPropertyAscendingStates),
                 new EntityQueryFactory());
     }
+
+    /**
+     * Constructor which configures query definition for accessing JPA entities
+     * with own EntityManager for each loaded batch and each commit. Entities are
+     * detached and transactions are managed by the container.
+     * @param entityManagerFactory The JPA EntityManagerFactory.
+     * @param compositeItems True f items are wrapped to CompositeItems.
+     * @param entityClass The entity class.
+     * @param batchSize The batch size.
+     * @param nativeSortPropertyIds Properties participating in the native sort.
+     * @param nativeSortPropertyAscendingStates List of property sort directions for the native sort.
+     */
+    public EntityContainer(final EntityManagerFactory entityManagerFactory, final boolean compositeItems,
+            final Class<?> entityClass, final int batchSize,
+            final Object[] nativeSortPropertyIds, final boolean[] nativeSortPropertyAscendingStates) {
+        super(new EntityQueryDefinition(entityManagerFactory, compositeItems,
+                entityClass, batchSize, nativeSortPropertyIds, nativeSortPropertyAscendingStates),
+                new EntityQueryFactory());
+    }
     /**
      * Filters the container content by setting JPQL where criteria.  The entity expression
      * in generated JPQL queries is "e". Where keyword is not to be included. Refresh of container
@@ -87,19 +105,16 @@ public final class EntityContainer<T extends Object> extends LazyQueryContainer
     }
     
     /**
-     * Gets entity at given index.
+     * Gets entity at given index. In projection mode the entity is loaded by
+     * identifier of the projected item. If only visible properties have been
+     * loaded the entity is loaded together with rest of the batch.
      * @param index The index of the entity.
      * @return the entity.
      */
     @SuppressWarnings("unchecked")
     public T getEntity(final int index) {
-        if (getQueryView().getQueryDefinition().isCompositeItems()) {
-            final CompositeItem compositeItem = (CompositeItem) getItem(new Integer(index));
-            final BeanItem<T> beanItem = (BeanItem<T>) compositeItem.getItem("bean");
-            return beanItem.getBean();
-        } else { 
-            return ((BeanItem<T>) getItem(new Integer(index))).getBean();
-        }
+        return (T) EntityQuery.getEntity((EntityQueryDefinition) getQueryView().getQueryDefinition(),
+                getItem(new Integer(index)));
     }
 
 }
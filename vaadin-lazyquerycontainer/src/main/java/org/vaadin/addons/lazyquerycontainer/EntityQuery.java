@@ -15,15 +15,25 @@
  */
 package org.vaadin.addons.lazyquerycontainer;
 
-import java.beans.BeanInfo;
-import java.beans.Introspector;
-import java.beans.PropertyDescriptor;
 import java.io.Serializable;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.FlushModeType;
+import javax.persistence.PersistenceUnitUtil;
 
 import com.vaadin.data.Item;
 import com.vaadin.data.util.BeanItem;
@@ -34,11 +44,9 @@ import com.vaadin.data.util.ObjectProperty;
  * definition properties to CompositeItems.
  * @author Tommi S.E. Laukkanen
  */
-public class EntityQuery implements Query, Serializable {
+public class EntityQuery implements ReleasingQuery, StreamingQuery, CountingQuery, Serializable {
     /** Java serialization version UID. */
     private static final long serialVersionUID = 1L;
-    /** The JPA EntityManager. */
-    private final EntityManager entityManager;
     /** Flag reflecting whether application manages transactions. */
     private final boolean applicationTransactionManagement;
     /** The JPA entity class. */
@@ -51,6 +59,8 @@ public class EntityQuery implements Query, Serializable {
     private final String deletePsql;
     /** The parameters to set to JPA query. */
     private final Map<String, Object> selectParameters;
+    /** The hints to set to JPA select queries. */
+    private final Map<String, Object> queryHints;
     /**
      * QueryDefinition contains definition of the query properties and batch
      * size.
@@ -60,6 +70,20 @@ public class EntityQuery implements Query, Serializable {
     private int querySize = -1;
     /** The entity PSQL definition. */
     private final EntityQueryDefinition.EntityPsqlDefinition entityPsqlDefinition;
+    /** The JPA select query reused between batches. */
+    private transient javax.persistence.Query selectQuery;
+    /** True if selected attributes are loaded as read only projection items. */
+    private final boolean projection;
+    /** The resolved default values of new entities or null if not resolved yet. */
+    private transient BeanMetadata.DefaultValues defaultValues;
+    /** The default properties shared by composite items or null if not resolved yet. */
+    private transient DefaultPropertyItem.Defaults defaultProperties;
+    /** The entity class the default properties were resolved for. */
+    private transient Class<?> defaultPropertiesEntityClass;
+    /** The first batch loaded in parallel with the count query or null. */
+    private transient FutureTask<List<Item>> firstBatch;
+    /** The count of items requested by the first batch prefetch. */
+    private transient int firstBatchSize;
 
     /**
      * Constructor for configuring the query.
@@ -67,14 +91,15 @@ public class EntityQuery implements Query, Serializable {
      */
     public EntityQuery(final EntityQueryDefinition entityQueryDefinition) {
         this.entityPsqlDefinition = entityQueryDefinition.getEntityPsqlDefinition();
-        this.entityManager = entityQueryDefinition.getEntityManager();
         this.queryDefinition = entityQueryDefinition;
         this.entityClass = entityQueryDefinition.getEntityClass();
         this.selectPsql = entityPsqlDefinition.getSelectPsql();
         this.selectCountPsql = entityPsqlDefinition.getSelectCountPsql();
         this.deletePsql = entityPsqlDefinition.getDeletePsql();
         this.selectParameters = entityQueryDefinition.getWhereParameters();
+        this.queryHints = entityQueryDefinition.getQueryHints();
         this.applicationTransactionManagement = entityQueryDefinition.isApplicationManagedTransactions();
+        this.projection = entityQueryDefinition.isProjection();
     }
 
     /**
@@ -85,14 +110,10 @@ public class EntityQuery implements Query, Serializable {
     public final Item constructItem() {
         try {
             final Object entity = entityClass.newInstance();
-            final BeanInfo info = Introspector.getBeanInfo(entityClass);
-            for (final PropertyDescriptor pd : info.getPropertyDescriptors()) {
-                for (final Object propertyId : queryDefinition.getPropertyIds()) {
-                    if (pd.getName().equals(propertyId)) {
-                        pd.getWriteMethod().invoke(entity, queryDefinition.getPropertyDefaultValue(propertyId));
-                    }
-                }
+            if (defaultValues == null) {
+                defaultValues = BeanMetadata.getBeanMetadata(entityClass).getDefaultValues(queryDefinition);
             }
+            defaultValues.apply(entity);
             return toItem(entity);
         } catch (final Exception e) {
             throw new RuntimeException("Error in bean construction or property population with default values.", e);
@@ -100,42 +121,198 @@ public class EntityQuery implements Query, Serializable {
     }
 
     /**
-     * Number of beans returned by query.
+     * Number of beans returned by query. If first batch prefetch is enabled
+     * the first batch is loaded in background while the count query is executed.
+     * If counts are cached the count query is executed only for new filters.
      * @return number of beans.
      */
     @Override
     public int size() {
         if (querySize == -1) {
-            final javax.persistence.Query query = entityManager.createQuery(selectCountPsql);
+            final Integer cachedCount = queryDefinition.getCachedCount(selectCountPsql, selectParameters);
+            if (cachedCount != null) {
+                querySize = cachedCount;
+                return querySize;
+            }
+            if (queryDefinition.isPrefetchFirstBatch() && queryDefinition.isDetachedEntities()) {
+                firstBatchSize = queryDefinition.getBatchSize();
+                firstBatch = prefetchItems(firstBatchSize);
+            }
+            final EntityManager entityManager = queryDefinition.openEntityManager();
+            try {
+                querySize = countItems(entityManager);
+            } finally {
+                queryDefinition.closeEntityManager(entityManager);
+            }
+        }
+        return querySize;
+    }
+
+    /**
+     * Counts items up to the maximum count with own EntityManager so that
+     * counting can run concurrently with loading items. Capped counts first
+     * probe for the identifier at maximum count position and count all rows
+     * only if there are less items than the maximum count.
+     * @param maximumCount The maximum count or Integer.MAX_VALUE for exact count.
+     * @return number of items or maximumCount if there are at least that many items.
+     */
+    @Override
+    public int countItems(final int maximumCount) {
+        if (maximumCount <= 0) {
+            return 0;
+        }
+        final Integer cachedCount = queryDefinition.getCachedCount(selectCountPsql, selectParameters);
+        if (cachedCount != null) {
+            return Math.min(cachedCount, maximumCount);
+        }
+        final EntityManager entityManager = getOwnEntityManagerFactory().createEntityManager();
+        try {
+            if (maximumCount == Integer.MAX_VALUE || entityPsqlDefinition.getSelectIdentifiersPsql() == null) {
+                return Math.min(countItems(entityManager), maximumCount);
+            }
+            final javax.persistence.Query query = createQuery(entityManager,
+                    entityPsqlDefinition.getSelectIdentifiersPsql());
             if (selectParameters != null) {
                 for (final String parameterKey : selectParameters.keySet()) {
                     query.setParameter(parameterKey, selectParameters.get(parameterKey));
                 }
             }
-            querySize = ((Number) query.getSingleResult()).intValue();
+            query.setFirstResult(maximumCount - 1);
+            query.setMaxResults(1);
+            if (!query.getResultList().isEmpty()) {
+                return maximumCount;
+            }
+            return countItems(entityManager);
+        } finally {
+            entityManager.close();
         }
-        return querySize;
     }
 
     /**
-     * Load batch of items.
+     * Counts items with given EntityManager and caches the count if count
+     * caching is enabled.
+     * @param entityManager The EntityManager to use.
+     * @return number of items.
+     */
+    private int countItems(final EntityManager entityManager) {
+        final javax.persistence.Query query = createQuery(entityManager, selectCountPsql);
+        if (selectParameters != null) {
+            for (final String parameterKey : selectParameters.keySet()) {
+                query.setParameter(parameterKey, selectParameters.get(parameterKey));
+            }
+        }
+        final int count = ((Number) query.getSingleResult()).intValue();
+        queryDefinition.putCachedCount(selectCountPsql, selectParameters, count);
+        return count;
+    }
+
+    /**
+     * Load batch of items. If entity manager is created per batch the batch
+     * is loaded with own EntityManager which is closed after the load. The
+     * prefetched first batch is used if it contains the requested items or
+     * reached the end of the query result. Items are loaded normally if the
+     * prefetch failed.
      * @param startIndex Starting index of the item list.
      * @param count Count of the items to be retrieved.
      * @return List of items.
      */
     @Override
     public List<Item> loadItems(final int startIndex, final int count) {
-        final javax.persistence.Query query = entityManager.createQuery(selectPsql);
-        if (selectParameters != null) {
-            for (final String parameterKey : selectParameters.keySet()) {
-                query.setParameter(parameterKey, selectParameters.get(parameterKey));
+        if (firstBatch != null) {
+            final FutureTask<List<Item>> prefetchedBatch = firstBatch;
+            firstBatch = null;
+            if (startIndex == 0) {
+                // Runs the prefetch here if the executor has not started it yet.
+                prefetchedBatch.run();
+                final List<Item> items = getPrefetchedItems(prefetchedBatch);
+                if (items != null && (count <= items.size() || items.size() < firstBatchSize)) {
+                    return new ArrayList<Item>(items.subList(0, Math.min(count, items.size())));
+                }
+            } else {
+                prefetchedBatch.cancel(false);
             }
         }
+        final EntityManager entityManager = queryDefinition.openEntityManager();
+        try {
+            return loadItems(entityManager, startIndex, count, false);
+        } finally {
+            queryDefinition.closeEntityManager(entityManager);
+        }
+    }
+
+    /**
+     * Starts loading items from the beginning of the query with the prefetch
+     * executor and own EntityManager.
+     * @param count Count of the items to be retrieved.
+     * @return Future of the items.
+     */
+    private FutureTask<List<Item>> prefetchItems(final int count) {
+        final FutureTask<List<Item>> prefetchTask = new FutureTask<List<Item>>(new Callable<List<Item>>() {
+            @Override
+            public List<Item> call() {
+                final EntityManager entityManager = getOwnEntityManagerFactory().createEntityManager();
+                try {
+                    return loadItems(entityManager, 0, count, true);
+                } finally {
+                    entityManager.close();
+                }
+            }
+        });
+        queryDefinition.getPrefetchExecutor().execute(prefetchTask);
+        return prefetchTask;
+    }
+
+    /**
+     * Waits for prefetched items. Failed prefetch is not reported as the
+     * items are loaded again in the calling thread.
+     * @param prefetchedBatch Future of the prefetched items.
+     * @return the prefetched items or null if prefetch failed or waiting was interrupted.
+     */
+    private static List<Item> getPrefetchedItems(final Future<List<Item>> prefetchedBatch) {
+        try {
+            return prefetchedBatch.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (final ExecutionException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Load batch of items with given EntityManager.
+     * @param entityManager The EntityManager to use.
+     * @param startIndex Starting index of the item list.
+     * @param count Count of the items to be retrieved.
+     * @param ownEntityManagers True if entities of lazy entity items are loaded with own EntityManagers.
+     * @return List of items.
+     */
+    private List<Item> loadItems(final EntityManager entityManager, final int startIndex, final int count,
+            final boolean ownEntityManagers) {
+        final javax.persistence.Query query = getSelectQuery(entityManager);
         query.setFirstResult(startIndex);
         query.setMaxResults(count);
 
         final List<?> entities = query.getResultList();
         final List<Item> items = new ArrayList<Item>();
+        if (entityPsqlDefinition.getSelectedPropertyIds() != null && !projection) {
+            return toLazyEntityItems(entities, ownEntityManagers);
+        }
+        if (entityPsqlDefinition.getSelectedPropertyIds() != null) {
+            final Object[] propertyIds = queryDefinition.getPropertyIds().toArray();
+            final int[] columnIndexes = new int[propertyIds.length];
+            for (int i = 0; i < propertyIds.length; i++) {
+                columnIndexes[i] = entityPsqlDefinition.getSelectedPropertyIds().indexOf(propertyIds[i]);
+            }
+            if (queryDefinition.isPageItems()) {
+                return toPageItems(entities, propertyIds, columnIndexes);
+            }
+            for (final Object row : entities) {
+                items.add(toProjectionItem(row, propertyIds, columnIndexes));
+            }
+            return items;
+        }
+        fetchCollections(entityManager, entities);
         for (final Object entity : entities) {
             if (queryDefinition.isDetachedEntities()) {
                 entityManager.detach(entity);
@@ -146,41 +323,176 @@ public class EntityQuery implements Query, Serializable {
         return items;
     }
 
+    /**
+     * Fetches collection valued fetch paths of the entities with one query per
+     * fetch path. The queries return the same managed entities and hence
+     * initialize their collections in the persistence context.
+     * @param entityManager The EntityManager the entities were loaded with.
+     * @param entities The entities.
+     */
+    private void fetchCollections(final EntityManager entityManager, final List<?> entities) {
+        if (entityPsqlDefinition.getCollectionFetchPsqls().isEmpty() || entities.isEmpty()) {
+            return;
+        }
+        final PersistenceUnitUtil persistenceUnitUtil = entityManager.getEntityManagerFactory()
+                .getPersistenceUnitUtil();
+        final List<Object> identifiers = new ArrayList<Object>(entities.size());
+        for (final Object entity : entities) {
+            identifiers.add(persistenceUnitUtil.getIdentifier(entity));
+        }
+        for (final String collectionFetchPsql : entityPsqlDefinition.getCollectionFetchPsqls()) {
+            final javax.persistence.Query query = createQuery(entityManager, collectionFetchPsql);
+            query.setParameter("identifiers", identifiers);
+            query.getResultList();
+        }
+    }
+
+    /**
+     * Iterates all items in batches. Count, each batch and lazy entity loads use
+     * own EntityManager which is closed after use so that iterated entities are
+     * detached and never enter the persistence context shared with loadItems.
+     * The iterator can hence be used from other threads than the one using
+     * the shared EntityManager.
+     * @param batchSize The number of items loaded at once.
+     * @return Iterator of the items.
+     */
+    @Override
+    public Iterator<Item> iterateItems(final int batchSize) {
+        return new QueryItemIterator(this, batchSize) {
+            @Override
+            protected int size(final Query iteratedQuery) {
+                final EntityManager entityManager = getOwnEntityManagerFactory().createEntityManager();
+                try {
+                    return countItems(entityManager);
+                } finally {
+                    entityManager.close();
+                }
+            }
+
+            @Override
+            protected List<Item> loadItems(final Query iteratedQuery, final int startIndex, final int count) {
+                final EntityManager entityManager = getOwnEntityManagerFactory().createEntityManager();
+                try {
+                    return EntityQuery.this.loadItems(entityManager, startIndex, count, true);
+                } finally {
+                    entityManager.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Gets the factory for EntityManagers which are not shared with loadItems.
+     * @return the EntityManagerFactory.
+     */
+    private EntityManagerFactory getOwnEntityManagerFactory() {
+        if (queryDefinition.isEntityManagerPerBatch()) {
+            return queryDefinition.getEntityManagerFactory();
+        } else {
+            return queryDefinition.getEntityManager().getEntityManagerFactory();
+        }
+    }
+
+    /**
+     * Gets the select query with where parameters bound. With application managed
+     * transactions the query is created once and reused for all batches so that
+     * only paging parameters change between batches. Container managed entity managers
+     * may close the persistence context after query execution and entity managers
+     * created per batch are closed after the batch and hence query is created per
+     * batch in those cases. Only queries of the shared entity manager are reused.
+     * @param entityManager The EntityManager to create the query with.
+     * @return the select query.
+     */
+    private javax.persistence.Query getSelectQuery(final EntityManager entityManager) {
+        final boolean sharedEntityManager = entityManager == queryDefinition.getEntityManager();
+        if (selectQuery != null && sharedEntityManager) {
+            return selectQuery;
+        }
+        final javax.persistence.Query query = createQuery(entityManager, selectPsql);
+        if (selectParameters != null) {
+            for (final String parameterKey : selectParameters.keySet()) {
+                query.setParameter(parameterKey, selectParameters.get(parameterKey));
+            }
+        }
+        if (applicationTransactionManagement && sharedEntityManager) {
+            selectQuery = query;
+        }
+        return query;
+    }
+
+    /**
+     * Creates select query with query hints of the query definition set.
+     * @param entityManager The EntityManager to create the query with.
+     * @param psql The PSQL of the query.
+     * @return the query.
+     */
+    private javax.persistence.Query createQuery(final EntityManager entityManager, final String psql) {
+        final javax.persistence.Query query = entityManager.createQuery(psql);
+        for (final Map.Entry<String, Object> hint : queryHints.entrySet()) {
+            query.setHint(hint.getKey(), hint.getValue());
+        }
+        return query;
+    }
+
     /**
      * Saves the modifications done by container to the query result. Query will
      * be discarded after changes have been saved and new query loaded so that
-     * changed items are sorted appropriately.
+     * changed items are sorted appropriately. If entity manager is created per batch
+     * the modifications are saved with own EntityManager which is closed after commit.
+     * Flush mode is set to COMMIT while writing so that queries the provider runs
+     * during persist and merge, such as sequence lookups, do not flush pending
+     * writes in the middle of a write batch. Writes are flushed only when a write
+     * batch is full and on commit, after which the original flush mode is restored.
      * @param addedItems Items to be inserted.
      * @param modifiedItems Items to be updated.
      * @param removedItems Items to be deleted.
      */
     @Override
     public void saveItems(final List<Item> addedItems, final List<Item> modifiedItems, final List<Item> removedItems) {
+        final Set<Item> addedItemSet = toIdentitySet(addedItems);
+        final Set<Item> removedItemSet = toIdentitySet(removedItems);
+        final EntityManager entityManager = queryDefinition.openEntityManager();
+        final FlushModeType flushMode = entityManager.getFlushMode();
+        final boolean ownEntityManager = queryDefinition.isEntityManagerPerBatch();
+        final int writeBatchSize = queryDefinition.getWriteBatchSize();
+        final List<Object> writtenEntities = new ArrayList<Object>();
+        int writeCount = 0;
+        boolean cleared = false;
         if (applicationTransactionManagement) {
             entityManager.getTransaction().begin();
         }
         try {
+            entityManager.setFlushMode(FlushModeType.COMMIT);
             for (final Item item : addedItems) {
-                if (!removedItems.contains(item)) {
-                    entityManager.persist(fromItem(item));
+                if (!removedItemSet.contains(item)) {
+                    final Object entity = fromItem(item);
+                    entityManager.persist(entity);
+                    writtenEntities.add(entity);
+                    cleared = flushAndClear(entityManager, ++writeCount, writeBatchSize, ownEntityManager,
+                            writtenEntities) || cleared;
                 }
             }
             for (final Item item : modifiedItems) {
-                if (!removedItems.contains(item)) {
+                if (!removedItemSet.contains(item)) {
                     Object entity = fromItem(item);
-                    if (queryDefinition.isDetachedEntities()) {
+                    if (queryDefinition.isDetachedEntities() || cleared) {
                         entity = entityManager.merge(entity);
                     }
                     entityManager.persist(entity);
+                    writtenEntities.add(entity);
+                    cleared = flushAndClear(entityManager, ++writeCount, writeBatchSize, ownEntityManager,
+                            writtenEntities) || cleared;
                 }
             }
             for (final Item item : removedItems) {
-                if (!addedItems.contains(item)) {
+                if (!addedItemSet.contains(item)) {
                     Object entity = fromItem(item);
-                    if (queryDefinition.isDetachedEntities()) {
+                    if (queryDefinition.isDetachedEntities() || cleared) {
                         entity = entityManager.merge(entity);
                     }
                     entityManager.remove(entity);
+                    cleared = flushAndClear(entityManager, ++writeCount, writeBatchSize, ownEntityManager,
+                            writtenEntities) || cleared;
                 }
             }
             if (applicationTransactionManagement) {
@@ -193,6 +505,90 @@ public class EntityQuery implements Query, Serializable {
                 }
             }
             throw new RuntimeException(e);
+        } finally {
+            entityManager.setFlushMode(flushMode);
+            queryDefinition.closeEntityManager(entityManager);
+            queryDefinition.clearCountCache();
+        }
+    }
+
+    /**
+     * Flushes the persistence context when write batch is full. Persistence context
+     * of own EntityManager is cleared after flush. The shared EntityManager also
+     * manages entities of the view and hence only the persisted and merged
+     * entities written since previous flush are detached from it.
+     * @param entityManager the EntityManager entities are written with.
+     * @param writeCount number of entities written so far.
+     * @param writeBatchSize number of entities written between flushes or 0 to flush only on commit.
+     * @param ownEntityManager true if EntityManager is not shared with the view.
+     * @param writtenEntities persisted and merged entities written since previous flush.
+     * @return true if persistence context was cleared.
+     */
+    private boolean flushAndClear(final EntityManager entityManager, final int writeCount, final int writeBatchSize,
+            final boolean ownEntityManager, final List<Object> writtenEntities) {
+        if (writeBatchSize <= 0 || writeCount % writeBatchSize != 0) {
+            return false;
+        }
+        entityManager.flush();
+        if (ownEntityManager) {
+            entityManager.clear();
+        } else {
+            for (final Object entity : writtenEntities) {
+                entityManager.detach(entity);
+            }
+        }
+        writtenEntities.clear();
+        return ownEntityManager;
+    }
+
+    /**
+     * Converts list of items to set which compares items by identity.
+     * @param items the items.
+     * @return the identity set.
+     */
+    private static Set<Item> toIdentitySet(final List<Item> items) {
+        final Set<Item> itemSet = Collections.newSetFromMap(new IdentityHashMap<Item, Boolean>(items.size()));
+        itemSet.addAll(items);
+        return itemSet;
+    }
+
+    /**
+     * Detaches entities of the released items from the persistence context
+     * if entities are attached and detaching released entities is enabled.
+     * Entities of projected items and unloaded lazy items are not in the
+     * persistence context.
+     * @param items The items to release.
+     */
+    @Override
+    public void releaseItems(final Collection<Item> items) {
+        if (queryDefinition.isDetachedEntities() || !queryDefinition.isDetachReleasedEntities()) {
+            return;
+        }
+        final EntityManager entityManager = queryDefinition.getEntityManager();
+        for (final Item item : items) {
+            if (item instanceof ProjectionItem || item instanceof PageItem) {
+                continue;
+            }
+            if (item instanceof LazyEntityItem && !((LazyEntityItem) item).isEntityLoaded()) {
+                continue;
+            }
+            final Object entity = fromItem(item);
+            if (entityManager.contains(entity)) {
+                entityManager.detach(entity);
+            }
+        }
+    }
+
+    /**
+     * Cancels the first batch prefetch if its items have not been used.
+     * Prefetch which has already started is not interrupted as it runs
+     * with own EntityManager and its result is discarded.
+     */
+    @Override
+    public void releaseQuery() {
+        if (firstBatch != null) {
+            firstBatch.cancel(false);
+            firstBatch = null;
         }
     }
 
@@ -203,6 +599,7 @@ public class EntityQuery implements Query, Serializable {
      */
     @Override
     public boolean deleteAllItems() {
+        final EntityManager entityManager = queryDefinition.openEntityManager();
         if (applicationTransactionManagement) {
             entityManager.getTransaction().begin();
         }
@@ -218,50 +615,283 @@ public class EntityQuery implements Query, Serializable {
                 }
             }
             throw new RuntimeException(e);
+        } finally {
+            queryDefinition.closeEntityManager(entityManager);
+            queryDefinition.clearCountCache();
         }
         return true;
     }
 
     /**
      * Converts bean to Item. Implemented by encapsulating the Bean first to
-     * BeanItem and then to CompositeItem.
+     * BeanItem or LightweightBeanItem and then to CompositeItem.
      * @param entity bean to be converted.
      * @return item converted from bean.
      */
-    @SuppressWarnings({ "rawtypes", "unchecked" })
     protected final Item toItem(final Object entity) {
+        final Item beanItem;
+        if (queryDefinition.isLightweightBeanItems()) {
+            beanItem = new LightweightBeanItem<Object>(entity);
+        } else {
+            beanItem = new BeanItem<Object>(entity);
+        }
         if (queryDefinition.isCompositeItems()) {
-            final BeanItem<?> beanItem = new BeanItem<Object>(entity);
-
-            final CompositeItem compositeItem = new CompositeItem();
+            final CompositeItem compositeItem = new CompositeItem(new DefaultPropertyItem(
+                    getDefaultProperties(entity.getClass(), beanItem)));
             compositeItem.addItem("bean", beanItem);
+            return compositeItem;
+        } else {
+            return beanItem;
+        }
+    }
+
+    /**
+     * Gets default properties of composite items resolving them if entity class
+     * has changed. Synchronized as items are converted also by the prefetch executor.
+     * @param beanEntityClass The class of the converted entity.
+     * @param beanItem The bean item of the entity.
+     * @return the default properties.
+     */
+    private synchronized DefaultPropertyItem.Defaults getDefaultProperties(final Class<?> beanEntityClass,
+            final Item beanItem) {
+        if (defaultProperties == null || defaultPropertiesEntityClass != beanEntityClass) {
+            defaultProperties = new DefaultPropertyItem.Defaults(queryDefinition, beanItem.getItemPropertyIds());
+            defaultPropertiesEntityClass = beanEntityClass;
+        }
+        return defaultProperties;
+    }
+
+    /**
+     * Converts projected row to read only ProjectionItem. Properties which
+     * are not entity attributes are added with default values if items are
+     * composite items.
+     * @param row the projected row with identifier as first value.
+     * @param propertyIds the property IDs of the query definition.
+     * @param columnIndexes the row column indexes of the properties or -1 if property is not selected.
+     * @return item converted from row.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    protected final Item toProjectionItem(final Object row, final Object[] propertyIds, final int[] columnIndexes) {
+        final Object[] values;
+        if (row instanceof Object[]) {
+            values = (Object[]) row;
+        } else {
+            values = new Object[] { row };
+        }
+        final ProjectionItem item = new ProjectionItem(values[0]);
+        for (int i = 0; i < propertyIds.length; i++) {
+            final Object propertyId = propertyIds[i];
+            if (columnIndexes[i] != -1) {
+                item.addItemProperty(propertyId, new ObjectProperty(values[columnIndexes[i]],
+                        queryDefinition.getPropertyType(propertyId), true));
+            } else if (queryDefinition.isCompositeItems()) {
+                item.addItemProperty(propertyId, new ObjectProperty(queryDefinition.getPropertyDefaultValue(propertyId),
+                        queryDefinition.getPropertyType(propertyId), queryDefinition.isPropertyReadOnly(propertyId)));
+            }
+        }
+        return item;
+    }
 
+    /**
+     * Converts projected rows to PageItems which share one page of values.
+     * Properties which are not entity attributes are added with default
+     * values if items are composite items.
+     * @param rows the projected rows with identifier as first value.
+     * @param propertyIds the property IDs of the query definition.
+     * @param columnIndexes the row column indexes of the properties or -1 if property is not selected.
+     * @return items converted from rows.
+     */
+    private List<Item> toPageItems(final List<?> rows, final Object[] propertyIds, final int[] columnIndexes) {
+        int columnCount = 0;
+        for (int i = 0; i < propertyIds.length; i++) {
+            if (columnIndexes[i] != -1 || queryDefinition.isCompositeItems()) {
+                columnCount++;
+            }
+        }
+        final Object[] pagePropertyIds = new Object[columnCount];
+        final Class<?>[] types = new Class<?>[columnCount];
+        final boolean[] projectedStates = new boolean[columnCount];
+        final boolean[] readOnlyStates = new boolean[columnCount];
+        final int[] pageColumnIndexes = new int[columnCount];
+        int column = 0;
+        for (int i = 0; i < propertyIds.length; i++) {
+            if (columnIndexes[i] != -1 || queryDefinition.isCompositeItems()) {
+                pagePropertyIds[column] = propertyIds[i];
+                types[column] = queryDefinition.getPropertyType(propertyIds[i]);
+                projectedStates[column] = columnIndexes[i] != -1;
+                readOnlyStates[column] = projectedStates[column] || queryDefinition.isPropertyReadOnly(propertyIds[i]);
+                pageColumnIndexes[column] = columnIndexes[i];
+                column++;
+            }
+        }
+
+        final PageItem.Page page = new PageItem.Page(pagePropertyIds, types, projectedStates, readOnlyStates,
+                rows.size());
+        final List<Item> items = new ArrayList<Item>(rows.size());
+        for (int row = 0; row < rows.size(); row++) {
+            final Object rowValue = rows.get(row);
+            final Object[] values;
+            if (rowValue instanceof Object[]) {
+                values = (Object[]) rowValue;
+            } else {
+                values = new Object[] { rowValue };
+            }
+            page.setIdentifier(row, values[0]);
+            for (int i = 0; i < columnCount; i++) {
+                if (pageColumnIndexes[i] != -1) {
+                    page.setValue(row, i, values[pageColumnIndexes[i]]);
+                } else {
+                    page.setValue(row, i, queryDefinition.getPropertyDefaultValue(pagePropertyIds[i]));
+                }
+            }
+            items.add(new PageItem(page, row));
+        }
+        return items;
+    }
+
+    /**
+     * Converts rows of eagerly selected attributes to LazyEntityItems. Items contain
+     * the entity properties followed by query definition properties which are
+     * not entity properties if items are composite items. The property metadata
+     * is shared by the items of the page and properties are created on demand.
+     * Entities of all items are loaded together when entity is required by any
+     * of the items.
+     * @param rows the selected rows with identifier as first value.
+     * @param ownEntityManagers True if entities are loaded with own EntityManagers.
+     * @return items converted from rows.
+     */
+    private List<Item> toLazyEntityItems(final List<?> rows, final boolean ownEntityManagers) {
+        final List<String> selectedPropertyIds = entityPsqlDefinition.getSelectedPropertyIds();
+        final BeanMetadata beanMetadata = BeanMetadata.getBeanMetadata(entityClass);
+        final List<String> propertyIds = beanMetadata.getPropertyIds();
+
+        final LazyEntityItem.Page page = new LazyEntityItem.Page(new PageEntityLoader(ownEntityManagers));
+        for (int i = 0; i < propertyIds.size(); i++) {
+            page.addEntityProperty(propertyIds.get(i), beanMetadata.getPropertyType(i),
+                    beanMetadata.isPropertyReadOnly(i), selectedPropertyIds.indexOf(propertyIds.get(i)));
+        }
+        if (queryDefinition.isCompositeItems()) {
             for (final Object propertyId : queryDefinition.getPropertyIds()) {
-                if (compositeItem.getItemProperty(propertyId) == null) {
-                    compositeItem.addItemProperty(
-                            propertyId,
-                            new ObjectProperty(queryDefinition.getPropertyDefaultValue(propertyId), queryDefinition
-                                    .getPropertyType(propertyId), queryDefinition.isPropertyReadOnly(propertyId)));
+                if (!page.hasProperty(propertyId)) {
+                    page.addDefaultProperty(propertyId, queryDefinition.getPropertyType(propertyId),
+                            queryDefinition.getPropertyDefaultValue(propertyId),
+                            queryDefinition.isPropertyReadOnly(propertyId));
                 }
             }
+        }
 
-            return compositeItem;
+        final List<Item> items = new ArrayList<Item>(rows.size());
+        for (final Object row : rows) {
+            if (row instanceof Object[]) {
+                items.add(new LazyEntityItem(((Object[]) row)[0], (Object[]) row, page));
+            } else {
+                items.add(new LazyEntityItem(row, null, page));
+            }
+        }
+        return items;
+    }
+
+    /**
+     * Loads entities of a LazyEntityItem page with single query.
+     * @author Tommi S.E. Laukkanen
+     */
+    private final class PageEntityLoader implements LazyEntityItem.EntityLoader {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** True if entities are loaded with own EntityManager instead of the shared one. */
+        private final boolean ownEntityManager;
+
+        /**
+         * Constructor for configuring the loader.
+         * @param ownEntityManager True if entities are loaded with own EntityManager instead of the shared one.
+         */
+        private PageEntityLoader(final boolean ownEntityManager) {
+            this.ownEntityManager = ownEntityManager;
+        }
+
+        /**
+         * Loads entities by identifiers.
+         * @param identifiers The identifiers of the entities.
+         * @return Map from identifiers to loaded entities.
+         */
+        @Override
+        public Map<Object, Object> loadEntities(final List<Object> identifiers) {
+            final EntityManager entityManager;
+            if (ownEntityManager) {
+                entityManager = getOwnEntityManagerFactory().createEntityManager();
+            } else {
+                entityManager = queryDefinition.openEntityManager();
+            }
+            try {
+                final javax.persistence.Query query = createQuery(entityManager,
+                        entityPsqlDefinition.getSelectByIdentifiersPsql());
+                query.setParameter("identifiers", identifiers);
+                final List<?> resultList = query.getResultList();
+                fetchCollections(entityManager, resultList);
+                final Map<Object, Object> entities = new HashMap<Object, Object>();
+                for (final Object entity : resultList) {
+                    entities.put(entityManager.getEntityManagerFactory().getPersistenceUnitUtil()
+                            .getIdentifier(entity), entity);
+                    if (queryDefinition.isDetachedEntities()) {
+                        entityManager.detach(entity);
+                    }
+                }
+                return entities;
+            } finally {
+                if (ownEntityManager) {
+                    entityManager.close();
+                } else {
+                    queryDefinition.closeEntityManager(entityManager);
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets entity of the item. Entities of projected items are loaded by
+     * identifier and detached if entities are detached. Used by EntityQuery
+     * and EntityContainer to resolve entities of all item types.
+     * @param queryDefinition the query definition the item was loaded with.
+     * @param item the item.
+     * @return the entity or null if entity of projected item does not exist.
+     */
+    static Object getEntity(final EntityQueryDefinition queryDefinition, final Item item) {
+        final Object identifier;
+        if (item instanceof ProjectionItem) {
+            identifier = ((ProjectionItem) item).getIdentifier();
+        } else if (item instanceof PageItem) {
+            identifier = ((PageItem) item).getIdentifier();
+        } else if (item instanceof LazyEntityItem) {
+            return ((LazyEntityItem) item).getEntity();
+        } else if (queryDefinition.isCompositeItems()) {
+            return LightweightBeanItem.getBean(((CompositeItem) item).getItem("bean"));
         } else {
-            return new BeanItem<Object>(entity);
+            return LightweightBeanItem.getBean(item);
+        }
+        final EntityManager entityManager = queryDefinition.openEntityManager();
+        try {
+            final Object entity = entityManager.find(queryDefinition.getEntityClass(), identifier);
+            if (entity != null && queryDefinition.isDetachedEntities()) {
+                entityManager.detach(entity);
+            }
+            return entity;
+        } finally {
+            queryDefinition.closeEntityManager(entityManager);
         }
     }
 
     /**
-     * Converts item back to bean.
+     * Converts item back to bean. Entities of projected items are loaded
+     * by identifier.
      * @param item Item to be converted to bean.
      * @return Resulting bean.
      */
     protected final Object fromItem(final Item item) {
-        if (queryDefinition.isCompositeItems()) {
-            return (Object) ((BeanItem<?>) (((CompositeItem) item).getItem("bean"))).getBean();
-        } else {
-            return ((BeanItem<?>) item).getBean();
+        final Object entity = getEntity(queryDefinition, item);
+        if (entity == null) {
+            throw new IllegalStateException("Entity " + entityClass.getName() + " of projected item does not exist.");
         }
+        return entity;
     }
 
     /**
@@ -16,9 +16,36 @@
 package org.vaadin.addons.lazyquerycontainer;
 
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.regex.Pattern;
 
+import javax.persistence.CacheRetrieveMode;
 import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.metamodel.Attribute;
+import javax.persistence.metamodel.EntityType;
+import javax.persistence.metamodel.SingularAttribute;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Container.UnsupportedFilterException;
+import com.vaadin.data.util.filter.AbstractJunctionFilter;
+import com.vaadin.data.util.filter.And;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+import com.vaadin.data.util.filter.SimpleStringFilter;
 
 /**
  * Defines entity query definition to be used with JPA entity managers.
@@ -27,14 +54,39 @@ import javax.persistence.EntityManager;
 public class EntityQueryDefinition extends LazyQueryDefinition {
     /** Serial version UID for this class. */
     private static final long serialVersionUID = 1L;
-    /** The JPA EntityManager. */
+    /** Prefix of the parameter names generated for filter values. Reserved from where parameters. */
+    public static final String FILTER_PARAMETER_PREFIX = "lazyQueryContainerFilterParameter";
+    /** Escape character used in generated like expressions. */
+    private static final char LIKE_ESCAPE_CHARACTER = '!';
+    /** Standard JPA query timeout hint. */
+    private static final String HINT_QUERY_TIMEOUT = "javax.persistence.query.timeout";
+    /** Standard JPA shared cache retrieve mode hint. */
+    private static final String HINT_CACHE_RETRIEVE_MODE = "javax.persistence.cache.retrieveMode";
+    /** EclipseLink JDBC fetch size hint. */
+    private static final String HINT_ECLIPSELINK_FETCH_SIZE = "eclipselink.jdbc.fetch-size";
+    /** EclipseLink read only hint. */
+    private static final String HINT_ECLIPSELINK_READ_ONLY = "eclipselink.read-only";
+    /** Hibernate JDBC fetch size hint. */
+    private static final String HINT_HIBERNATE_FETCH_SIZE = "org.hibernate.fetchSize";
+    /** Hibernate read only hint. */
+    private static final String HINT_HIBERNATE_READ_ONLY = "org.hibernate.readOnly";
+    /** Pattern of property paths accepted in filters. */
+    private static final Pattern PROPERTY_PATH_PATTERN =
+            Pattern.compile("[A-Za-z_$][A-Za-z0-9_$]*(\\.[A-Za-z_$][A-Za-z0-9_$]*)*");
+    /** The JPA EntityManager or null if entity manager is created per batch. */
     private final EntityManager entityManager;
+    /** The JPA EntityManagerFactory or null if single entity manager is used. */
+    private final EntityManagerFactory entityManagerFactory;
     /** Class of the persistent entity type. */
     private Class<?> entityClass;
     /** The where criteria excluding where keyword. */
     private String whereCriteria;
     /** The where parameters to set to JPA query. */
     private Map<String, Object> whereParameters;
+    /** The where criteria translated from filters or null if there are no filters. */
+    private String filterCriteria;
+    /** The parameters of where criteria translated from filters. */
+    private Map<String, Object> filterParameters = new HashMap<String, Object>();
     /** The native sort property IDs. */
     private Object[] nativeSortPropertyIds;
     /** The native sort ascending and descending states. */
@@ -47,8 +99,35 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
     private boolean detachedEntities;
     /** True if application manages transactions instead of container. */
     private boolean applicationManagedTransactions;
+    /** True if only the queried properties are selected instead of entities. */
+    private boolean projection;
+    /** True if projected rows are loaded as PageItems sharing a page value array. */
+    private boolean pageItems;
+    /** Number of entities written between flushes or 0 to flush only on commit. */
+    private int writeBatchSize;
+    /** True if attached entities are detached when their items are released by the view. */
+    private boolean detachReleasedEntities = true;
+    /** True if first batch is loaded in parallel with the count query. */
+    private boolean prefetchFirstBatch;
+    /** The executor loading the prefetched first batches. */
+    private Executor prefetchExecutor = new DaemonThreadExecutor("EntityQueryPrefetch");
+    /** The association paths fetched together with the entities. */
+    private final List<String> fetchPaths = new ArrayList<String>();
+    /** True if entities are loaded read only. */
+    private boolean readOnly;
+    /** The JDBC fetch size or 0 if batch size is used as fetch size. */
+    private int fetchSize;
+    /** The query timeout in milliseconds or 0 if queries do not time out. */
+    private int queryTimeout;
+    /** The shared cache retrieve mode or null if provider default is used. */
+    private CacheRetrieveMode cacheRetrieveMode;
+    /** True if counts are cached by count PSQL and where parameters. */
+    private boolean cacheCounts;
+    /** Cache of generated PSQL definitions keyed by entity, where criteria and sort state. */
+    private transient Map<String, EntityPsqlDefinition> entityPsqlDefinitionCache;
+    /** Cache of counts keyed by count PSQL and where parameters. */
+    private transient Map<List<Object>, Integer> countCache;
 
-    
     /**
      * Constructor for configuring query definition.
      * @param entityManager The JPA EntityManager.
@@ -64,8 +143,48 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
             final boolean detachedEntities, final boolean compositeItems, 
             final Class<?> entityClass, final int batchSize,
             final Object[] nativeSortPropertyIds, final boolean[] nativeSortPropertyAscendingStates) {
+        this(entityManager, null, applicationManagedTransactions, detachedEntities, compositeItems, entityClass,
+                batchSize, nativeSortPropertyIds, nativeSortPropertyAscendingStates);
+    }
+
+    /**
+     * Constructor for configuring query definition which uses own short lived
+     * EntityManager for each loaded batch and for each commit. Entities are always
+     * detached and transactions are managed by the query. As no EntityManager
+     * is shared between batches, batches can be loaded concurrently.
+     * @param entityManagerFactory The JPA EntityManagerFactory.
+     * @param compositeItems True f items are wrapped to CompositeItems.
+     * @param entityClass The entity class.
+     * @param batchSize The batch size.
+     * @param nativeSortPropertyIds Properties participating in the native sort.
+     * @param nativeSortPropertyAscendingStates List of property sort directions for the native sort.
+     */
+    public EntityQueryDefinition(final EntityManagerFactory entityManagerFactory, final boolean compositeItems,
+            final Class<?> entityClass, final int batchSize,
+            final Object[] nativeSortPropertyIds, final boolean[] nativeSortPropertyAscendingStates) {
+        this(null, entityManagerFactory, true, true, compositeItems, entityClass,
+                batchSize, nativeSortPropertyIds, nativeSortPropertyAscendingStates);
+    }
+
+    /**
+     * Constructor for configuring query definition with either EntityManager or EntityManagerFactory.
+     * @param entityManager The JPA EntityManager or null.
+     * @param entityManagerFactory The JPA EntityManagerFactory or null.
+     * @param applicationManagedTransactions True if application manages transactions instead of container.
+     * @param detachedEntities True of entities are detached from PersistenceContext.
+     * @param compositeItems True f items are wrapped to CompositeItems.
+     * @param entityClass The entity class.
+     * @param batchSize The batch size.
+     * @param nativeSortPropertyIds Properties participating in the native sort.
+     * @param nativeSortPropertyAscendingStates List of property sort directions for the native sort.
+     */
+    private EntityQueryDefinition(final EntityManager entityManager, final EntityManagerFactory entityManagerFactory,
+            final boolean applicationManagedTransactions, final boolean detachedEntities,
+            final boolean compositeItems, final Class<?> entityClass, final int batchSize,
+            final Object[] nativeSortPropertyIds, final boolean[] nativeSortPropertyAscendingStates) {
         super(compositeItems, batchSize);
         this.entityManager = entityManager;
+        this.entityManagerFactory = entityManagerFactory;
         this.applicationManagedTransactions = applicationManagedTransactions;
         this.entityClass = entityClass;
         this.nativeSortPropertyIds = nativeSortPropertyIds;
@@ -81,11 +200,21 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
     }
 
     /**
-     * Sets the where criteria. Where keyword is not to be included.
+     * Sets the where criteria. Where keyword is not to be included. Parameter
+     * names starting with FILTER_PARAMETER_PREFIX are reserved for filter values.
      * @param whereCriteria the where criteria to be included in JPA query.
      * @param whereParameters the where parameters to set to JPA query.
+     * @throws InvalidParameterException if a where parameter name is reserved for filter values.
      */
     public final void setWhereCriteria(final String whereCriteria, final Map<String, Object> whereParameters) {
+        if (whereParameters != null) {
+            for (final String parameterName : whereParameters.keySet()) {
+                if (parameterName.startsWith(FILTER_PARAMETER_PREFIX)) {
+                    throw new InvalidParameterException("Where parameter name is reserved for filter values: "
+                            + parameterName);
+                }
+            }
+        }
         this.whereCriteria = whereCriteria;
         this.whereParameters = whereParameters;
     }
@@ -101,12 +230,50 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
     }
 
     /**
-     * @return the entityManager
+     * @return the entityManager or null if entity manager is created per batch.
      */
     public final EntityManager getEntityManager() {
         return entityManager;
     }
 
+    /**
+     * @return the entityManagerFactory or null if single entity manager is used.
+     */
+    public final EntityManagerFactory getEntityManagerFactory() {
+        return entityManagerFactory;
+    }
+
+    /**
+     * @return true if own EntityManager is created for each batch and commit.
+     */
+    public final boolean isEntityManagerPerBatch() {
+        return entityManagerFactory != null;
+    }
+
+    /**
+     * Opens EntityManager for single batch load or commit. If entity manager
+     * is created per batch a new EntityManager is created from the factory,
+     * otherwise the shared EntityManager is returned. The EntityManager
+     * has to be released with closeEntityManager.
+     * @return the EntityManager.
+     */
+    public final EntityManager openEntityManager() {
+        if (entityManagerFactory != null) {
+            return entityManagerFactory.createEntityManager();
+        }
+        return entityManager;
+    }
+
+    /**
+     * Closes EntityManager opened with openEntityManager. The shared EntityManager is left open.
+     * @param openedEntityManager the EntityManager returned by openEntityManager.
+     */
+    public final void closeEntityManager(final EntityManager openedEntityManager) {
+        if (entityManagerFactory != null && openedEntityManager.isOpen()) {
+            openedEntityManager.close();
+        }
+    }
+
     /**
      * @return the applicationManagedTransactions
      */
@@ -121,6 +288,341 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
         return detachedEntities;
     }
 
+    /**
+     * @return the projection
+     */
+    public final boolean isProjection() {
+        return projection;
+    }
+
+    /**
+     * Sets whether query selects only the entity attributes listed in property IDs
+     * instead of entire entities. Projected rows are loaded as read only ProjectionItems
+     * and the entity is loaded on demand with EntityContainer.getEntity. If visible
+     * property IDs have been set then only visible properties are projected.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param projection the projection to set
+     */
+    public final void setProjection(final boolean projection) {
+        this.projection = projection;
+    }
+
+    /**
+     * @return the pageItems
+     */
+    public final boolean isPageItems() {
+        return pageItems;
+    }
+
+    /**
+     * Sets whether projected rows are loaded as flyweight PageItems instead of
+     * ProjectionItems. Values of all rows in a batch are stored in one shared
+     * array and read only properties are not retained, which minimizes objects
+     * per row in read only grids. Applies only in projection mode.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param pageItems the pageItems to set
+     */
+    public final void setPageItems(final boolean pageItems) {
+        this.pageItems = pageItems;
+    }
+
+    /**
+     * @return the writeBatchSize
+     */
+    public final int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    /**
+     * Sets the number of entities written between flushes when saving items. Own
+     * persistence context is cleared after each flush and flushed entities are
+     * detached from the shared EntityManager to keep the persistence context size
+     * bounded on large commits. JDBC batching of the flushed statements is a persistence
+     * unit setting which has to be enabled in persistence.xml, for example with
+     * eclipselink.jdbc.batch-writing=JDBC and eclipselink.jdbc.batch-writing.size
+     * for EclipseLink or hibernate.jdbc.batch_size for Hibernate. The batch size
+     * should match the write batch size.
+     * @param writeBatchSize the number of entities written between flushes or 0 to flush only on commit.
+     */
+    public final void setWriteBatchSize(final int writeBatchSize) {
+        this.writeBatchSize = writeBatchSize;
+    }
+
+    /**
+     * @return the detachReleasedEntities
+     */
+    public final boolean isDetachReleasedEntities() {
+        return detachReleasedEntities;
+    }
+
+    /**
+     * Sets whether attached entities are detached from the persistence context when
+     * the view evicts their unmodified items from cache. This keeps the persistence
+     * context size proportional to the view cache size. Enabled by default.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param detachReleasedEntities the detachReleasedEntities to set
+     */
+    public final void setDetachReleasedEntities(final boolean detachReleasedEntities) {
+        this.detachReleasedEntities = detachReleasedEntities;
+    }
+
+    /**
+     * @return the prefetchFirstBatch
+     */
+    public final boolean isPrefetchFirstBatch() {
+        return prefetchFirstBatch;
+    }
+
+    /**
+     * Sets whether the first batch is loaded in background with own EntityManager
+     * while the count query is executed so that the first rows are available after
+     * one database round trip instead of two. Applies only to detached entities
+     * as prefetched entities are not loaded to the shared EntityManager.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param prefetchFirstBatch the prefetchFirstBatch to set
+     */
+    public final void setPrefetchFirstBatch(final boolean prefetchFirstBatch) {
+        this.prefetchFirstBatch = prefetchFirstBatch;
+    }
+
+    /**
+     * @return the executor loading the prefetched first batches.
+     */
+    public final Executor getPrefetchExecutor() {
+        return prefetchExecutor;
+    }
+
+    /**
+     * Sets the executor loading the prefetched first batches. By default each
+     * prefetch runs in new daemon thread. Applications can provide a bounded
+     * executor to limit the number of concurrent prefetches. Prefetch which has
+     * not started when its items are needed is run in the calling thread and
+     * prefetch of discarded query is cancelled.
+     * @param prefetchExecutor the prefetchExecutor to set
+     */
+    public final void setPrefetchExecutor(final Executor prefetchExecutor) {
+        if (prefetchExecutor == null) {
+            throw new IllegalArgumentException("Prefetch executor has to be provided.");
+        }
+        this.prefetchExecutor = prefetchExecutor;
+    }
+
+    /**
+     * @return the cacheCounts
+     */
+    public final boolean isCacheCounts() {
+        return cacheCounts;
+    }
+
+    /**
+     * Sets whether counts are cached by where criteria, filters and their parameters.
+     * Sorting does not change the count so re-sorting and returning to a previously
+     * used filter do not execute count query. Cached counts are cleared when items
+     * are committed or deleted through the container. Changes made outside of the
+     * container are not visible in the count until {@link #clearCountCache()} is called.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param cacheCounts the cacheCounts to set
+     */
+    public final void setCacheCounts(final boolean cacheCounts) {
+        this.cacheCounts = cacheCounts;
+        clearCountCache();
+    }
+
+    /**
+     * Gets cached count for given count PSQL and parameters.
+     * @param countPsql The count PSQL.
+     * @param parameters The parameters of the count PSQL or null.
+     * @return the cached count or null if count is not cached or count caching is disabled.
+     */
+    public final synchronized Integer getCachedCount(final String countPsql, final Map<String, Object> parameters) {
+        if (!cacheCounts || countCache == null) {
+            return null;
+        }
+        return countCache.get(getCountCacheKey(countPsql, parameters));
+    }
+
+    /**
+     * Caches count for given count PSQL and parameters if count caching is enabled.
+     * @param countPsql The count PSQL.
+     * @param parameters The parameters of the count PSQL or null.
+     * @param count The count.
+     */
+    public final synchronized void putCachedCount(final String countPsql, final Map<String, Object> parameters,
+            final int count) {
+        if (!cacheCounts) {
+            return;
+        }
+        if (countCache == null) {
+            countCache = new BoundedCache<List<Object>, Integer>();
+        }
+        countCache.put(getCountCacheKey(countPsql, parameters), count);
+    }
+
+    /**
+     * Clears cached counts.
+     */
+    public final synchronized void clearCountCache() {
+        if (countCache != null) {
+            countCache.clear();
+        }
+    }
+
+    /**
+     * Gets count cache key which compares count PSQL and parameter values.
+     * @param countPsql The count PSQL.
+     * @param parameters The parameters of the count PSQL or null.
+     * @return the count cache key.
+     */
+    private static List<Object> getCountCacheKey(final String countPsql, final Map<String, Object> parameters) {
+        final Map<String, Object> parametersCopy = parameters == null ? new HashMap<String, Object>()
+                : new HashMap<String, Object>(parameters);
+        return Arrays.<Object>asList(countPsql, parametersCopy);
+    }
+
+    /**
+     * Adds association which is fetched together with the entities to avoid
+     * loading the association separately for each entity. Single valued
+     * associations are fetched with join in the batch query and collection
+     * valued associations with one additional query per batch. Fetch path
+     * has to be an association or element collection attribute of the entity.
+     * Fetch paths are not applied to projected attributes.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param fetchPath the attribute name of the association.
+     */
+    public final void addFetchPath(final String fetchPath) {
+        final Attribute<?, ?> attribute;
+        try {
+            attribute = getEntityType().getAttribute(fetchPath);
+        } catch (final IllegalArgumentException e) {
+            throw new InvalidParameterException("Unknown fetch path: " + fetchPath);
+        }
+        if (attribute == null || !(attribute.isAssociation() || attribute.isCollection())) {
+            throw new InvalidParameterException("Fetch path is not an association: " + fetchPath);
+        }
+        if (!fetchPaths.contains(fetchPath)) {
+            fetchPaths.add(fetchPath);
+        }
+    }
+
+    /**
+     * Removes all fetch paths.
+     * After this method has been called the Query has to be discarded immediately.
+     */
+    public final void removeFetchPaths() {
+        fetchPaths.clear();
+    }
+
+    /**
+     * @return the fetch paths
+     */
+    public final List<String> getFetchPaths() {
+        return Collections.unmodifiableList(fetchPaths);
+    }
+
+    /**
+     * @return the readOnly
+     */
+    public final boolean isReadOnly() {
+        return readOnly;
+    }
+
+    /**
+     * Sets whether entities are loaded read only. Providers skip change tracking
+     * snapshots of read only entities and hence modifications of attached read only
+     * entities are not saved. Intended for containers which are not edited or
+     * which use detached entities.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param readOnly the readOnly to set
+     */
+    public final void setReadOnly(final boolean readOnly) {
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * @return the fetchSize or 0 if batch size is used as fetch size.
+     */
+    public final int getFetchSize() {
+        return fetchSize;
+    }
+
+    /**
+     * Sets the JDBC fetch size. By default fetch size equals to batch size so that
+     * each batch is fetched in one round trip.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param fetchSize the fetchSize to set or 0 to use batch size.
+     */
+    public final void setFetchSize(final int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * @return the queryTimeout in milliseconds or 0 if queries do not time out.
+     */
+    public final int getQueryTimeout() {
+        return queryTimeout;
+    }
+
+    /**
+     * Sets the timeout of batch and count queries.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param queryTimeout the queryTimeout in milliseconds or 0 if queries do not time out.
+     */
+    public final void setQueryTimeout(final int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * @return the cacheRetrieveMode or null if provider default is used.
+     */
+    public final CacheRetrieveMode getCacheRetrieveMode() {
+        return cacheRetrieveMode;
+    }
+
+    /**
+     * Sets whether loaded entities are retrieved from the shared cache or from database.
+     * After this method has been called the Query has to be discarded immediately.
+     * @param cacheRetrieveMode the cacheRetrieveMode to set or null to use provider default.
+     */
+    public final void setCacheRetrieveMode(final CacheRetrieveMode cacheRetrieveMode) {
+        this.cacheRetrieveMode = cacheRetrieveMode;
+    }
+
+    /**
+     * Gets the hints set to batch and count queries. Hints contain the standard
+     * JPA hints and the equivalent EclipseLink and Hibernate hints. Providers
+     * ignore hints they do not recognize.
+     * @return map of hint names to values.
+     */
+    public final Map<String, Object> getQueryHints() {
+        final Map<String, Object> hints = new LinkedHashMap<String, Object>();
+        final Integer effectiveFetchSize = fetchSize > 0 ? fetchSize : getBatchSize();
+        hints.put(HINT_ECLIPSELINK_FETCH_SIZE, effectiveFetchSize);
+        hints.put(HINT_HIBERNATE_FETCH_SIZE, effectiveFetchSize);
+        if (queryTimeout > 0) {
+            hints.put(HINT_QUERY_TIMEOUT, queryTimeout);
+        }
+        if (cacheRetrieveMode != null) {
+            hints.put(HINT_CACHE_RETRIEVE_MODE, cacheRetrieveMode);
+        }
+        if (readOnly) {
+            hints.put(HINT_ECLIPSELINK_READ_ONLY, Boolean.TRUE);
+            hints.put(HINT_HIBERNATE_READ_ONLY, Boolean.TRUE);
+        }
+        return hints;
+    }
+
+    /**
+     * Gets the metamodel type of the entity.
+     * @return the entity type.
+     */
+    private EntityType<?> getEntityType() {
+        if (entityManagerFactory != null) {
+            return entityManagerFactory.getMetamodel().entity(entityClass);
+        } else {
+            return entityManager.getMetamodel().entity(entityClass);
+        }
+    }
+
     /**
      * Gets class of the persistent entity type.
      * @return the entityClass
@@ -130,21 +632,68 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
     }
     
     /**
-     * Method which generates and returns entity PSQLs based
-     * on query definition parameters.
+     * Method which returns entity PSQLs based on query definition parameters.
+     * Generated PSQLs are cached by entity class, where criteria and sort state
+     * so that queries constructed with unchanged definition reuse them.
      * @return the generated EntitySelectDefinition.
      */
     public final EntityPsqlDefinition getEntityPsqlDefinition() {
-        final StringBuilder fromBuilder = new StringBuilder(" from ");
-        fromBuilder.append(entityClass.getSimpleName());
-        fromBuilder.append(" as e");
-        final StringBuilder whereBuilder = new StringBuilder(" where ");
-        whereBuilder.append(whereCriteria);
-        final StringBuilder orderByBuilder = new StringBuilder(" order by");        
         if (sortPropertyIds.length == 0) {
             sortPropertyIds = nativeSortPropertyIds;
             sortPropertyAscendingStates = nativeSortPropertyAscendingStates;
         }
+        if (entityPsqlDefinitionCache == null) {
+            entityPsqlDefinitionCache = new BoundedCache<String, EntityPsqlDefinition>();
+        }
+        final String cacheKey = getEntityPsqlDefinitionCacheKey();
+        EntityPsqlDefinition entityPsqlDefinition = entityPsqlDefinitionCache.get(cacheKey);
+        if (entityPsqlDefinition == null) {
+            entityPsqlDefinition = generateEntityPsqlDefinition();
+            entityPsqlDefinitionCache.put(cacheKey, entityPsqlDefinition);
+        }
+        return entityPsqlDefinition;
+    }
+
+    /**
+     * Constructs the key identifying generated PSQLs in the cache.
+     * @return the cache key.
+     */
+    private String getEntityPsqlDefinitionCacheKey() {
+        final StringBuilder keyBuilder = new StringBuilder(entityClass.getName());
+        keyBuilder.append('|');
+        if (whereCriteria != null) {
+            keyBuilder.append(whereCriteria);
+        }
+        keyBuilder.append('|');
+        if (filterCriteria != null) {
+            keyBuilder.append(filterCriteria);
+        }
+        keyBuilder.append('|');
+        if (isAttributeSelection()) {
+            keyBuilder.append(getSelectionPropertyIds());
+        }
+        keyBuilder.append('|');
+        keyBuilder.append(fetchPaths);
+        keyBuilder.append('|');
+        for (int i = 0; i < sortPropertyIds.length; i++) {
+            keyBuilder.append(sortPropertyIds[i]);
+            keyBuilder.append(sortPropertyAscendingStates[i] ? '+' : '-');
+        }
+        return keyBuilder.toString();
+    }
+
+    /**
+     * Generates entity PSQLs based on query definition parameters.
+     * @return the generated EntitySelectDefinition.
+     */
+    private EntityPsqlDefinition generateEntityPsqlDefinition() {
+        final StringBuilder fromBuilder = new StringBuilder(" from ");
+        fromBuilder.append(entityClass.getSimpleName());
+        fromBuilder.append(" as e");
+        final String effectiveWhereCriteria = getEffectiveWhereCriteria();
+        final StringBuilder whereBuilder = new StringBuilder(" where ");
+        whereBuilder.append(effectiveWhereCriteria);
+        final StringBuilder orderByBuilder = new StringBuilder(" order by");
         for (int i = 0; i < sortPropertyIds.length; i++) {
             if (i != 0) {
                 orderByBuilder.append(",");
@@ -158,37 +707,434 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
             }
         }
         
-        final StringBuilder selectBuilder = new StringBuilder("select e");
+        final String identifierName = findIdentifierName();
+        if (identifierName == null && !fetchPaths.isEmpty()) {
+            throw new IllegalStateException("Fetch paths require single identifier attribute in "
+                    + entityClass.getName());
+        }
+        final StringBuilder fetchJoinBuilder = new StringBuilder();
+        final List<String> collectionFetchPsqls = new ArrayList<String>();
+        for (final String fetchPath : fetchPaths) {
+            if (getEntityType().getAttribute(fetchPath).isCollection()) {
+                collectionFetchPsqls.add("select distinct e" + fromBuilder + " left join fetch e." + fetchPath
+                        + " where e." + identifierName + " in :identifiers");
+            } else {
+                fetchJoinBuilder.append(" left join fetch e.");
+                fetchJoinBuilder.append(fetchPath);
+            }
+        }
+        final String selectByIdentifiersPsql;
+        final StringBuilder selectIdentifiersBuilder = new StringBuilder();
+        if (identifierName != null) {
+            selectByIdentifiersPsql = "select e" + fromBuilder + fetchJoinBuilder + " where e." + identifierName
+                    + " in :identifiers";
+            selectIdentifiersBuilder.append("select e.");
+            selectIdentifiersBuilder.append(identifierName);
+            selectIdentifiersBuilder.append(fromBuilder.toString());
+            if (effectiveWhereCriteria != null) {
+                selectIdentifiersBuilder.append(whereBuilder.toString());
+            }
+        } else {
+            selectByIdentifiersPsql = null;
+        }
+
+        final List<String> selectedPropertyIds;
+        final StringBuilder selectBuilder = new StringBuilder("select ");
+        if (isAttributeSelection()) {
+            selectedPropertyIds = getProjectedPropertyIds();
+            for (int i = 0; i < selectedPropertyIds.size(); i++) {
+                if (i != 0) {
+                    selectBuilder.append(", ");
+                }
+                selectBuilder.append("e.");
+                selectBuilder.append(selectedPropertyIds.get(i));
+            }
+        } else {
+            selectedPropertyIds = null;
+            selectBuilder.append("e");
+        }
         selectBuilder.append(fromBuilder.toString());
-        if (whereCriteria != null && whereCriteria.length() != 0) {
+        if (selectedPropertyIds == null) {
+            selectBuilder.append(fetchJoinBuilder.toString());
+        }
+        if (effectiveWhereCriteria != null) {
             selectBuilder.append(whereBuilder.toString());
         }
         selectBuilder.append(orderByBuilder.toString());
         
         final StringBuilder selectCountBuilder = new StringBuilder("select count(e)");
         selectCountBuilder.append(fromBuilder.toString());
-        if (whereCriteria != null && whereCriteria.length() != 0) {
+        if (effectiveWhereCriteria != null) {
             selectCountBuilder.append(whereBuilder.toString());
         }
         
         final StringBuilder deleteBuilder = new StringBuilder("delete");
         deleteBuilder.append(fromBuilder.toString());
-        if (whereCriteria != null && whereCriteria.length() != 0) {
+        if (effectiveWhereCriteria != null) {
             deleteBuilder.append(whereBuilder.toString());
         }
 
         return new EntityPsqlDefinition(selectBuilder.toString(), selectCountBuilder.toString(),
-                deleteBuilder.toString());
+                deleteBuilder.toString(), selectedPropertyIds, selectByIdentifiersPsql, collectionFetchPsqls,
+                identifierName != null ? selectIdentifiersBuilder.toString() : null);
+    }
+
+    /**
+     * Checks whether entity attributes are selected instead of entities. Attributes are
+     * selected in projection mode and when visible property IDs hint has been set.
+     * @return true if attributes are selected.
+     */
+    private boolean isAttributeSelection() {
+        return projection || getVisiblePropertyIds() != null;
+    }
+
+    /**
+     * Gets the property IDs to be selected as attributes. These are the visible property IDs
+     * if the hint has been set and otherwise all property IDs.
+     * @return the property IDs to be selected.
+     */
+    private Collection<?> getSelectionPropertyIds() {
+        if (getVisiblePropertyIds() != null) {
+            return getVisiblePropertyIds();
+        }
+        return getPropertyIds();
+    }
+
+    /**
+     * Lists the entity attributes selected instead of entities. The identifier attribute
+     * is listed first and followed by the selection property IDs which are basic
+     * attributes of the entity. Associations and embeddables are not selected as path
+     * navigation would inner join them and drop rows where they are null. They are
+     * loaded with the entity of lazy entity items instead.
+     * @return list of selected attribute names.
+     */
+    private List<String> getProjectedPropertyIds() {
+        final String identifierName = getIdentifierName();
+        final List<String> attributeNames = new ArrayList<String>();
+        for (final SingularAttribute<?, ?> attribute : getEntityType().getSingularAttributes()) {
+            if (attribute.getPersistentAttributeType() == Attribute.PersistentAttributeType.BASIC) {
+                attributeNames.add(attribute.getName());
+            }
+        }
+        final List<String> projectedPropertyIds = new ArrayList<String>();
+        projectedPropertyIds.add(identifierName);
+        for (final Object propertyId : getSelectionPropertyIds()) {
+            if (attributeNames.contains(propertyId) && !identifierName.equals(propertyId)) {
+                projectedPropertyIds.add((String) propertyId);
+            }
+        }
+        return projectedPropertyIds;
+    }
+
+    /**
+     * Gets name of the identifier attribute of the entity.
+     * @return the identifier attribute name.
+     */
+    private String getIdentifierName() {
+        final String identifierName = findIdentifierName();
+        if (identifierName == null) {
+            throw new IllegalStateException("Attribute selection requires single identifier attribute in "
+                    + entityClass.getName());
+        }
+        return identifierName;
+    }
+
+    /**
+     * Finds name of the identifier attribute of the entity.
+     * @return the identifier attribute name or null if entity has no single identifier attribute.
+     */
+    private String findIdentifierName() {
+        for (final SingularAttribute<?, ?> attribute : getEntityType().getSingularAttributes()) {
+            if (attribute.isId()) {
+                return attribute.getName();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Combines where criteria set by application with where criteria translated from filters.
+     * @return the combined where criteria or null if there is no where criteria.
+     */
+    private String getEffectiveWhereCriteria() {
+        final boolean hasWhereCriteria = whereCriteria != null && whereCriteria.length() != 0;
+        if (filterCriteria == null) {
+            return hasWhereCriteria ? whereCriteria : null;
+        }
+        if (!hasWhereCriteria) {
+            return filterCriteria;
+        }
+        return "(" + whereCriteria + ") and " + filterCriteria;
     }
 
     /**
-     * @return the whereParameters
+     * @return the whereParameters including the parameters of the filters
      */
     public final Map<String, Object> getWhereParameters() {
-        if (whereCriteria != null && whereCriteria.length() != 0) {
-            return whereParameters;
+        final boolean hasWhereCriteria = whereCriteria != null && whereCriteria.length() != 0;
+        if (filterCriteria == null) {
+            return hasWhereCriteria ? whereParameters : null;
+        }
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        if (hasWhereCriteria && whereParameters != null) {
+            parameters.putAll(whereParameters);
+        }
+        parameters.putAll(filterParameters);
+        return parameters;
+    }
+
+    /**
+     * Adds filter to be translated to where criteria of the JPA queries.
+     * Compare, Like, SimpleStringFilter, Between, IsNull, And, Or and Not
+     * filters are supported.
+     * @param filter the filter to add
+     * @throws UnsupportedFilterException if filter can not be translated to JPQL.
+     */
+    @Override
+    public final void addFilter(final Filter filter) {
+        super.addFilter(filter);
+        translateFilters();
+    }
+
+    /**
+     * Checks that filter can be translated to JPQL.
+     * @param filter the filter to check
+     * @throws UnsupportedFilterException if filter can not be translated to JPQL.
+     */
+    @Override
+    protected final void validateFilter(final Filter filter) {
+        translateFilter(filter, new HashMap<String, Object>());
+    }
+
+    /**
+     * Removes filter.
+     * @param filter the filter to remove
+     */
+    @Override
+    public final void removeFilter(final Filter filter) {
+        super.removeFilter(filter);
+        translateFilters();
+    }
+
+    /**
+     * Removes all filters.
+     */
+    @Override
+    public final void removeFilters() {
+        super.removeFilters();
+        translateFilters();
+    }
+
+    /**
+     * Translates current filters to filter criteria and filter parameters.
+     */
+    private void translateFilters() {
+        final Map<String, Object> parameters = new HashMap<String, Object>();
+        if (getFilters().isEmpty()) {
+            filterCriteria = null;
         } else {
-            return null;
+            final StringBuilder criteriaBuilder = new StringBuilder();
+            for (final Filter filter : getFilters()) {
+                if (criteriaBuilder.length() != 0) {
+                    criteriaBuilder.append(" and ");
+                }
+                criteriaBuilder.append(translateFilter(filter, parameters));
+            }
+            filterCriteria = criteriaBuilder.toString();
+        }
+        filterParameters = parameters;
+    }
+
+    /**
+     * Translates filter to parenthesized JPQL expression. Filter values are
+     * added to the given parameter map and referred as named parameters.
+     * @param filter the filter to translate
+     * @param parameters the parameter map to add filter values to
+     * @return the JPQL expression
+     * @throws UnsupportedFilterException if filter can not be translated to JPQL.
+     */
+    private String translateFilter(final Filter filter, final Map<String, Object> parameters) {
+        if (filter instanceof Compare) {
+            final Compare compare = (Compare) filter;
+            final String path = toPropertyPath(compare.getPropertyId());
+            if (compare.getValue() == null) {
+                if (compare.getOperation() == Compare.Operation.EQUAL) {
+                    return "(" + path + " is null)";
+                }
+                throw new UnsupportedFilterException("Null value is not supported in "
+                        + compare.getOperation() + " comparison of " + path);
+            }
+            final String operator;
+            switch (compare.getOperation()) {
+            case EQUAL:
+                operator = " = ";
+                break;
+            case GREATER:
+                operator = " > ";
+                break;
+            case LESS:
+                operator = " < ";
+                break;
+            case GREATER_OR_EQUAL:
+                operator = " >= ";
+                break;
+            case LESS_OR_EQUAL:
+                operator = " <= ";
+                break;
+            default:
+                throw new UnsupportedFilterException("Unsupported comparison: " + compare.getOperation());
+            }
+            return "(" + path + operator + addFilterParameter(compare.getValue(), parameters) + ")";
+        } else if (filter instanceof Like) {
+            final Like like = (Like) filter;
+            final String pattern = like.getValue() == null ? null : escapeLikePattern(like.getValue(), false);
+            return translateLike(toPropertyPath(like.getPropertyId()), pattern, like.isCaseSensitive(),
+                    true, parameters);
+        } else if (filter instanceof SimpleStringFilter) {
+            final SimpleStringFilter stringFilter = (SimpleStringFilter) filter;
+            final StringBuilder patternBuilder = new StringBuilder();
+            if (!stringFilter.isOnlyMatchPrefix()) {
+                patternBuilder.append('%');
+            }
+            patternBuilder.append(escapeLikePattern(stringFilter.getFilterString(), true));
+            patternBuilder.append('%');
+            return translateLike(toPropertyPath(stringFilter.getPropertyId()), patternBuilder.toString(),
+                    !stringFilter.isIgnoreCase(), true, parameters);
+        } else if (filter instanceof Between) {
+            final Between between = (Between) filter;
+            return "(" + toPropertyPath(between.getPropertyId()) + " between "
+                    + addFilterParameter(between.getStartValue(), parameters) + " and "
+                    + addFilterParameter(between.getEndValue(), parameters) + ")";
+        } else if (filter instanceof IsNull) {
+            return "(" + toPropertyPath(((IsNull) filter).getPropertyId()) + " is null)";
+        } else if (filter instanceof And || filter instanceof Or) {
+            final String operator = filter instanceof And ? " and " : " or ";
+            final Iterator<Filter> filters = ((AbstractJunctionFilter) filter).getFilters().iterator();
+            if (!filters.hasNext()) {
+                throw new UnsupportedFilterException("Empty junction filters are not supported.");
+            }
+            final StringBuilder junctionBuilder = new StringBuilder("(");
+            junctionBuilder.append(translateFilter(filters.next(), parameters));
+            while (filters.hasNext()) {
+                junctionBuilder.append(operator);
+                junctionBuilder.append(translateFilter(filters.next(), parameters));
+            }
+            junctionBuilder.append(")");
+            return junctionBuilder.toString();
+        } else if (filter instanceof Not) {
+            return "(not " + translateFilter(((Not) filter).getFilter(), parameters) + ")";
+        }
+        throw new UnsupportedFilterException("Filter type is not supported by EntityQueryDefinition: "
+                + (filter == null ? null : filter.getClass().getName()));
+    }
+
+    /**
+     * Translates like expression.
+     * @param path the property path
+     * @param pattern the like pattern
+     * @param caseSensitive true if comparison is case sensitive
+     * @param escaped true if pattern has been escaped with the like escape character
+     * @param parameters the parameter map to add pattern to
+     * @return the JPQL expression
+     */
+    private String translateLike(final String path, final String pattern, final boolean caseSensitive,
+            final boolean escaped, final Map<String, Object> parameters) {
+        final StringBuilder likeBuilder = new StringBuilder("(");
+        if (caseSensitive) {
+            likeBuilder.append(path);
+            likeBuilder.append(" like ");
+            likeBuilder.append(addFilterParameter(pattern, parameters));
+        } else {
+            likeBuilder.append("lower(");
+            likeBuilder.append(path);
+            likeBuilder.append(") like ");
+            likeBuilder.append(addFilterParameter(pattern == null ? null : pattern.toLowerCase(), parameters));
+        }
+        if (escaped) {
+            likeBuilder.append(" escape '");
+            likeBuilder.append(LIKE_ESCAPE_CHARACTER);
+            likeBuilder.append("'");
+        }
+        likeBuilder.append(")");
+        return likeBuilder.toString();
+    }
+
+    /**
+     * Escapes like wildcards in the given string. Percent sign is kept as
+     * wildcard in Like filter patterns which match any other character literally.
+     * @param value the string to escape
+     * @param escapePercent true if percent signs are escaped
+     * @return the escaped string
+     */
+    private static String escapeLikePattern(final String value, final boolean escapePercent) {
+        final StringBuilder escapedBuilder = new StringBuilder();
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            if ((c == '%' && escapePercent) || c == '_' || c == LIKE_ESCAPE_CHARACTER) {
+                escapedBuilder.append(LIKE_ESCAPE_CHARACTER);
+            }
+            escapedBuilder.append(c);
+        }
+        return escapedBuilder.toString();
+    }
+
+    /**
+     * Adds filter value as named parameter.
+     * @param value the parameter value
+     * @param parameters the parameter map
+     * @return the parameter reference to be used in JPQL
+     */
+    private static String addFilterParameter(final Object value, final Map<String, Object> parameters) {
+        final String parameterName = FILTER_PARAMETER_PREFIX + parameters.size();
+        parameters.put(parameterName, value);
+        return ":" + parameterName;
+    }
+
+    /**
+     * Converts filter property ID to property path of the entity expression.
+     * @param propertyId the property ID
+     * @return the property path
+     * @throws UnsupportedFilterException if property ID is not a valid property path.
+     */
+    private static String toPropertyPath(final Object propertyId) {
+        if (propertyId == null || !PROPERTY_PATH_PATTERN.matcher(propertyId.toString()).matches()) {
+            throw new UnsupportedFilterException("Filter property is not a valid property path: " + propertyId);
+        }
+        return "e." + propertyId;
+    }
+
+    /**
+     * Bounded cache of generated PSQL definitions and counts. Least recently used
+     * entries are evicted when the cache is full.
+     * @param <K> Key type.
+     * @param <V> Value type.
+     * @author Tommi Laukkanen
+     */
+    private static final class BoundedCache<K, V> extends LinkedHashMap<K, V> {
+        /** Serial version UID for this class. */
+        private static final long serialVersionUID = 1L;
+        /** Maximum number of cached entries. */
+        private static final int MAX_SIZE = 32;
+        /** Initial capacity of the cache. */
+        private static final int INITIAL_CAPACITY = 16;
+        /** Load factor of the cache. */
+        private static final float LOAD_FACTOR = 0.75f;
+
+        /**
+         * Constructs access ordered cache.
+         */
+        public BoundedCache() {
+            super(INITIAL_CAPACITY, LOAD_FACTOR, true);
+        }
+
+        /**
+         * Evicts the least recently used entry when cache is full.
+         * @param eldest The least recently used entry.
+         * @return true if the entry should be removed.
+         */
+        @Override
+        protected boolean removeEldestEntry(final Map.Entry<K, V> eldest) {
+            return size() > MAX_SIZE;
         }
     }
 
@@ -203,6 +1149,14 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
         private String selectCountPsql;
         /** The PSQL for deleting entities. */
         private String deletePsql;
+        /** The attributes selected in projection or null if entities are selected. */
+        private List<String> selectedPropertyIds;
+        /** The PSQL for selecting entities by identifiers or null. */
+        private String selectByIdentifiersPsql;
+        /** The PSQLs for fetching collection associations by entity identifiers. */
+        private List<String> collectionFetchPsqls;
+        /** The PSQL for selecting identifiers of entities or null. */
+        private String selectIdentifiersPsql;
         /**
          * Constructor which initializes entity select definition.
          * @param selectPsql The PSQL for selecting entities.
@@ -211,10 +1165,48 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
          */
         public EntityPsqlDefinition(final String selectPsql, final String selectCountPsql,
                 final String deletePsql) {
+            this(selectPsql, selectCountPsql, deletePsql, null);
+        }
+        /**
+         * Constructor which initializes entity select definition.
+         * @param selectPsql The PSQL for selecting entities or entity attributes.
+         * @param selectCountPsql The PSQL for selecting count of entities.
+         * @param deletePsql The PSQL for deleting entities.
+         * @param selectedPropertyIds The attributes selected in projection starting with
+         *            identifier or null if entities are selected.
+         */
+        public EntityPsqlDefinition(final String selectPsql, final String selectCountPsql,
+                final String deletePsql, final List<String> selectedPropertyIds) {
+            this(selectPsql, selectCountPsql, deletePsql, selectedPropertyIds, null, new ArrayList<String>(), null);
+        }
+        /**
+         * Constructor which initializes entity select definition.
+         * @param selectPsql The PSQL for selecting entities or entity attributes.
+         * @param selectCountPsql The PSQL for selecting count of entities.
+         * @param deletePsql The PSQL for deleting entities.
+         * @param selectedPropertyIds The attributes selected in projection starting with
+         *            identifier or null if entities are selected.
+         * @param selectByIdentifiersPsql The PSQL for selecting entities with identifiers given
+         *            as identifiers parameter or null if not required.
+         * @param collectionFetchPsqls The PSQLs for fetching collection associations of entities
+         *            with identifiers given as identifiers parameter.
+         * @param selectIdentifiersPsql The PSQL for selecting identifiers of entities in no particular
+         *            order or null if entity has no single identifier attribute.
+         */
+        public EntityPsqlDefinition(final String selectPsql, final String selectCountPsql,
+                final String deletePsql, final List<String> selectedPropertyIds,
+                final String selectByIdentifiersPsql, final List<String> collectionFetchPsqls,
+                final String selectIdentifiersPsql) {
             super();
             this.selectPsql = selectPsql;
             this.selectCountPsql = selectCountPsql;
             this.deletePsql = deletePsql;
+            if (selectedPropertyIds != null) {
+                this.selectedPropertyIds = Collections.unmodifiableList(selectedPropertyIds);
+            }
+            this.selectByIdentifiersPsql = selectByIdentifiersPsql;
+            this.collectionFetchPsqls = Collections.unmodifiableList(collectionFetchPsqls);
+            this.selectIdentifiersPsql = selectIdentifiersPsql;
         }
         /**
          * @return the selectPsql
@@ -234,5 +1226,30 @@ public class EntityQueryDefinition extends LazyQueryDefinition {
         public String getDeletePsql() {
             return deletePsql;
         }
+        /**
+         * @return the attributes selected in projection starting with identifier
+         *         or null if entities are selected
+         */
+        public List<String> getSelectedPropertyIds() {
+            return selectedPropertyIds;
+        }
+        /**
+         * @return the PSQL for selecting entities with identifiers parameter or null
+         */
+        public String getSelectByIdentifiersPsql() {
+            return selectByIdentifiersPsql;
+        }
+        /**
+         * @return the PSQLs for fetching collection associations with identifiers parameter
+         */
+        public List<String> getCollectionFetchPsqls() {
+            return collectionFetchPsqls;
+        }
+        /**
+         * @return the PSQL for selecting identifiers of entities or null
+         */
+        public String getSelectIdentifiersPsql() {
+            return selectIdentifiersPsql;
+        }
     }
 }
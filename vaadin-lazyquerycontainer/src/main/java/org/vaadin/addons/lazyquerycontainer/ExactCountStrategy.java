@@ -0,0 +1,83 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+/**
+ * Count strategy which counts items with Query.size when query is
+ * constructed. This is the default strategy.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class ExactCountStrategy implements CountStrategy {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * Creates counter for a new query.
+     * @param query The query to count.
+     * @param querySource The source of separate query instances which is not used.
+     * @param listener The listener to notify when count of the counter changes.
+     * @return the counter.
+     */
+    @Override
+    public Counter createCounter(final Query query, final QuerySource querySource, final Listener listener) {
+        return new ExactCounter(query);
+    }
+
+    /**
+     * Counter which delegates to Query.size.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class ExactCounter implements Counter {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The counted query. */
+        private final Query query;
+
+        /**
+         * Constructor for configuring the counter.
+         * @param query The counted query.
+         */
+        private ExactCounter(final Query query) {
+            this.query = query;
+        }
+
+        /**
+         * @return the count
+         */
+        @Override
+        public int getCount() {
+            return query.size();
+        }
+
+        /**
+         * @return true as count is always exact.
+         */
+        @Override
+        public boolean isExact() {
+            return true;
+        }
+
+        /**
+         * Does nothing as count is always exact.
+         * @param startIndex Starting index of the batch.
+         * @param requestedCount Count of the items requested.
+         * @param loadedCount Count of the items loaded.
+         */
+        @Override
+        public void itemsLoaded(final int startIndex, final int requestedCount, final int loadedCount) {
+        }
+    }
+}
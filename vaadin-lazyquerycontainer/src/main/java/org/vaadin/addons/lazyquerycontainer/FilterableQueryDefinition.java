@@ -0,0 +1,53 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.util.List;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Container.UnsupportedFilterException;
+
+/**
+ * Interface for query definitions which carry filters to be applied by the
+ * queries. LazyQueryContainer rejects filters if its query definition does
+ * not implement this interface.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface FilterableQueryDefinition extends QueryDefinition {
+	/**
+	 * Adds filter to be applied by the query.
+	 * After this method has been called the Query has to be discarded immediately.
+	 * @param filter the filter to add
+	 * @throws UnsupportedFilterException if queries are not able to apply the filter.
+	 */
+	void addFilter(Filter filter);
+	/**
+	 * Removes filter from the definition.
+	 * After this method has been called the Query has to be discarded immediately.
+	 * @param filter the filter to remove
+	 */
+	void removeFilter(Filter filter);
+	/**
+	 * Removes all filters from the definition.
+	 * After this method has been called the Query has to be discarded immediately.
+	 */
+	void removeFilters();
+	/**
+	 * Gets the filters to be applied by the query.
+	 * @return the filters
+	 */
+	List<Filter> getFilters();
+}
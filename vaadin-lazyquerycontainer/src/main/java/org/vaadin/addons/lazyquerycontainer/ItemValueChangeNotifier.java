@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+
+/**
+ * Interface for items which notify value changes of all their properties to
+ * listeners added to the item. Listeners are registered to properties when
+ * the properties are created so that listening an item does not require
+ * creating its properties. QueryView listens loaded items which implement
+ * this interface instead of listening each of their properties.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface ItemValueChangeNotifier extends Item {
+	/**
+	 * Adds listener which is notified of value changes of all properties
+	 * of the item including properties created or added later.
+	 * @param listener The listener to add.
+	 */
+	void addValueChangeListener(Property.ValueChangeListener listener);
+
+	/**
+	 * Removes listener from the item and its properties.
+	 * @param listener The listener to remove.
+	 */
+	void removeValueChangeListener(Property.ValueChangeListener listener);
+}
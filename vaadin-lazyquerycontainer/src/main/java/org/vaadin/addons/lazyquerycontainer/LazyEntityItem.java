@@ -0,0 +1,478 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.AbstractProperty;
+import com.vaadin.data.util.ObjectProperty;
+
+/**
+ * Item which initially contains only the eagerly loaded property values of an
+ * entity. The entity is loaded when a property without eagerly loaded value is
+ * accessed or any property is modified. Entities of all items in the same page
+ * are loaded together with a single query. Property metadata is shared by the
+ * items of the page and property objects are created when the property is
+ * first accessed. Value change listeners of the item are registered to its
+ * properties including properties created or added later.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class LazyEntityItem implements ItemValueChangeNotifier {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The identifier of the entity. */
+    private final Object identifier;
+    /** The selected row containing the eagerly loaded values or null if none was loaded. */
+    private final Object[] row;
+    /** The page this item belongs to. */
+    private final Page page;
+    /** The created page properties by page property index or null if none has been accessed. */
+    private Property[] pageProperties;
+    /** The removed states of page properties by page property index or null if none has been removed. */
+    private boolean[] removedStates;
+    /** The properties added to the item in order of addition or null if none has been added. */
+    private Map<Object, Property> addedProperties;
+    /** The bean item of the loaded entity or null if entity has not been loaded. */
+    private LightweightBeanItem<Object> beanItem;
+    /** The value change listeners or null if no listener has been added. */
+    private List<Property.ValueChangeListener> valueChangeListeners;
+
+    /**
+     * Constructor which adds the item to the page.
+     * @param identifier The identifier of the entity.
+     * @param row The selected row containing the eagerly loaded values at the loaded
+     *            columns of the page properties or null if no value was loaded.
+     * @param page The page the item belongs to.
+     */
+    public LazyEntityItem(final Object identifier, final Object[] row, final Page page) {
+        this.identifier = identifier;
+        this.row = row;
+        this.page = page;
+        page.items.add(this);
+    }
+
+    /**
+     * @return the identifier of the entity.
+     */
+    public Object getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Gets the entity loading it with the rest of the page if required.
+     * @return the entity.
+     */
+    public Object getEntity() {
+        return getBeanItem().getBean();
+    }
+
+    /**
+     * @return true if entity has been loaded.
+     */
+    public boolean isEntityLoaded() {
+        return beanItem != null;
+    }
+
+    /**
+     * Gets the bean item loading the entity with the rest of the page if required.
+     * @return the bean item.
+     */
+    private LightweightBeanItem<Object> getBeanItem() {
+        if (beanItem == null) {
+            page.load();
+        }
+        if (beanItem == null) {
+            throw new IllegalStateException("Entity with identifier " + identifier + " does not exist.");
+        }
+        return beanItem;
+    }
+
+    /**
+     * Gets property by ID. Page properties are created on first access.
+     * @param id ID of the property.
+     * @return the property or null if item does not contain property with given ID.
+     */
+    @Override
+    public Property getItemProperty(final Object id) {
+        final Integer index = page.propertyIndexes.get(id);
+        if (index == null || removedStates != null && removedStates[index]) {
+            return addedProperties == null ? null : addedProperties.get(id);
+        }
+        if (pageProperties == null) {
+            pageProperties = new Property[page.propertyIds.size()];
+        }
+        Property property = pageProperties[index];
+        if (property == null) {
+            property = page.createProperty(this, index);
+            pageProperties[index] = property;
+            addValueChangeListeners(property);
+        }
+        return property;
+    }
+
+    /**
+     * Lists IDs of the properties in the item.
+     * @return Collection of property IDs.
+     */
+    @Override
+    public Collection<?> getItemPropertyIds() {
+        if (removedStates == null && addedProperties == null) {
+            return page.unmodifiablePropertyIds;
+        }
+        final Set<Object> propertyIds = new LinkedHashSet<Object>();
+        for (int i = 0; i < page.propertyIds.size(); i++) {
+            if (removedStates == null || !removedStates[i]) {
+                propertyIds.add(page.propertyIds.get(i));
+            }
+        }
+        if (addedProperties != null) {
+            propertyIds.addAll(addedProperties.keySet());
+        }
+        return Collections.unmodifiableSet(propertyIds);
+    }
+
+    /**
+     * Adds property to the item.
+     * @param id ID of the property to be added.
+     * @param property Property to be added.
+     * @return true if property was added.
+     */
+    @Override
+    public boolean addItemProperty(final Object id, final Property property) {
+        if (getItemProperty(id) != null) {
+            return false;
+        }
+        if (addedProperties == null) {
+            addedProperties = new LinkedHashMap<Object, Property>();
+        }
+        addedProperties.put(id, property);
+        addValueChangeListeners(property);
+        return true;
+    }
+
+    /**
+     * Removes property from the item.
+     * @param id ID of the property to be removed.
+     * @return true if property was removed.
+     */
+    @Override
+    public boolean removeItemProperty(final Object id) {
+        final Property property;
+        if (addedProperties != null && addedProperties.containsKey(id)) {
+            property = addedProperties.remove(id);
+        } else {
+            final Integer index = page.propertyIndexes.get(id);
+            if (index == null || removedStates != null && removedStates[index]) {
+                return false;
+            }
+            if (removedStates == null) {
+                removedStates = new boolean[page.propertyIds.size()];
+            }
+            removedStates[index] = true;
+            property = pageProperties == null ? null : pageProperties[index];
+            if (property != null) {
+                pageProperties[index] = null;
+            }
+        }
+        if (valueChangeListeners != null && property instanceof Property.ValueChangeNotifier) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                ((Property.ValueChangeNotifier) property).removeListener(listener);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Adds value change listener to the properties and to the properties created or added later.
+     * @param listener The listener to add.
+     */
+    @Override
+    public void addValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null) {
+            valueChangeListeners = new ArrayList<Property.ValueChangeListener>(1);
+        }
+        valueChangeListeners.add(listener);
+        for (final Property property : getCreatedProperties()) {
+            if (property instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) property).addListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Removes value change listener from the item and its properties.
+     * @param listener The listener to remove.
+     */
+    @Override
+    public void removeValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null || !valueChangeListeners.remove(listener)) {
+            return;
+        }
+        for (final Property property : getCreatedProperties()) {
+            if (property instanceof Property.ValueChangeNotifier) {
+                ((Property.ValueChangeNotifier) property).removeListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Lists the properties which have been created or added to the item.
+     * @return list of the properties.
+     */
+    private List<Property> getCreatedProperties() {
+        final List<Property> properties = new ArrayList<Property>();
+        if (pageProperties != null) {
+            for (final Property property : pageProperties) {
+                if (property != null) {
+                    properties.add(property);
+                }
+            }
+        }
+        if (addedProperties != null) {
+            properties.addAll(addedProperties.values());
+        }
+        return properties;
+    }
+
+    /**
+     * Registers the value change listeners of the item to the property.
+     * @param property The property.
+     */
+    private void addValueChangeListeners(final Property property) {
+        if (valueChangeListeners != null && property instanceof Property.ValueChangeNotifier) {
+            for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                ((Property.ValueChangeNotifier) property).addListener(listener);
+            }
+        }
+    }
+
+    /**
+     * Interface for loading entities of a page.
+     * @author Tommi S.E. Laukkanen
+     */
+    public interface EntityLoader extends Serializable {
+        /**
+         * Loads entities by identifiers.
+         * @param identifiers The identifiers of the entities.
+         * @return Map from identifiers to loaded entities.
+         */
+        Map<Object, Object> loadEntities(List<Object> identifiers);
+    }
+
+    /**
+     * Page of items which entities are loaded together and which share the
+     * property metadata. Properties are added to the page before its items
+     * are constructed.
+     * @author Tommi S.E. Laukkanen
+     */
+    public static final class Page implements Serializable {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The entity loader. */
+        private final EntityLoader entityLoader;
+        /** The items of the page. */
+        private final List<LazyEntityItem> items = new ArrayList<LazyEntityItem>();
+        /** The property IDs in order of addition. */
+        private final List<Object> propertyIds = new ArrayList<Object>();
+        /** Unmodifiable view of the property IDs. */
+        private final List<Object> unmodifiablePropertyIds = Collections.unmodifiableList(propertyIds);
+        /** The property indexes by property ID. */
+        private final Map<Object, Integer> propertyIndexes = new HashMap<Object, Integer>();
+        /** The property types by property index. */
+        private final List<Class<?>> types = new ArrayList<Class<?>>();
+        /** The read only states by property index. */
+        private final List<Boolean> readOnlyStates = new ArrayList<Boolean>();
+        /** The row columns of eagerly loaded values by property index, -1 for lazy and -2 for default properties. */
+        private final List<Integer> loadedColumns = new ArrayList<Integer>();
+        /** The default values by property index. */
+        private final List<Object> defaultValues = new ArrayList<Object>();
+        /** True if page entities have been loaded. */
+        private boolean loaded;
+
+        /**
+         * Constructor which sets the entity loader.
+         * @param entityLoader The entity loader.
+         */
+        public Page(final EntityLoader entityLoader) {
+            this.entityLoader = entityLoader;
+        }
+
+        /**
+         * Adds entity property to the items of the page. The value of the property
+         * is read from the row until entity has been loaded and from the entity after that.
+         * @param propertyId The ID of the property.
+         * @param type The type of the property.
+         * @param readOnly True if property is read only.
+         * @param loadedColumn The row column of the eagerly loaded value or -1 if value is read from entity.
+         */
+        public void addEntityProperty(final Object propertyId, final Class<?> type, final boolean readOnly,
+                final int loadedColumn) {
+            addProperty(propertyId, type, readOnly, loadedColumn, null);
+        }
+
+        /**
+         * Adds property which is not entity property to the items of the page. Each
+         * item gets own property initialised with the default value on first access.
+         * @param propertyId The ID of the property.
+         * @param type The type of the property.
+         * @param defaultValue The default value.
+         * @param readOnly True if property is read only.
+         */
+        public void addDefaultProperty(final Object propertyId, final Class<?> type, final Object defaultValue,
+                final boolean readOnly) {
+            addProperty(propertyId, type, readOnly, -2, defaultValue);
+        }
+
+        /**
+         * Adds property metadata.
+         * @param propertyId The ID of the property.
+         * @param type The type of the property.
+         * @param readOnly True if property is read only.
+         * @param loadedColumn The row column of the eagerly loaded value, -1 for lazy and -2 for default properties.
+         * @param defaultValue The default value.
+         */
+        private void addProperty(final Object propertyId, final Class<?> type, final boolean readOnly,
+                final int loadedColumn, final Object defaultValue) {
+            if (!items.isEmpty()) {
+                throw new IllegalStateException("Properties have to be added before items are constructed.");
+            }
+            if (propertyIndexes.containsKey(propertyId)) {
+                return;
+            }
+            propertyIndexes.put(propertyId, propertyIds.size());
+            propertyIds.add(propertyId);
+            types.add(type);
+            readOnlyStates.add(readOnly);
+            loadedColumns.add(loadedColumn);
+            defaultValues.add(defaultValue);
+        }
+
+        /**
+         * Checks whether page has property with given ID.
+         * @param propertyId The ID of the property.
+         * @return true if page has the property.
+         */
+        public boolean hasProperty(final Object propertyId) {
+            return propertyIndexes.containsKey(propertyId);
+        }
+
+        /**
+         * Creates property of an item.
+         * @param item The item.
+         * @param index The page property index.
+         * @return the created property.
+         */
+        @SuppressWarnings({ "rawtypes", "unchecked" })
+        private Property createProperty(final LazyEntityItem item, final int index) {
+            final int loadedColumn = loadedColumns.get(index);
+            if (loadedColumn == -2) {
+                return new ObjectProperty(defaultValues.get(index), types.get(index), readOnlyStates.get(index));
+            }
+            return item.new LazyEntityProperty(index, loadedColumn);
+        }
+
+        /**
+         * Loads entities of all items in the page.
+         */
+        private void load() {
+            if (loaded) {
+                return;
+            }
+            final List<Object> identifiers = new ArrayList<Object>(items.size());
+            for (final LazyEntityItem item : items) {
+                identifiers.add(item.identifier);
+            }
+            final Map<Object, Object> entities = entityLoader.loadEntities(identifiers);
+            for (final LazyEntityItem item : items) {
+                final Object entity = entities.get(item.identifier);
+                if (entity != null) {
+                    item.beanItem = new LightweightBeanItem<Object>(entity);
+                }
+            }
+            loaded = true;
+        }
+    }
+
+    /**
+     * Property which returns eagerly loaded value until entity has been loaded
+     * and delegates to entity after that.
+     * @author Tommi S.E. Laukkanen
+     */
+    private final class LazyEntityProperty extends AbstractProperty<Object> {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The page property index. */
+        private final int index;
+        /** The row column of the eagerly loaded value or -1 if value was not loaded. */
+        private final int loadedColumn;
+
+        /**
+         * Constructor which sets the property state.
+         * @param index The page property index.
+         * @param loadedColumn The row column of the eagerly loaded value or -1 if value was not loaded.
+         */
+        public LazyEntityProperty(final int index, final int loadedColumn) {
+            this.index = index;
+            this.loadedColumn = row == null ? -1 : loadedColumn;
+            setReadOnly(page.readOnlyStates.get(index));
+        }
+
+        /**
+         * Gets the value eagerly loaded value or value from the entity.
+         * @return the value.
+         */
+        @Override
+        public Object getValue() {
+            if (loadedColumn != -1 && beanItem == null) {
+                return row[loadedColumn];
+            }
+            return getBeanItem().getItemProperty(page.propertyIds.get(index)).getValue();
+        }
+
+        /**
+         * Sets value to the entity loading it if required.
+         * @param newValue the value to set.
+         */
+        @Override
+        public void setValue(final Object newValue) {
+            if (isReadOnly()) {
+                throw new Property.ReadOnlyException();
+            }
+            getBeanItem().getItemProperty(page.propertyIds.get(index)).setValue(newValue);
+            fireValueChange();
+        }
+
+        /**
+         * @return the type of the property.
+         */
+        @Override
+        public Class<?> getType() {
+            return page.types.get(index);
+        }
+    }
+
+}
@@ -17,9 +17,12 @@ package org.vaadin.addons.lazyquerycontainer;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 
 import com.vaadin.data.*;
+import com.vaadin.data.Container.Filterable;
 import com.vaadin.data.Container.Indexed;
 import com.vaadin.data.Container.ItemSetChangeNotifier;
 import com.vaadin.data.Container.PropertySetChangeNotifier;
@@ -30,11 +33,19 @@ import com.vaadin.data.Container.Sortable;
  * package level documentation for detailed description. This implements event
  * notification functionality and delegates other methods to QueryView
  * aggregate.
+ * <p>
+ * Filters are applied by the queries and hence the container accepts only
+ * filters which its query definition declares supported. EntityQueryDefinition
+ * translates the standard Vaadin filters to JPQL. Bean queries do not apply
+ * filters by themselves: AbstractBeanQuery subclasses have to read the filters
+ * from the query definition and declare the filter types they apply with
+ * LazyQueryDefinition.addSupportedFilterType, otherwise addContainerFilter
+ * throws UnsupportedFilterException.
  *
  * @author Tommi S.E. Laukkanen
  */
-public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotifier, PropertySetChangeNotifier,
-        Buffered {
+public class LazyQueryContainer implements Indexed, Sortable, Filterable, ItemSetChangeNotifier,
+        PropertySetChangeNotifier, Buffered {
     /** Java serialization UID. */
     private static final long serialVersionUID = 1L;
     /** QueryView where LazyQueryContainer delegates method calls to. */
@@ -43,6 +54,71 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
     private List<ItemSetChangeListener> itemSetChangeListeners = new ArrayList<ItemSetChangeListener>();
     /** List of registered PropertySetChangeListeners. */
     private List<PropertySetChangeListener> propertySetChangeListeners = new ArrayList<PropertySetChangeListener>();
+    /** The item ID list which is reused while container size does not change. */
+    private transient NaturalNumbersList itemIds;
+    /** The size last read by clients or -1 if size has changed in unknown way since. */
+    private volatile int knownSize = -1;
+    /** The depth of nested item set change batches. */
+    private int itemSetChangeBatchDepth;
+    /** The type of the pending item set change or null if no change is pending. */
+    private ItemSetChangeType pendingChangeType;
+    /** The index of the first item of the pending add or remove. */
+    private int pendingFirstIndex;
+    /** The number of items of the pending add or remove. */
+    private int pendingCount;
+
+    /**
+     * Types of the item set changes.
+     * @author Tommi S.E. Laukkanen
+     */
+    private enum ItemSetChangeType {
+        /** Contiguous range of items was added. */
+        ADD,
+        /** Contiguous range of items was removed. */
+        REMOVE,
+        /** Item set changed in unspecified way. */
+        FULL
+    }
+
+    /**
+     * ItemSetChangeEvent which is fired when contiguous range of items has
+     * been added to the container.
+     * @author Tommi S.E. Laukkanen
+     */
+    public interface ItemAddEvent extends ItemSetChangeEvent {
+        /**
+         * @return the ID of the first added item.
+         */
+        Object getFirstItemId();
+        /**
+         * @return the index of the first added item.
+         */
+        int getFirstIndex();
+        /**
+         * @return the number of added items.
+         */
+        int getAddedItemsCount();
+    }
+
+    /**
+     * ItemSetChangeEvent which is fired when contiguous range of items has
+     * been removed from the container.
+     * @author Tommi S.E. Laukkanen
+     */
+    public interface ItemRemoveEvent extends ItemSetChangeEvent {
+        /**
+         * @return the ID of the first removed item.
+         */
+        Object getFirstItemId();
+        /**
+         * @return the index of the first removed item.
+         */
+        int getFirstIndex();
+        /**
+         * @return the number of removed items.
+         */
+        int getRemovedItemsCount();
+    }
 
     /**
      * Constructs LazyQueryContainer with LazyQueryView and given queryFactory.
@@ -53,6 +129,7 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
     public LazyQueryContainer(final QueryFactory queryFactory, final boolean compositeItems,
             final int batchSize) {
         this.queryView = new LazyQueryView(queryFactory, compositeItems, batchSize);
+        registerCountListener();
     }
 
     /**
@@ -63,6 +140,7 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      */
     public LazyQueryContainer(final QueryDefinition queryDefinition, final QueryFactory queryFactory) {
         this.queryView = new LazyQueryView(queryDefinition, queryFactory);
+        registerCountListener();
     }
 
     /**
@@ -72,6 +150,17 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      */
     public LazyQueryContainer(final QueryView queryView) {
         this.queryView = queryView;
+        registerCountListener();
+    }
+
+    /**
+     * Registers count listener to the query view if the view counts items
+     * with count strategy.
+     */
+    private void registerCountListener() {
+        if (queryView instanceof CountingQueryView) {
+            ((CountingQueryView) queryView).setCountListener(new QueryCountListener());
+        }
     }
 
     /**
@@ -83,6 +172,94 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
         queryView.sort(sortPropertyIds, ascendingStates);
     }
 
+    /**
+     * Adds filter to be applied by the query and refreshes container.
+     * @param filter The filter to be added.
+     * @throws UnsupportedFilterException if the query definition is not able to apply the filter
+     *         or does not implement FilterableQueryDefinition.
+     */
+    @Override
+    public final void addContainerFilter(final Filter filter) throws UnsupportedFilterException {
+        final QueryDefinition queryDefinition = queryView.getQueryDefinition();
+        if (!(queryDefinition instanceof FilterableQueryDefinition)) {
+            throw new UnsupportedFilterException("Query definition does not support filters: "
+                    + queryDefinition.getClass().getName());
+        }
+        ((FilterableQueryDefinition) queryDefinition).addFilter(filter);
+        refresh();
+    }
+
+    /**
+     * Removes filter and refreshes container.
+     * @param filter The filter to be removed.
+     */
+    @Override
+    public final void removeContainerFilter(final Filter filter) {
+        final QueryDefinition queryDefinition = queryView.getQueryDefinition();
+        if (queryDefinition instanceof FilterableQueryDefinition) {
+            ((FilterableQueryDefinition) queryDefinition).removeFilter(filter);
+        }
+        refresh();
+    }
+
+    /**
+     * Removes all filters and refreshes container.
+     */
+    @Override
+    public final void removeAllContainerFilters() {
+        final QueryDefinition queryDefinition = queryView.getQueryDefinition();
+        if (queryDefinition instanceof FilterableQueryDefinition) {
+            ((FilterableQueryDefinition) queryDefinition).removeFilters();
+        }
+        refresh();
+    }
+
+    /**
+     * Gets the filters applied to the container.
+     * @return Unmodifiable collection of filters.
+     */
+    public final Collection<Filter> getContainerFilters() {
+        final QueryDefinition queryDefinition = queryView.getQueryDefinition();
+        if (queryDefinition instanceof FilterableQueryDefinition) {
+            return ((FilterableQueryDefinition) queryDefinition).getFilters();
+        }
+        return Collections.emptyList();
+    }
+
+    /**
+     * Sets the IDs of the properties visible in user interface and refreshes container.
+     * Queries may load only the visible properties eagerly and the rest on demand.
+     * Example: container.setVisiblePropertyIds(Arrays.asList(table.getVisibleColumns()));
+     * Buffered changes have to be committed or discarded first as refresh would discard them.
+     * The hint is ignored if the query view does not implement BatchQueryView.
+     * @param visiblePropertyIds the visible property IDs or null if all properties are visible.
+     * @throws IllegalStateException if the container has buffered changes.
+     */
+    public final void setVisiblePropertyIds(final Collection<?> visiblePropertyIds) {
+        if (!(queryView instanceof BatchQueryView)) {
+            return;
+        }
+        ((BatchQueryView) queryView).setVisiblePropertyIds(visiblePropertyIds);
+        notifyItemSetChanged();
+    }
+
+    /**
+     * Iterates all items of the current sort and filter in batches without
+     * disturbing the item cache. Intended for exports and reports which
+     * need to walk the whole result. Buffered changes are not included and
+     * iterated items are not tracked for modifications.
+     * @param batchSize The number of items loaded at once.
+     * @return Iterator of the items.
+     * @throws UnsupportedOperationException if the query view does not implement BatchQueryView.
+     */
+    public final Iterator<Item> iterateItems(final int batchSize) {
+        if (!(queryView instanceof BatchQueryView)) {
+            throw new UnsupportedOperationException("Query view does not support item iteration: "
+                    + queryView.getClass().getName());
+        }
+        return ((BatchQueryView) queryView).iterateItems(batchSize);
+    }
+
     /**
      * Lists of the property IDs queried.
      * @return A list of property IDs queried.
@@ -153,15 +330,24 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      * @return number of items.
      */
     public final int size() {
-        return queryView.size();
+        final int size = queryView.size();
+        knownSize = size;
+        return size;
     }
 
     /**
-     * Gets list of item indexes in the container.
+     * Gets list of item indexes in the container. The list is reused
+     * while size of the container does not change.
      * @return Collection of Integers.
      */
     public final Collection<?> getItemIds() {
-        return new NaturalNumbersList(size());
+        final int size = size();
+        NaturalNumbersList ids = itemIds;
+        if (ids == null || ids.size() != size) {
+            ids = new NaturalNumbersList(size);
+            itemIds = ids;
+        }
+        return ids;
     }
 
     /**
@@ -173,6 +359,27 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
         return queryView.getItem((Integer) itemId);
     }
 
+    /**
+     * Gets contiguous range of items. Missing batches are loaded with one
+     * query each. Items of query views which do not implement BatchQueryView
+     * are fetched one by one.
+     * @param startIndex The index of the first item.
+     * @param count The maximum number of items.
+     * @return list of the items which is shorter than count if the range
+     *         exceeds container size.
+     */
+    public final List<Item> getItems(final int startIndex, final int count) {
+        if (queryView instanceof BatchQueryView) {
+            return ((BatchQueryView) queryView).getItems(startIndex, count);
+        }
+        final int endIndex = (int) Math.min((long) startIndex + count, queryView.size());
+        final List<Item> items = new ArrayList<Item>(Math.max(endIndex - startIndex, 0));
+        for (int i = startIndex; i < endIndex; i++) {
+            items.add(queryView.getItem(i));
+        }
+        return items;
+    }
+
     /**
      * Gets property of an item.
      * @param itemId The index of the item.
@@ -190,7 +397,7 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      * @return the object ID i.e. index.
      */
     public final Object getIdByIndex(final int index) {
-        return index;
+        return NaturalNumbersList.valueOf(index);
     }
 
     /**
@@ -246,14 +453,14 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      * @return first item ID i.e. 0.
      */
     public final Object firstItemId() {
-        return 0;
+        return NaturalNumbersList.valueOf(0);
     }
 
     /**
      * @return last item ID i.e. size() - 1
      */
     public final Object lastItemId() {
-        return size() - 1;
+        return NaturalNumbersList.valueOf(size() - 1);
     }
 
     /**
@@ -261,7 +468,7 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      * @return itemId + 1
      */
     public final Object nextItemId(final Object itemId) {
-        return (Integer) itemId + 1;
+        return NaturalNumbersList.valueOf((Integer) itemId + 1);
     }
 
     /**
@@ -269,7 +476,7 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      * @return itemId - 1
      */
     public final Object prevItemId(final Object itemId) {
-        return (Integer) itemId - 1;
+        return NaturalNumbersList.valueOf((Integer) itemId - 1);
     }
 
     /**
@@ -324,9 +531,9 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
      * @return item index.
      */
     public final Object addItem() {
-        Object itemId = queryView.addItem();
-        notifyItemSetChanged();
-        return itemId;
+        final int index = queryView.addItem();
+        notifyItemSetChanged(ItemSetChangeType.ADD, index, 1);
+        return NaturalNumbersList.valueOf(index);
     }
 
     /**
@@ -374,6 +581,33 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
         itemSetChangeListeners.remove(listener);
     }
 
+    /**
+     * Sets the strategy used to count items and refreshes container. With
+     * provisional counts ItemSetChangeEvent is fired when count changes.
+     * Strategies counting in background deliver the change through executor
+     * which holds the session lock.
+     * @param countStrategy The count strategy.
+     * @throws UnsupportedOperationException if the query view does not implement CountingQueryView.
+     */
+    public final void setCountStrategy(final CountStrategy countStrategy) {
+        if (!(queryView instanceof CountingQueryView)) {
+            throw new UnsupportedOperationException("Query view does not support count strategies: "
+                    + queryView.getClass().getName());
+        }
+        ((CountingQueryView) queryView).setCountStrategy(countStrategy);
+        notifyItemSetChanged();
+    }
+
+    /**
+     * Checks whether the size is exact or provisional count of the count strategy.
+     * Provisional sizes can be shown for example as "10000+". Sizes of query
+     * views which do not implement CountingQueryView are exact.
+     * @return true if size is exact.
+     */
+    public final boolean isSizeExact() {
+        return !(queryView instanceof CountingQueryView) || ((CountingQueryView) queryView).isSizeExact();
+    }
+
     /**
      * Refreshes container.
      */
@@ -382,11 +616,114 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
         notifyItemSetChanged();
     }
 
+    /**
+     * Starts batch of item set changes. Item set change events are coalesced
+     * until the matching endItemSetChangeBatch call so that for example removing
+     * many items in a loop or handling a request causes a single event. Batches
+     * can be nested and must be ended in finally blocks.
+     */
+    public final void startItemSetChangeBatch() {
+        synchronized (this) {
+            itemSetChangeBatchDepth++;
+        }
+    }
+
+    /**
+     * Ends batch of item set changes. Ending the outermost batch fires the
+     * coalesced event if item set has changed during the batch.
+     */
+    public final void endItemSetChangeBatch() {
+        final ItemSetChangeType type;
+        final int firstIndex;
+        final int count;
+        synchronized (this) {
+            if (itemSetChangeBatchDepth == 0) {
+                throw new IllegalStateException("Item set change batch has not been started.");
+            }
+            itemSetChangeBatchDepth--;
+            if (itemSetChangeBatchDepth > 0 || pendingChangeType == null) {
+                return;
+            }
+            type = pendingChangeType;
+            firstIndex = pendingFirstIndex;
+            count = pendingCount;
+            pendingChangeType = null;
+        }
+        fireItemSetChanged(type, firstIndex, count);
+    }
+
     /**
      * Notifies that item set has been changed.
      */
     private void notifyItemSetChanged() {
-        QueryItemSetChangeEvent event = new QueryItemSetChangeEvent(this);
+        notifyItemSetChanged(ItemSetChangeType.FULL, 0, 0);
+    }
+
+    /**
+     * Notifies that item set has been changed or merges the change to the
+     * pending change if batch is in progress.
+     * @param type The type of the change.
+     * @param firstIndex The index of the first added or removed item.
+     * @param count The number of added or removed items.
+     */
+    private void notifyItemSetChanged(final ItemSetChangeType type, final int firstIndex, final int count) {
+        final int size = knownSize;
+        if (type == ItemSetChangeType.FULL || size == -1) {
+            knownSize = -1;
+        } else {
+            knownSize = type == ItemSetChangeType.ADD ? size + count : size - count;
+        }
+        synchronized (this) {
+            if (itemSetChangeBatchDepth > 0) {
+                mergePendingChange(type, firstIndex, count);
+                return;
+            }
+        }
+        fireItemSetChanged(type, firstIndex, count);
+    }
+
+    /**
+     * Merges change to the pending change. Adds and removes are kept as ranges
+     * as long as the changed items remain contiguous.
+     * @param type The type of the change.
+     * @param firstIndex The index of the first added or removed item.
+     * @param count The number of added or removed items.
+     */
+    private void mergePendingChange(final ItemSetChangeType type, final int firstIndex, final int count) {
+        if (pendingChangeType == null) {
+            pendingChangeType = type;
+            pendingFirstIndex = firstIndex;
+            pendingCount = count;
+        } else if (type != pendingChangeType || type == ItemSetChangeType.FULL) {
+            pendingChangeType = ItemSetChangeType.FULL;
+        } else if (type == ItemSetChangeType.ADD
+                && firstIndex >= pendingFirstIndex && firstIndex <= pendingFirstIndex + pendingCount) {
+            pendingCount += count;
+        } else if (type == ItemSetChangeType.REMOVE && firstIndex == pendingFirstIndex) {
+            pendingCount += count;
+        } else if (type == ItemSetChangeType.REMOVE && firstIndex + count == pendingFirstIndex) {
+            pendingFirstIndex = firstIndex;
+            pendingCount += count;
+        } else {
+            pendingChangeType = ItemSetChangeType.FULL;
+        }
+    }
+
+    /**
+     * Fires item set change event to the listeners.
+     * @param type The type of the change.
+     * @param firstIndex The index of the first added or removed item.
+     * @param count The number of added or removed items.
+     */
+    private void fireItemSetChanged(final ItemSetChangeType type, final int firstIndex, final int count) {
+        final QueryItemSetChangeEvent event;
+        if (type == ItemSetChangeType.ADD) {
+            event = new QueryItemAddEvent(this, firstIndex, count);
+        } else if (type == ItemSetChangeType.REMOVE) {
+            event = new QueryItemRemoveEvent(this, firstIndex, count);
+        } else {
+            event = new QueryItemSetChangeEvent(this);
+        }
         for (ItemSetChangeListener listener : itemSetChangeListeners) {
             listener.containerItemSetChange(event);
         }
@@ -464,6 +801,137 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
 
     }
 
+    /**
+     * Private ItemAddEvent implementation.
+     * @author Tommi S.E. Laukkanen
+     */
+    private class QueryItemAddEvent extends QueryItemSetChangeEvent implements ItemAddEvent {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The index of the first added item. */
+        private final int firstIndex;
+        /** The number of added items. */
+        private final int count;
+
+        /**
+         * Constructor for setting the container and the added range.
+         * @param container the Container.
+         * @param firstIndex The index of the first added item.
+         * @param count The number of added items.
+         */
+        public QueryItemAddEvent(final LazyQueryContainer container, final int firstIndex, final int count) {
+            super(container);
+            this.firstIndex = firstIndex;
+            this.count = count;
+        }
+
+        /**
+         * @return the ID of the first added item.
+         */
+        public Object getFirstItemId() {
+            return NaturalNumbersList.valueOf(firstIndex);
+        }
+
+        /**
+         * @return the index of the first added item.
+         */
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        /**
+         * @return the number of added items.
+         */
+        public int getAddedItemsCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Private ItemRemoveEvent implementation.
+     * @author Tommi S.E. Laukkanen
+     */
+    private class QueryItemRemoveEvent extends QueryItemSetChangeEvent implements ItemRemoveEvent {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The index of the first removed item. */
+        private final int firstIndex;
+        /** The number of removed items. */
+        private final int count;
+
+        /**
+         * Constructor for setting the container and the removed range.
+         * @param container the Container.
+         * @param firstIndex The index of the first removed item.
+         * @param count The number of removed items.
+         */
+        public QueryItemRemoveEvent(final LazyQueryContainer container, final int firstIndex, final int count) {
+            super(container);
+            this.firstIndex = firstIndex;
+            this.count = count;
+        }
+
+        /**
+         * @return the ID of the first removed item.
+         */
+        public Object getFirstItemId() {
+            return NaturalNumbersList.valueOf(firstIndex);
+        }
+
+        /**
+         * @return the index of the first removed item.
+         */
+        public int getFirstIndex() {
+            return firstIndex;
+        }
+
+        /**
+         * @return the number of removed items.
+         */
+        public int getRemovedItemsCount() {
+            return count;
+        }
+    }
+
+    /**
+     * Fires ItemSetChangeEvent when count of the query changes. If size
+     * last read by clients is known changes are described as items added
+     * to or removed from the end of the container.
+     * @author Tommi S.E. Laukkanen
+     */
+    private class QueryCountListener implements CountStrategy.Listener {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * Invoked when count of counter has changed.
+         * @param counter The counter.
+         * @param count The new size of the view.
+         */
+        @Override
+        public void countChanged(final CountStrategy.Counter counter, final int count) {
+            final int oldSize = knownSize;
+            if (oldSize == -1 || oldSize == count) {
+                notifyItemSetChanged();
+            } else if (count > oldSize) {
+                notifyItemSetChanged(ItemSetChangeType.ADD, oldSize, count - oldSize);
+            } else {
+                notifyItemSetChanged(ItemSetChangeType.REMOVE, count, oldSize - count);
+            }
+        }
+
+        /**
+         * Invoked when counting failed. The failure is rethrown to be reported
+         * by the error handling of the executor delivering the notification.
+         * @param counter The counter.
+         * @param exception The exception thrown by the count.
+         */
+        @Override
+        public void countFailed(final CountStrategy.Counter counter, final RuntimeException exception) {
+            throw new RuntimeException("Error in counting items.", exception);
+        }
+    }
+
     /**
      * Private PropertySetChangeEvent implementation.
      * @author Tommi Laukkanen
@@ -532,9 +1000,33 @@ public class LazyQueryContainer implements Indexed, Sortable, ItemSetChangeNotif
         return true;
     }
 
+    /**
+     * Gets range of item IDs as a view which does not materialise the IDs.
+     * The items in the range are preloaded as the caller is expected to
+     * access them next.
+     * @param startIndex The index of the first item ID.
+     * @param numberOfItems The maximum number of item IDs.
+     * @return list of item IDs which is shorter than numberOfItems if the range
+     *         exceeds container size.
+     * @throws IndexOutOfBoundsException if start index is negative or greater than container size.
+     * @throws IllegalArgumentException if number of items is negative.
+     */
     @Override
-    public List<?> getItemIds(int startIndex, int numberOfItems) {
-        return ContainerHelpers.getItemIdsUsingGetIdByIndex(startIndex, numberOfItems, this);
+    public final List<?> getItemIds(final int startIndex, final int numberOfItems) {
+        if (numberOfItems < 0) {
+            throw new IllegalArgumentException("Number of items can not be negative: " + numberOfItems);
+        }
+        final int size = size();
+        if (startIndex < 0 || startIndex > size) {
+            throw new IndexOutOfBoundsException("Start index " + startIndex + " is outside of container size "
+                    + size);
+        }
+        final int endIndex = (int) Math.min((long) startIndex + numberOfItems, size);
+        if (startIndex >= endIndex) {
+            return Collections.emptyList();
+        }
+        final int loadedCount = getItems(startIndex, endIndex - startIndex).size();
+        return new NaturalNumbersList(startIndex, loadedCount);
     }
 
 }
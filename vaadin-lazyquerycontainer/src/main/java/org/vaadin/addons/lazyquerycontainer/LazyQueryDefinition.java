@@ -19,33 +19,34 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
-import java.util.Map;
+
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Container.UnsupportedFilterException;
 
 /**
  * Default implementation of Query Definition. Stores the property information
- * of query to simple Map structure.
+ * of query to immutable PropertyMetadataTable.
  * 
  * @author Tommi S.E. Laukkanen
  */
-public class LazyQueryDefinition implements QueryDefinition, Serializable {
+public class LazyQueryDefinition implements FilterableQueryDefinition, Serializable {
     /** Java serialization version UID. */
     private static final long serialVersionUID = 1L;
-    /** Lust of property IDs included in this QueryDefinition. */
-    private final List<Object> propertyIds = new ArrayList<Object>();
-    /** Map of types of the properties. */
-    private final Map<Object, Object> propertyTypes = new HashMap<Object, Object>();
-    /** Default values for the properties. */
-    private final Map<Object, Object> defaultValues = new HashMap<Object, Object>();
-    /** Flags reflecting whether the properties are read only. */
-    private final Map<Object, Boolean> readOnlyStates = new HashMap<Object, Boolean>();
-    /** The sort states of the properties. */
-    private final Map<Object, Boolean> sortableStates = new HashMap<Object, Boolean>();
+    /** The property metadata table which is replaced when properties are added or removed. */
+    private PropertyMetadataTable propertyTable = PropertyMetadataTable.EMPTY;
     /** Batch size of the query. */
     private int batchSize;
     /** True if native items should be wrapped to CompositeItems. */
     private boolean compositeItems;
+    /** The filters to be applied by the query. */
+    private final List<Filter> filters = new ArrayList<Filter>();
+    /** The types of the filters the queries are able to apply. */
+    private final List<Class<? extends Filter>> supportedFilterTypes = new ArrayList<Class<? extends Filter>>();
+    /** The property IDs visible in user interface or null if all properties are visible. */
+    private List<Object> visiblePropertyIds;
+    /** True if bean queries wrap beans to LightweightBeanItems instead of BeanItems. */
+    private boolean lightweightBeanItems;
 
     /**
      * Constructor which sets the batch size.
@@ -63,7 +64,7 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
      */
     @Override
     public final Collection<?> getPropertyIds() {
-        return Collections.unmodifiableCollection(propertyIds);
+        return propertyTable.getPropertyIds();
     }
 
     /**
@@ -72,13 +73,7 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
      */
     @Override
     public final Collection<?> getSortablePropertyIds() {
-        final List<Object> sortablePropertyIds = new ArrayList<Object>();
-        for (final Object propertyId : propertyIds) {
-            if (isPropertySortable(propertyId)) {
-                sortablePropertyIds.add(propertyId);
-            }
-        }
-        return sortablePropertyIds;
+        return propertyTable.getSortablePropertyIds();
     }
 
     /**
@@ -88,7 +83,8 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
      */
     @Override
     public final Object getPropertyDefaultValue(final Object propertyId) {
-        return defaultValues.get(propertyId);
+        final int ordinal = propertyTable.getOrdinal(propertyId);
+        return ordinal == -1 ? null : propertyTable.getPropertyDefaultValue(ordinal);
     }
 
     /**
@@ -98,7 +94,8 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
      */
     @Override
     public final Class<?> getPropertyType(final Object propertyId) {
-        return (Class<?>) propertyTypes.get(propertyId);
+        final int ordinal = propertyTable.getOrdinal(propertyId);
+        return ordinal == -1 ? null : propertyTable.getPropertyType(ordinal);
     }
 
     /**
@@ -108,7 +105,8 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
      */
     @Override
     public final boolean isPropertyReadOnly(final Object propertyId) {
-        return readOnlyStates.get(propertyId);
+        final int ordinal = propertyTable.getOrdinal(propertyId);
+        return ordinal != -1 && propertyTable.isPropertyReadOnly(ordinal);
     }
 
     /**
@@ -118,11 +116,21 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
      */
     @Override
     public final boolean isPropertySortable(final Object propertyId) {
-        return sortableStates.get(propertyId);
+        final int ordinal = propertyTable.getOrdinal(propertyId);
+        return ordinal != -1 && propertyTable.isPropertySortable(ordinal);
+    }
+
+    /**
+     * Gets the property metadata table. The table is immutable and can be
+     * accessed by property ordinals until properties are added or removed.
+     * @return the property metadata table.
+     */
+    public final PropertyMetadataTable getPropertyTable() {
+        return propertyTable;
     }
 
     /**
-     * Adds property.
+     * Adds property. If property with the same ID exists its metadata is replaced.
      * @param propertyId ID of the property.
      * @param type Type of the property.
      * @param defaultValue Default value of the property.
@@ -132,11 +140,7 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
     @Override
     public final void addProperty(final Object propertyId, final Class<?> type, final Object defaultValue,
             final boolean readOnly, final boolean sortable) {
-        propertyIds.add(propertyId);
-        propertyTypes.put(propertyId, type);
-        defaultValues.put(propertyId, defaultValue);
-        readOnlyStates.put(propertyId, readOnly);
-        sortableStates.put(propertyId, sortable);
+        propertyTable = propertyTable.withProperty(propertyId, type, defaultValue, readOnly, sortable);
     }
 
     /**
@@ -145,11 +149,7 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
      */
     @Override
     public final void removeProperty(final Object propertyId) {
-        propertyIds.remove(propertyId);
-        propertyTypes.remove(propertyId);
-        defaultValues.remove(propertyId);
-        readOnlyStates.remove(propertyId);
-        sortableStates.remove(propertyId);
+        propertyTable = propertyTable.withoutProperty(propertyId);
     }
 
     /**
@@ -186,4 +186,117 @@ public class LazyQueryDefinition implements QueryDefinition, Serializable {
         this.batchSize = batchSize;
     }
 
+    /**
+     * Adds filter. Query implementations are responsible for applying
+     * the filters and hence only filters of supported filter types are
+     * accepted.
+     * @param filter the filter to add
+     * @throws UnsupportedFilterException if queries are not able to apply the filter.
+     */
+    @Override
+    public void addFilter(final Filter filter) {
+        validateFilter(filter);
+        filters.add(filter);
+    }
+
+    /**
+     * Checks that queries are able to apply the filter. Filter is supported
+     * if it is instance of a supported filter type. Subclasses which apply
+     * filters themselves may override this method.
+     * @param filter the filter to check
+     * @throws UnsupportedFilterException if queries are not able to apply the filter.
+     */
+    protected void validateFilter(final Filter filter) {
+        for (final Class<? extends Filter> filterType : supportedFilterTypes) {
+            if (filterType.isInstance(filter)) {
+                return;
+            }
+        }
+        throw new UnsupportedFilterException("Filter type is not supported by the queries: "
+                + (filter == null ? null : filter.getClass().getName()));
+    }
+
+    /**
+     * Declares that queries apply filters of the given type. Queries applying
+     * junction filters are responsible for applying the filters they contain.
+     * @param filterType the filter type
+     */
+    public final void addSupportedFilterType(final Class<? extends Filter> filterType) {
+        supportedFilterTypes.add(filterType);
+    }
+
+    /**
+     * @return the types of the filters the queries are able to apply.
+     */
+    public final List<Class<? extends Filter>> getSupportedFilterTypes() {
+        return Collections.unmodifiableList(supportedFilterTypes);
+    }
+
+    /**
+     * Removes filter.
+     * @param filter the filter to remove
+     */
+    @Override
+    public void removeFilter(final Filter filter) {
+        filters.remove(filter);
+    }
+
+    /**
+     * Removes all filters.
+     */
+    @Override
+    public void removeFilters() {
+        filters.clear();
+    }
+
+    /**
+     * @return the filters
+     */
+    @Override
+    public final List<Filter> getFilters() {
+        return Collections.unmodifiableList(filters);
+    }
+
+    /**
+     * Gets the IDs of the properties currently visible in user interface. Queries may
+     * use this hint to load only the visible properties eagerly.
+     * @return the visiblePropertyIds or null if all properties are visible.
+     */
+    public final Collection<?> getVisiblePropertyIds() {
+        if (visiblePropertyIds == null) {
+            return null;
+        }
+        return Collections.unmodifiableList(visiblePropertyIds);
+    }
+
+    /**
+     * After this method has been called the Query has to be discarded
+     * immediately.
+     * @param visiblePropertyIds the visiblePropertyIds to set or null if all properties are visible.
+     */
+    public final void setVisiblePropertyIds(final Collection<?> visiblePropertyIds) {
+        if (visiblePropertyIds == null) {
+            this.visiblePropertyIds = null;
+        } else {
+            this.visiblePropertyIds = new ArrayList<Object>(visiblePropertyIds);
+        }
+    }
+
+    /**
+     * Checks whether bean queries wrap beans to LightweightBeanItems instead of BeanItems.
+     * @return the lightweightBeanItems
+     */
+    public final boolean isLightweightBeanItems() {
+        return lightweightBeanItems;
+    }
+
+    /**
+     * After this method has been called the Query has to be discarded
+     * immediately.
+     * @param lightweightBeanItems the lightweightBeanItems to set
+     */
+    public final void setLightweightBeanItems(final boolean lightweightBeanItems) {
+        this.lightweightBeanItems = lightweightBeanItems;
+    }
+
 }
@@ -16,8 +16,10 @@
 package org.vaadin.addons.lazyquerycontainer;
 
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -41,7 +43,7 @@ import com.vaadin.data.Property.ValueChangeNotifier;
  * 
  * @author Tommi S.E. Laukkanen
  */
-public final class LazyQueryView implements QueryView, ValueChangeListener {
+public final class LazyQueryView implements BatchQueryView, CountingQueryView, ValueChangeListener {
     /** Java serialization UID. */
     private static final long serialVersionUID = 1L;
 
@@ -68,6 +70,12 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
     private QueryFactory queryFactory;
     /** Currenct query used by view. */
     private Query query;
+    /** The count strategy. */
+    private CountStrategy countStrategy = new ExactCountStrategy();
+    /** The counter of the current query or null if not created yet. */
+    private volatile CountStrategy.Counter counter;
+    /** The listener to notify when count of the current query changes or null. */
+    private CountStrategy.Listener countListener;
 
     /** Property IDs participating in sort. */
     private Object[] sortPropertyIds;
@@ -81,8 +89,10 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
     private final LinkedList<Integer> itemCacheAccessLog = new LinkedList<Integer>();
     /** Map of items in cache. */
     private final Map<Integer, Item> itemCache = new HashMap<Integer, Item>();
-    /** Map from properties to items for items which are in cache. */
+    /** Map from properties to items for items which are in cache and do not notify value changes themselves. */
     private Map<Property, Item> propertyItemMapCache = new HashMap<Property, Item>();
+    /** Map from items to their value change listeners for items which are in cache and notify value changes. */
+    private final Map<Item, ItemValueChangeListener> itemListenerCache = new HashMap<Item, ItemValueChangeListener>();
 
     /** List of added items since last commit/rollback. */
     private final List<Item> addedItems = new ArrayList<Item>();
@@ -90,6 +100,10 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
     private final List<Item> modifiedItems = new ArrayList<Item>();
     /** List of deleted items since last commit/rollback. */
     private final List<Item> removedItems = new ArrayList<Item>();
+    /** Number of item loads in progress. Count notifications are deferred while items are loaded. */
+    private int loadingDepth;
+    /** Count notifications deferred until the item load in progress has returned its items. */
+    private final List<Runnable> deferredCountNotifications = new ArrayList<Runnable>();
 
     /**
      * Constructs LazyQueryView with DefaultQueryDefinition and the given
@@ -149,6 +163,41 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
         refresh();
     }
 
+    /**
+     * Sets the visible property IDs hint to query definition and refreshes view.
+     * Query definitions other than LazyQueryDefinition do not carry the hint
+     * and for them the view is only refreshed.
+     * @param visiblePropertyIds the visible property IDs or null if all properties are visible.
+     * @throws IllegalStateException if the view has buffered changes.
+     */
+    @Override
+    public void setVisiblePropertyIds(final Collection<?> visiblePropertyIds) {
+        if (isModified()) {
+            throw new IllegalStateException(
+                    "Visible properties can not be changed before buffered changes are committed or discarded.");
+        }
+        if (queryDefinition instanceof LazyQueryDefinition) {
+            ((LazyQueryDefinition) queryDefinition).setVisiblePropertyIds(visiblePropertyIds);
+        }
+        refresh();
+    }
+
+    /**
+     * Iterates all items of the current sort and filter in batches with
+     * a query of its own so that the item cache and the current query are
+     * left untouched.
+     * @param batchSize The number of items loaded at once.
+     * @return Iterator of the items.
+     */
+    @Override
+    public Iterator<Item> iterateItems(final int batchSize) {
+        final Query iteratedQuery = queryFactory.constructQuery(sortPropertyIds, ascendingStates);
+        if (iteratedQuery instanceof StreamingQuery) {
+            return ((StreamingQuery) iteratedQuery).iterateItems(batchSize);
+        }
+        return new QueryItemIterator(iteratedQuery, batchSize);
+    }
+
     /**
      * Refreshes the view by clearing cache, discarding buffered changes and
      * current query instance. New query is created on demand.
@@ -156,18 +205,36 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
     @Override
     public void refresh() {
 
+        if (query instanceof ReleasingQuery) {
+            if (!itemCache.isEmpty()) {
+                final List<Item> releasedItems = new ArrayList<Item>(itemCache.size());
+                for (final Item item : itemCache.values()) {
+                    if (!modifiedItems.contains(item) && !removedItems.contains(item)) {
+                        releasedItems.add(item);
+                    }
+                }
+                ((ReleasingQuery) query).releaseItems(releasedItems);
+            }
+            ((ReleasingQuery) query).releaseQuery();
+        }
+
         for (final Property property : propertyItemMapCache.keySet()) {
             if (property instanceof ValueChangeNotifier) {
                 final ValueChangeNotifier notifier = (ValueChangeNotifier) property;
                 notifier.removeListener(this);
             }
         }
+        for (final Map.Entry<Item, ItemValueChangeListener> entry : itemListenerCache.entrySet()) {
+            ((ItemValueChangeNotifier) entry.getKey()).removeValueChangeListener(entry.getValue());
+        }
 
         query = null;
+        counter = null;
         batchCount = 0;
         itemCache.clear();
         itemCacheAccessLog.clear();
         propertyItemMapCache.clear();
+        itemListenerCache.clear();
 
         discard();
     }
@@ -178,7 +245,137 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
      */
     @Override
     public int size() {
-        return getQuery().size() + addedItems.size();
+        return getCounter().getCount() + addedItems.size();
+    }
+
+    /**
+     * Checks whether size of the current query is exact or provisional.
+     * @return true if size is exact.
+     */
+    @Override
+    public boolean isSizeExact() {
+        return getCounter().isExact();
+    }
+
+    /**
+     * Sets the count strategy and refreshes the view.
+     * @param countStrategy the count strategy.
+     */
+    @Override
+    public void setCountStrategy(final CountStrategy countStrategy) {
+        this.countStrategy = countStrategy;
+        refresh();
+    }
+
+    /**
+     * Sets listener which is notified when count of the current query
+     * changes after it has been resolved. The notified count is the size
+     * of the view including added items.
+     * @param countListener the count listener or null.
+     */
+    @Override
+    public void setCountListener(final CountStrategy.Listener countListener) {
+        this.countListener = countListener;
+    }
+
+    /**
+     * Gets counter of the current query or creates one on demand. Counter is
+     * created while holding the view lock so that count threads started by
+     * the strategy do not see the counter unassigned.
+     * @return the counter.
+     */
+    private CountStrategy.Counter getCounter() {
+        final Query currentQuery = getQuery();
+        CountStrategy.Counter currentCounter = counter;
+        if (currentCounter == null) {
+            synchronized (this) {
+                if (counter == null) {
+                    counter = countStrategy.createCounter(currentQuery, new CountStrategy.QuerySource() {
+                        /** Java serialization version UID. */
+                        private static final long serialVersionUID = 1L;
+                        @Override
+                        public Query constructQuery() {
+                            return queryFactory.constructQuery(sortPropertyIds, ascendingStates);
+                        }
+                    }, new CountStrategy.Listener() {
+                        /** Java serialization version UID. */
+                        private static final long serialVersionUID = 1L;
+                        @Override
+                        public void countChanged(final CountStrategy.Counter changedCounter, final int count) {
+                            notifyCount(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (isCurrentCounter(changedCounter)) {
+                                        countListener.countChanged(changedCounter, count + addedItems.size());
+                                    }
+                                }
+                            });
+                        }
+                        @Override
+                        public void countFailed(final CountStrategy.Counter failedCounter,
+                                final RuntimeException exception) {
+                            notifyCount(new Runnable() {
+                                @Override
+                                public void run() {
+                                    if (isCurrentCounter(failedCounter)) {
+                                        countListener.countFailed(failedCounter, exception);
+                                    }
+                                }
+                            });
+                        }
+                    });
+                }
+                currentCounter = counter;
+            }
+        }
+        return currentCounter;
+    }
+
+    /**
+     * Delivers count notification to the count listener. Counters may notify
+     * count changes while items are loaded, in which case the notification is
+     * deferred until the loading method has returned its items so that count
+     * listeners can safely access the view, for example to refresh it.
+     * @param notification The notification.
+     */
+    private void notifyCount(final Runnable notification) {
+        if (loadingDepth > 0) {
+            deferredCountNotifications.add(notification);
+        } else {
+            notification.run();
+        }
+    }
+
+    /**
+     * Starts item load during which count notifications are deferred.
+     */
+    private void beginLoading() {
+        loadingDepth++;
+    }
+
+    /**
+     * Ends item load and delivers the count notifications deferred during
+     * the outermost load.
+     */
+    private void endLoading() {
+        loadingDepth--;
+        if (loadingDepth == 0) {
+            while (!deferredCountNotifications.isEmpty()) {
+                deferredCountNotifications.remove(0).run();
+            }
+        }
+    }
+
+    /**
+     * Checks whether given counter is the counter of the current query and
+     * count listener has been set.
+     * @param changedCounter The counter.
+     * @return true if notifications of the counter are to be forwarded.
+     */
+    private boolean isCurrentCounter(final CountStrategy.Counter changedCounter) {
+        synchronized (this) {
+            return changedCounter == counter && countListener != null;
+        }
     }
 
     /**
@@ -208,7 +405,8 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
 
     /**
      * Gets item at given index from addedItems, cache and loads new batch on
-     * demand if required.
+     * demand if required. Count changes caused by the load are notified after
+     * the item has been read from cache.
      * @param index The item index.
      * @return the item at given index.
      */
@@ -221,7 +419,13 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
         }
         if (!itemCache.containsKey(index - addedItemCount)) {
             // item is not in our cache, ask the query for more items
-            queryItem(index - addedItemCount);
+            beginLoading();
+            try {
+                queryItem(index - addedItemCount);
+                return itemCache.get(index - addedItemCount);
+            } finally {
+                endLoading();
+            }
         } else {
             // item is already in our cache
             // refresh cache access log.
@@ -233,21 +437,84 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
     }
 
     /**
-     * Query item and the surrounding batch of items.
+     * Gets contiguous range of items from addedItems and cache and loads each
+     * missing batch on demand with one query. Count changes caused by the
+     * loads are notified after all items of the range have been collected.
+     * @param startIndex The index of the first item.
+     * @param count The maximum number of items.
+     * @return list of the items in the range.
+     */
+    @Override
+    public List<Item> getItems(final int startIndex, final int count) {
+        if (startIndex < 0 || count < 0) {
+            throw new IllegalArgumentException("Start index or count can not be negative: "
+                    + startIndex + ", " + count);
+        }
+        final int endIndex = (int) Math.min((long) startIndex + count, size());
+        final List<Item> items = new ArrayList<Item>(Math.max(0, endIndex - startIndex));
+        final int addedItemCount = addedItems.size();
+        beginLoading();
+        try {
+            for (int index = startIndex; index < endIndex; index++) {
+                if (index < addedItemCount) {
+                    items.add(addedItems.get(index));
+                    continue;
+                }
+                final int cacheIndex = index - addedItemCount;
+                Item item = itemCache.get(cacheIndex);
+                if (item == null) {
+                    queryItem(cacheIndex);
+                    item = itemCache.get(cacheIndex);
+                    if (item == null) {
+                        // provisional count exceeded the actual item count
+                        break;
+                    }
+                } else {
+                    itemCacheAccessLog.remove((Object) cacheIndex);
+                    itemCacheAccessLog.addLast(cacheIndex);
+                }
+                items.add(item);
+            }
+        } finally {
+            endLoading();
+        }
+        return items;
+    }
+
+    /**
+     * Query item and the surrounding batch of items. Items of the batch which
+     * are already cached are not loaded again as the batch may have been
+     * loaded partially when the count was provisional. Cached items are kept
+     * as they may be modified or removed.
      * @param index The index of item requested to be queried.
      */
     private void queryItem(final int index) {
         final int batchSize = getBatchSize();
-        final int startIndex = index - index % batchSize;
-        final int count = Math.min(batchSize, getQuery().size() - startIndex);
+        int startIndex = index - index % batchSize;
+        while (startIndex < index && itemCache.containsKey(startIndex)) {
+            startIndex++;
+        }
+        final CountStrategy.Counter batchCounter = getCounter();
+        final boolean exactCount = batchCounter.isExact();
+        final int requestedCount = Math.min(index - index % batchSize + batchSize, batchCounter.getCount())
+                - startIndex;
 
         final long queryStartTime = System.currentTimeMillis();
         // load more items
-        final List<Item> items = getQuery().loadItems(startIndex, count);
+        final List<Item> items = getQuery().loadItems(startIndex, requestedCount);
         final long queryEndTime = System.currentTimeMillis();
 
+        // Provisional count may exceed the actual item count in which case missing items
+        // are not treated as removed.
+        final int count = exactCount ? requestedCount : Math.min(requestedCount, items.size());
+
+        final List<Integer> queriedIndexes = new ArrayList<Integer>(count);
         for (int i = 0; i < count; i++) {
             final int itemIndex = startIndex + i;
+            if (itemCache.containsKey(itemIndex)) {
+                continue;
+            }
+            queriedIndexes.add(itemIndex);
 
             final Item item;
 
@@ -269,9 +536,7 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
             itemCacheAccessLog.addLast(itemIndex);
         }
 
-        for (int i = 0; i < count; i++) {
-            final int itemIndex = startIndex + i;
-
+        for (final int itemIndex : queriedIndexes) {
             final Item item = itemCache.get(itemIndex);
 
             if (item.getItemProperty(DEBUG_PROPERTY_ID_BATCH_INDEX) != null) {
@@ -290,21 +555,14 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
                 item.getItemProperty(DEBUG_PROPERTY_ID_BATCH_QUERY_TIME).setReadOnly(true);
             }
 
-            for (final Object propertyId : item.getItemPropertyIds()) {
-                final Property property = item.getItemProperty(propertyId);
-                if (property instanceof ValueChangeNotifier) {
-                    final ValueChangeNotifier notifier = (ValueChangeNotifier) property;
-                    notifier.addListener(this);
-                    propertyItemMapCache.put(property, item);
-                }
-            }
-
+            addValueChangeListener(item);
         }
 
         // Increase batch count.
         batchCount++;
 
         // Evict items from cache if cache size exceeds max cache size
+        final List<Item> evictedItems = new ArrayList<Item>();
         int counter = 0;
         while (itemCache.size() > maxCacheSize) {
             final int firstIndex = itemCacheAccessLog.getFirst();
@@ -315,16 +573,8 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
             if (!modifiedItems.contains(firstItem) && !removedItems.contains(firstItem)) {
                 itemCacheAccessLog.removeFirst();
                 itemCache.remove(firstIndex);
-
-                for (final Object propertyId : firstItem.getItemPropertyIds()) {
-                    final Property property = firstItem.getItemProperty(propertyId);
-                    if (property instanceof ValueChangeNotifier) {
-                        final ValueChangeNotifier notifier = (ValueChangeNotifier) property;
-                        notifier.removeListener(this);
-                        propertyItemMapCache.remove(property);
-                    }
-                }
-
+                evictedItems.add(firstItem);
+                removeValueChangeListener(firstItem);
             } else {
                 itemCacheAccessLog.removeFirst();
                 itemCacheAccessLog.addLast(firstIndex);
@@ -337,6 +587,55 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
                 break;
             }
         }
+
+        if (query instanceof ReleasingQuery && !evictedItems.isEmpty()) {
+            ((ReleasingQuery) query).releaseItems(evictedItems);
+        }
+        batchCounter.itemsLoaded(startIndex, requestedCount, items.size());
+    }
+
+    /**
+     * Listens value changes of the item. Items which notify value changes
+     * themselves are listened with single listener so that their properties
+     * are not created for listening. Properties of other items are listened
+     * individually.
+     * @param item The item to listen.
+     */
+    private void addValueChangeListener(final Item item) {
+        if (item instanceof ItemValueChangeNotifier) {
+            final ItemValueChangeListener listener = new ItemValueChangeListener(item);
+            ((ItemValueChangeNotifier) item).addValueChangeListener(listener);
+            itemListenerCache.put(item, listener);
+            return;
+        }
+        for (final Object propertyId : item.getItemPropertyIds()) {
+            final Property property = item.getItemProperty(propertyId);
+            if (property instanceof ValueChangeNotifier) {
+                final ValueChangeNotifier notifier = (ValueChangeNotifier) property;
+                notifier.addListener(this);
+                propertyItemMapCache.put(property, item);
+            }
+        }
+    }
+
+    /**
+     * Stops listening value changes of the item.
+     * @param item The item to stop listening.
+     */
+    private void removeValueChangeListener(final Item item) {
+        final ItemValueChangeListener listener = itemListenerCache.remove(item);
+        if (listener != null) {
+            ((ItemValueChangeNotifier) item).removeValueChangeListener(listener);
+            return;
+        }
+        for (final Object propertyId : item.getItemPropertyIds()) {
+            final Property property = item.getItemProperty(propertyId);
+            if (property instanceof ValueChangeNotifier) {
+                final ValueChangeNotifier notifier = (ValueChangeNotifier) property;
+                notifier.removeListener(this);
+                propertyItemMapCache.remove(property);
+            }
+        }
     }
 
     /**
@@ -377,7 +676,16 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
     @Override
     public void valueChange(final ValueChangeEvent event) {
         final Property property = event.getProperty();
-        final Item item = propertyItemMapCache.get(property);
+        valueChange(propertyItemMapCache.get(property), property);
+    }
+
+    /**
+     * Adds the item to modified list if value of its property other than
+     * item status was changed.
+     * @param item The item.
+     * @param property The changed property.
+     */
+    private void valueChange(final Item item, final Property property) {
         if (property == item.getItemProperty(PROPERTY_ID_ITEM_STATUS)) {
             return;
         }
@@ -534,4 +842,32 @@ public final class LazyQueryView implements QueryView, ValueChangeListener {
         this.propertyItemMapCache = propertyItemCacheMap;
     }
 
+    /**
+     * Listener of value changes of single item which notifies value changes itself.
+     * @author Tommi S.E. Laukkanen
+     */
+    private final class ItemValueChangeListener implements ValueChangeListener {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The listened item. */
+        private final Item item;
+
+        /**
+         * Constructor which sets the listened item.
+         * @param item The listened item.
+         */
+        private ItemValueChangeListener(final Item item) {
+            this.item = item;
+        }
+
+        /**
+         * Forwards value change of the item to the view.
+         * @param event the ValueChangeEvent
+         */
+        @Override
+        public void valueChange(final ValueChangeEvent event) {
+            LazyQueryView.this.valueChange(item, event.getProperty());
+        }
+    }
+
 }
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.AbstractProperty;
+import com.vaadin.data.util.BeanItem;
+
+/**
+ * Lightweight alternative to BeanItem. Bean class is introspected only once
+ * and accessors are shared through BeanMetadata. Properties are created on
+ * first access so item construction allocates only the item itself.
+ * Value change listeners of the item are registered to properties when
+ * the properties are created. Properties can not be added or removed.
+ * @param <T> Bean class.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class LightweightBeanItem<T> implements ItemValueChangeNotifier {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The bean. */
+    private final T bean;
+    /** The bean metadata or null if not resolved after deserialization. */
+    private transient BeanMetadata beanMetadata;
+    /** The properties by property index or null if no property has been accessed. */
+    private Property[] properties;
+    /** The value change listeners or null if no listener has been added. */
+    private List<Property.ValueChangeListener> valueChangeListeners;
+
+    /**
+     * Constructor which wraps the bean.
+     * @param bean The bean.
+     */
+    public LightweightBeanItem(final T bean) {
+        this.bean = bean;
+    }
+
+    /**
+     * @return the bean
+     */
+    public T getBean() {
+        return bean;
+    }
+
+    /**
+     * Gets bean from BeanItem or LightweightBeanItem.
+     * @param beanItem The bean item.
+     * @return the bean.
+     */
+    public static Object getBean(final Item beanItem) {
+        if (beanItem instanceof LightweightBeanItem) {
+            return ((LightweightBeanItem<?>) beanItem).getBean();
+        }
+        return ((BeanItem<?>) beanItem).getBean();
+    }
+
+    /**
+     * @return the bean metadata.
+     */
+    private BeanMetadata getBeanMetadata() {
+        if (beanMetadata == null) {
+            beanMetadata = BeanMetadata.getBeanMetadata(bean.getClass());
+        }
+        return beanMetadata;
+    }
+
+    /**
+     * Gets property by ID creating it on first access.
+     * @param id ID of the property.
+     * @return the property or null if bean does not have readable property with given ID.
+     */
+    @Override
+    public Property getItemProperty(final Object id) {
+        final int propertyIndex = getBeanMetadata().getPropertyIndex(id);
+        if (propertyIndex == -1) {
+            return null;
+        }
+        if (properties == null) {
+            properties = new Property[getBeanMetadata().getPropertyIds().size()];
+        }
+        if (properties[propertyIndex] == null) {
+            final BeanProperty property = new BeanProperty(propertyIndex);
+            if (valueChangeListeners != null) {
+                for (final Property.ValueChangeListener listener : valueChangeListeners) {
+                    property.addListener(listener);
+                }
+            }
+            properties[propertyIndex] = property;
+        }
+        return properties[propertyIndex];
+    }
+
+    /**
+     * Adds value change listener to the created properties and to the
+     * properties created later.
+     * @param listener The listener to add.
+     */
+    @Override
+    public void addValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null) {
+            valueChangeListeners = new ArrayList<Property.ValueChangeListener>(1);
+        }
+        valueChangeListeners.add(listener);
+        if (properties != null) {
+            for (final Property property : properties) {
+                if (property != null) {
+                    ((BeanProperty) property).addListener(listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * Removes value change listener from the item and the created properties.
+     * @param listener The listener to remove.
+     */
+    @Override
+    public void removeValueChangeListener(final Property.ValueChangeListener listener) {
+        if (valueChangeListeners == null || !valueChangeListeners.remove(listener)) {
+            return;
+        }
+        if (properties != null) {
+            for (final Property property : properties) {
+                if (property != null) {
+                    ((BeanProperty) property).removeListener(listener);
+                }
+            }
+        }
+    }
+
+    /**
+     * Lists IDs of the properties in the item.
+     * @return Collection of property IDs.
+     */
+    @Override
+    public Collection<?> getItemPropertyIds() {
+        return getBeanMetadata().getPropertyIds();
+    }
+
+    /**
+     * Adding properties is not supported.
+     * @param id ID of the property to be added.
+     * @param property Property to be added.
+     * @return never returns.
+     */
+    @Override
+    public boolean addItemProperty(final Object id, final Property property) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Removing properties is not supported.
+     * @param id ID of the property to be removed.
+     * @return never returns.
+     */
+    @Override
+    public boolean removeItemProperty(final Object id) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Property which reads and writes bean property with shared accessors.
+     * @author Tommi S.E. Laukkanen
+     */
+    private final class BeanProperty extends AbstractProperty<Object> {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The property index. */
+        private final int propertyIndex;
+
+        /**
+         * Constructor which sets the property index.
+         * @param propertyIndex The property index.
+         */
+        private BeanProperty(final int propertyIndex) {
+            this.propertyIndex = propertyIndex;
+            setReadOnly(getBeanMetadata().isPropertyReadOnly(propertyIndex));
+        }
+
+        /**
+         * @return the value read from the bean.
+         */
+        @Override
+        public Object getValue() {
+            return getBeanMetadata().getPropertyValue(bean, propertyIndex);
+        }
+
+        /**
+         * Writes value to the bean.
+         * @param newValue the value to set.
+         */
+        @Override
+        public void setValue(final Object newValue) {
+            if (isReadOnly() || getBeanMetadata().isPropertyReadOnly(propertyIndex)) {
+                throw new Property.ReadOnlyException();
+            }
+            getBeanMetadata().setPropertyValue(bean, propertyIndex, newValue);
+            fireValueChange();
+        }
+
+        /**
+         * @return the type of the property.
+         */
+        @Override
+        public Class<?> getType() {
+            return getBeanMetadata().getPropertyType(propertyIndex);
+        }
+    }
+}
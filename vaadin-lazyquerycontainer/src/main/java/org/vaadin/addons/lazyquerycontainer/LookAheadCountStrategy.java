@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+/**
+ * Count strategy for infinite scrolling which never counts items. The count
+ * is the number of loaded items plus a look ahead margin. The count grows
+ * when a full batch is loaded and becomes exact when a batch returns less
+ * items than requested. Suitable for feeds and logs where exact size is
+ * not needed. Look ahead margin is typically the batch size.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class LookAheadCountStrategy implements CountStrategy {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The look ahead margin. */
+    private final int lookAhead;
+
+    /**
+     * Constructor for configuring the strategy.
+     * @param lookAhead The number of items assumed to exist after the loaded items.
+     */
+    public LookAheadCountStrategy(final int lookAhead) {
+        if (lookAhead < 1) {
+            throw new IllegalArgumentException("Look ahead has to be positive: " + lookAhead);
+        }
+        this.lookAhead = lookAhead;
+    }
+
+    /**
+     * Creates counter for a new query without counting items.
+     * @param query The query to count.
+     * @param querySource The source of separate query instances which is not used.
+     * @param listener The listener to notify when count grows or is fixed.
+     * @return the counter.
+     */
+    @Override
+    public Counter createCounter(final Query query, final QuerySource querySource, final Listener listener) {
+        return new LookAheadCounter(lookAhead, listener);
+    }
+
+    /**
+     * Counter which follows the loaded items.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class LookAheadCounter implements Counter {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The look ahead margin. */
+        private final int lookAhead;
+        /** The listener to notify when count changes. */
+        private final Listener listener;
+        /** The current count. */
+        private int count;
+        /** True if end of the query has been loaded. */
+        private boolean exact;
+
+        /**
+         * Constructor for configuring the counter.
+         * @param lookAhead The look ahead margin.
+         * @param listener The listener to notify when count changes.
+         */
+        private LookAheadCounter(final int lookAhead, final Listener listener) {
+            this.lookAhead = lookAhead;
+            this.listener = listener;
+            this.count = lookAhead;
+        }
+
+        /**
+         * @return the count
+         */
+        @Override
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * @return true if end of the query has been loaded.
+         */
+        @Override
+        public boolean isExact() {
+            return exact;
+        }
+
+        /**
+         * Fixes count if batch was short and otherwise grows count to cover loaded items and look ahead margin.
+         * @param startIndex Starting index of the batch.
+         * @param requestedCount Count of the items requested.
+         * @param loadedCount Count of the items loaded.
+         */
+        @Override
+        public void itemsLoaded(final int startIndex, final int requestedCount, final int loadedCount) {
+            if (exact) {
+                return;
+            }
+            final int newCount;
+            if (loadedCount < requestedCount) {
+                exact = true;
+                newCount = startIndex + loadedCount;
+            } else {
+                newCount = Math.max(count, startIndex + loadedCount + lookAhead);
+            }
+            if (newCount != count || exact) {
+                count = newCount;
+                listener.countChanged(this, count);
+            }
+        }
+    }
+}
@@ -16,30 +16,101 @@
 package org.vaadin.addons.lazyquerycontainer;
 
 import java.util.AbstractList;
+import java.util.List;
 import java.util.RandomAccess;
 
 /**
  * Natural numbers list implementation used in LazyQueryContainer.getItemIds
- * method. This list is immutable and contains integer numbers from 0 to size - 1.
+ * method. This list is immutable and contains integer numbers from offset to
+ * offset + size - 1. Sub lists are range views and no arrays are materialised
+ * except by toArray. Integers below the shared cache limit are boxed only once.
  * @author HRE@github.com, Tommi Laukkanen
  */
 public final class NaturalNumbersList extends AbstractList<Integer> implements
         RandomAccess, java.io.Serializable {
     /** Java serialization version UID. */
     private static final long serialVersionUID = 1L;
+    /** The upper limit of the shared Integer cache. */
+    private static final int MAX_CACHED_VALUE = 16384;
+    /** The initial size of the shared Integer cache. */
+    private static final int INITIAL_CACHE_SIZE = 1024;
+    /** The shared Integer cache which is grown on demand up to MAX_CACHED_VALUE. */
+    private static volatile Integer[] cache = createCache(new Integer[0], INITIAL_CACHE_SIZE);
+    /** The first number of the list. */
+    private final int offset;
     /** The size of the list. */
     private final int size;
-    /** Array containing list values. This array is created on demand. */
-    private Integer[] array = null;
 
     /**
      * Constructor which sets the size of the constructed list.
      * @param size Size of the constructed list.
      */
     public NaturalNumbersList(final int size) {
+        this(0, size);
+    }
+
+    /**
+     * Constructor which sets the first number and the size of the constructed list.
+     * @param offset The first number of the constructed list.
+     * @param size Size of the constructed list.
+     */
+    public NaturalNumbersList(final int offset, final int size) {
+        if (offset < 0 || size < 0) {
+            throw new IllegalArgumentException("Offset and size can not be negative: " + offset + ", " + size);
+        }
+        this.offset = offset;
         this.size = size;
     }
 
+    /**
+     * Gets Integer corresponding to given number. Numbers below the shared
+     * cache limit return the same instance on every call.
+     * @param value The number.
+     * @return the Integer.
+     */
+    public static Integer valueOf(final int value) {
+        if (value < 0 || value >= MAX_CACHED_VALUE) {
+            return Integer.valueOf(value);
+        }
+        Integer[] values = cache;
+        if (value >= values.length) {
+            values = growCache(value);
+        }
+        return values[value];
+    }
+
+    /**
+     * Grows the shared cache to contain given number.
+     * @param value The number.
+     * @return the grown cache.
+     */
+    private static synchronized Integer[] growCache(final int value) {
+        int length = cache.length;
+        if (value < length) {
+            return cache;
+        }
+        while (length <= value) {
+            length = Math.min(length * 2, MAX_CACHED_VALUE);
+        }
+        cache = createCache(cache, length);
+        return cache;
+    }
+
+    /**
+     * Creates cache array reusing the existing Integer instances.
+     * @param values The existing cache.
+     * @param length The length of the new cache.
+     * @return the new cache.
+     */
+    private static Integer[] createCache(final Integer[] values, final int length) {
+        final Integer[] newValues = new Integer[length];
+        System.arraycopy(values, 0, newValues, 0, values.length);
+        for (int i = values.length; i < length; i++) {
+            newValues[i] = Integer.valueOf(i);
+        }
+        return newValues;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -50,14 +121,12 @@ public final class NaturalNumbersList extends AbstractList<Integer> implements
     /**
      * {@inheritDoc}
      */
-    public synchronized Integer[] toArray() {
-        if (array == null) {
-            array = new Integer[size];
-            for (int i = 0; i < size; i++) {
-                array[i] = i;
-            }
+    public Integer[] toArray() {
+        final Integer[] array = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = valueOf(offset + i);
         }
-        return array.clone();
+        return array;
     }
 
     /**
@@ -69,7 +138,7 @@ public final class NaturalNumbersList extends AbstractList<Integer> implements
            return (T[]) toArray();
         }
         for (int i = 0; i < size; i++) {
-            a[i] = (T) Integer.valueOf(i);
+            a[i] = (T) valueOf(offset + i);
         }
         if (a.length > size) {
             a[size] = null;
@@ -84,7 +153,7 @@ public final class NaturalNumbersList extends AbstractList<Integer> implements
         if (index < 0 || index >= size) {
             throw new IndexOutOfBoundsException();
         }
-        return index;
+        return valueOf(offset + index);
     }
 
     /**
@@ -102,7 +171,7 @@ public final class NaturalNumbersList extends AbstractList<Integer> implements
             return -1;
         }
         if (o instanceof Integer) {
-            int i = (Integer) o;
+            int i = (Integer) o - offset;
             if (i < 0 || i >= size) {
                 return -1;
             }
@@ -111,10 +180,30 @@ public final class NaturalNumbersList extends AbstractList<Integer> implements
         return -1;
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    public int lastIndexOf(final Object o) {
+        return indexOf(o);
+    }
+
     /**
      * {@inheritDoc}
      */
     public boolean contains(final Object o) {
         return indexOf(o) != -1;
     }
-}
\ No newline at end of file
+
+    /**
+     * Returns range view of this list.
+     * @param fromIndex The low endpoint (inclusive) of the view.
+     * @param toIndex The high endpoint (exclusive) of the view.
+     * @return the range view.
+     */
+    public List<Integer> subList(final int fromIndex, final int toIndex) {
+        if (fromIndex < 0 || toIndex > size || fromIndex > toIndex) {
+            throw new IndexOutOfBoundsException();
+        }
+        return new NaturalNumbersList(offset + fromIndex, toIndex - fromIndex);
+    }
+}
@@ -0,0 +1,682 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.io.Serializable;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+import com.vaadin.data.util.ObjectProperty;
+
+/**
+ * Flyweight item which is a cursor to a row of a page. Property values of all
+ * rows of the page are stored in columns shared by the items of the page, one
+ * column per property. Properties are created on first access and retained by
+ * the item, so a row costs a single object until its properties are accessed.
+ * Projected properties are read only views to the page column. Other
+ * properties, such as item status, copy the page value on creation to hold
+ * their own state.
+ * <p>
+ * Date values are stored in the page as milliseconds and each read returns
+ * a new copy of the date, so modifying a returned date does not change the
+ * page.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class PageItem implements Item {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The page containing the property values. */
+    private final Page page;
+    /** The row index of the item in the page. */
+    private final int row;
+    /** The properties by column index created on first access or null if none has been accessed. */
+    private Property[] retainedProperties;
+
+    /**
+     * Constructor which sets the cursor position.
+     * @param page The page containing the property values.
+     * @param row The row index of the item in the page.
+     */
+    public PageItem(final Page page, final int row) {
+        this.page = page;
+        this.row = row;
+    }
+
+    /**
+     * @return the identifier of the row.
+     */
+    public Object getIdentifier() {
+        return page.identifiers[row];
+    }
+
+    /**
+     * Gets property by ID.
+     * @param id ID of the property.
+     * @return the property or null if item does not contain property with given ID.
+     */
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public Property getItemProperty(final Object id) {
+        final Integer column = page.columns.get(id);
+        if (column == null) {
+            return null;
+        }
+        if (retainedProperties == null) {
+            retainedProperties = new Property[page.propertyIds.size()];
+        }
+        if (retainedProperties[column] == null) {
+            if (page.projectedStates[column]) {
+                retainedProperties[column] = new ProjectedProperty(column);
+            } else {
+                retainedProperties[column] = new ObjectProperty(page.getValue(row, column), page.types[column],
+                        page.readOnlyStates[column]);
+            }
+        }
+        return retainedProperties[column];
+    }
+
+    /**
+     * Lists IDs of the properties in the item.
+     * @return Collection of property IDs.
+     */
+    @Override
+    public Collection<?> getItemPropertyIds() {
+        return page.propertyIds;
+    }
+
+    /**
+     * Adding properties is not supported.
+     * @param id ID of the property to be added.
+     * @param property Property to be added.
+     * @return never returns.
+     */
+    @Override
+    public boolean addItemProperty(final Object id, final Property property) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Removing properties is not supported.
+     * @param id ID of the property to be removed.
+     * @return never returns.
+     */
+    @Override
+    public boolean removeItemProperty(final Object id) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Read only property which reads the projected value from the page on
+     * each access.
+     * @author Tommi S.E. Laukkanen
+     */
+    @SuppressWarnings("rawtypes")
+    private final class ProjectedProperty implements Property {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The column index of the property. */
+        private final int column;
+
+        /**
+         * Constructor which sets the column index.
+         * @param column The column index of the property.
+         */
+        private ProjectedProperty(final int column) {
+            this.column = column;
+        }
+
+        /**
+         * @return the value from the page.
+         */
+        @Override
+        public Object getValue() {
+            return page.getValue(row, column);
+        }
+
+        /**
+         * Setting value is not supported.
+         * @param newValue the value to set.
+         */
+        @Override
+        public void setValue(final Object newValue) {
+            throw new Property.ReadOnlyException();
+        }
+
+        /**
+         * @return the type of the property.
+         */
+        @Override
+        public Class<?> getType() {
+            return page.types[column];
+        }
+
+        /**
+         * @return always true.
+         */
+        @Override
+        public boolean isReadOnly() {
+            return true;
+        }
+
+        /**
+         * Read only state can not be changed.
+         * @param newStatus ignored.
+         */
+        @Override
+        public void setReadOnly(final boolean newStatus) {
+        }
+
+        /**
+         * @return the value as string or null.
+         */
+        @Override
+        public String toString() {
+            final Object value = getValue();
+            return value != null ? value.toString() : null;
+        }
+    }
+
+    /**
+     * Page of rows which property values are stored in columns. Integer, long,
+     * double, boolean and date values are stored in primitive arrays instead
+     * of boxed objects. Values of other types are stored in object arrays.
+     * @author Tommi S.E. Laukkanen
+     */
+    public static final class Page implements Serializable {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The property IDs in column order. */
+        private final List<Object> propertyIds;
+        /** The column indexes by property ID. */
+        private final Map<Object, Integer> columns;
+        /** The property types in column order. */
+        private final Class<?>[] types;
+        /** True in column order for projected properties which are read only views to the page. */
+        private final boolean[] projectedStates;
+        /** The initial read only states of the retained properties in column order. */
+        private final boolean[] readOnlyStates;
+        /** The identifiers of the rows. */
+        private final Object[] identifiers;
+        /** The property value columns in column order. */
+        private final Column[] valueColumns;
+
+        /**
+         * Constructor for configuring the page columns and size.
+         * @param propertyIds The property IDs in column order.
+         * @param types The property types in column order.
+         * @param projectedStates True in column order for projected properties.
+         * @param readOnlyStates The initial read only states of the retained properties in column order.
+         * @param rowCount The number of rows in the page.
+         */
+        public Page(final Object[] propertyIds, final Class<?>[] types, final boolean[] projectedStates,
+                final boolean[] readOnlyStates, final int rowCount) {
+            this.propertyIds = Collections.unmodifiableList(Arrays.asList(propertyIds.clone()));
+            this.columns = new HashMap<Object, Integer>();
+            for (int i = 0; i < propertyIds.length; i++) {
+                columns.put(propertyIds[i], i);
+            }
+            this.types = types.clone();
+            this.projectedStates = projectedStates.clone();
+            this.readOnlyStates = readOnlyStates.clone();
+            this.identifiers = new Object[rowCount];
+            this.valueColumns = new Column[types.length];
+            for (int i = 0; i < types.length; i++) {
+                valueColumns[i] = createColumn(types[i], rowCount);
+            }
+        }
+
+        /**
+         * Creates column storing values of given type.
+         * @param type The property type.
+         * @param rowCount The number of rows in the page.
+         * @return the column.
+         */
+        private static Column createColumn(final Class<?> type, final int rowCount) {
+            if (type == Integer.class || type == Integer.TYPE) {
+                return new IntColumn(rowCount);
+            } else if (type == Long.class || type == Long.TYPE) {
+                return new LongColumn(rowCount);
+            } else if (type == Double.class || type == Double.TYPE) {
+                return new DoubleColumn(rowCount);
+            } else if (type == Boolean.class || type == Boolean.TYPE) {
+                return new BooleanColumn(rowCount);
+            } else if (Date.class.isAssignableFrom(type)) {
+                return new DateColumn(rowCount);
+            } else {
+                return new ObjectColumn(rowCount);
+            }
+        }
+
+        /**
+         * Sets identifier of the row.
+         * @param row The row index.
+         * @param identifier The identifier.
+         */
+        public void setIdentifier(final int row, final Object identifier) {
+            identifiers[row] = identifier;
+        }
+
+        /**
+         * Sets property value of the row.
+         * @param row The row index.
+         * @param column The column index.
+         * @param value The property value.
+         */
+        public void setValue(final int row, final int column, final Object value) {
+            valueColumns[column].setValue(row, value);
+        }
+
+        /**
+         * Gets property value of the row. Dates stored in primitive form are
+         * returned as new copies.
+         * @param row The row index.
+         * @param column The column index.
+         * @return the property value.
+         */
+        public Object getValue(final int row, final int column) {
+            return valueColumns[column].getValue(row);
+        }
+    }
+
+    /**
+     * Column of property values. Primitive columns keep null values in a bit set
+     * and values which are not of the column type in an object array allocated
+     * when first such value is set.
+     * @author Tommi S.E. Laukkanen
+     */
+    private abstract static class Column implements Serializable {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The number of rows. */
+        private final int rowCount;
+        /** The rows which have null value. */
+        private final BitSet nullRows = new BitSet();
+        /** The values which can not be stored in primitive form by row or null if there are none. */
+        private Object[] otherValues;
+
+        /**
+         * Constructor which sets the number of rows.
+         * @param rowCount The number of rows.
+         */
+        protected Column(final int rowCount) {
+            this.rowCount = rowCount;
+        }
+
+        /**
+         * Sets value of the row.
+         * @param row The row index.
+         * @param value The value.
+         */
+        public void setValue(final int row, final Object value) {
+            if (otherValues != null) {
+                otherValues[row] = null;
+            }
+            nullRows.set(row, value == null);
+            if (value != null && !setPrimitiveValue(row, value)) {
+                if (otherValues == null) {
+                    otherValues = new Object[rowCount];
+                }
+                otherValues[row] = value;
+            }
+        }
+
+        /**
+         * Gets value of the row.
+         * @param row The row index.
+         * @return the value.
+         */
+        public Object getValue(final int row) {
+            if (nullRows.get(row)) {
+                return null;
+            }
+            if (otherValues != null && otherValues[row] != null) {
+                return otherValues[row];
+            }
+            return getPrimitiveValue(row);
+        }
+
+        /**
+         * Stores value in primitive form.
+         * @param row The row index.
+         * @param value The value which is not null.
+         * @return false if value is not of the column type.
+         */
+        protected abstract boolean setPrimitiveValue(final int row, final Object value);
+
+        /**
+         * Gets value stored in primitive form.
+         * @param row The row index.
+         * @return the value.
+         */
+        protected abstract Object getPrimitiveValue(final int row);
+    }
+
+    /**
+     * Column of integer values.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class IntColumn extends Column {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The values. */
+        private final int[] values;
+
+        /**
+         * Constructor which allocates the column.
+         * @param rowCount The number of rows.
+         */
+        private IntColumn(final int rowCount) {
+            super(rowCount);
+            values = new int[rowCount];
+        }
+
+        /**
+         * Stores value in primitive form.
+         * @param row The row index.
+         * @param value The value which is not null.
+         * @return false if value is not of the column type.
+         */
+        @Override
+        protected boolean setPrimitiveValue(final int row, final Object value) {
+            if (!(value instanceof Integer)) {
+                return false;
+            }
+            values[row] = (Integer) value;
+            return true;
+        }
+
+        /**
+         * Gets value stored in primitive form.
+         * @param row The row index.
+         * @return the value.
+         */
+        @Override
+        protected Object getPrimitiveValue(final int row) {
+            return Integer.valueOf(values[row]);
+        }
+    }
+
+    /**
+     * Column of long values.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class LongColumn extends Column {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The values. */
+        private final long[] values;
+
+        /**
+         * Constructor which allocates the column.
+         * @param rowCount The number of rows.
+         */
+        private LongColumn(final int rowCount) {
+            super(rowCount);
+            values = new long[rowCount];
+        }
+
+        /**
+         * Stores value in primitive form.
+         * @param row The row index.
+         * @param value The value which is not null.
+         * @return false if value is not of the column type.
+         */
+        @Override
+        protected boolean setPrimitiveValue(final int row, final Object value) {
+            if (!(value instanceof Long)) {
+                return false;
+            }
+            values[row] = (Long) value;
+            return true;
+        }
+
+        /**
+         * Gets value stored in primitive form.
+         * @param row The row index.
+         * @return the value.
+         */
+        @Override
+        protected Object getPrimitiveValue(final int row) {
+            return Long.valueOf(values[row]);
+        }
+    }
+
+    /**
+     * Column of double values.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class DoubleColumn extends Column {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The values. */
+        private final double[] values;
+
+        /**
+         * Constructor which allocates the column.
+         * @param rowCount The number of rows.
+         */
+        private DoubleColumn(final int rowCount) {
+            super(rowCount);
+            values = new double[rowCount];
+        }
+
+        /**
+         * Stores value in primitive form.
+         * @param row The row index.
+         * @param value The value which is not null.
+         * @return false if value is not of the column type.
+         */
+        @Override
+        protected boolean setPrimitiveValue(final int row, final Object value) {
+            if (!(value instanceof Double)) {
+                return false;
+            }
+            values[row] = (Double) value;
+            return true;
+        }
+
+        /**
+         * Gets value stored in primitive form.
+         * @param row The row index.
+         * @return the value.
+         */
+        @Override
+        protected Object getPrimitiveValue(final int row) {
+            return Double.valueOf(values[row]);
+        }
+    }
+
+    /**
+     * Column of boolean values stored in a bit set.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class BooleanColumn extends Column {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The rows which have true value. */
+        private final BitSet values = new BitSet();
+
+        /**
+         * Constructor which sets the number of rows.
+         * @param rowCount The number of rows.
+         */
+        private BooleanColumn(final int rowCount) {
+            super(rowCount);
+        }
+
+        /**
+         * Stores value in primitive form.
+         * @param row The row index.
+         * @param value The value which is not null.
+         * @return false if value is not of the column type.
+         */
+        @Override
+        protected boolean setPrimitiveValue(final int row, final Object value) {
+            if (!(value instanceof Boolean)) {
+                return false;
+            }
+            values.set(row, (Boolean) value);
+            return true;
+        }
+
+        /**
+         * Gets value stored in primitive form.
+         * @param row The row index.
+         * @return the value.
+         */
+        @Override
+        protected Object getPrimitiveValue(final int row) {
+            return Boolean.valueOf(values.get(row));
+        }
+    }
+
+    /**
+     * Column of dates stored as milliseconds and date type. SQL dates, times
+     * and timestamps are recreated with their type and timestamps with their
+     * nanoseconds on each read, so callers get copies which they may modify.
+     * Other subclasses of Date are stored as objects.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class DateColumn extends Column {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The date type of java.util.Date. */
+        private static final byte UTIL_DATE = 0;
+        /** The date type of java.sql.Date. */
+        private static final byte SQL_DATE = 1;
+        /** The date type of java.sql.Time. */
+        private static final byte SQL_TIME = 2;
+        /** The date type of java.sql.Timestamp. */
+        private static final byte SQL_TIMESTAMP = 3;
+        /** The values as milliseconds since epoch. */
+        private final long[] values;
+        /** The date types of the values. */
+        private final byte[] dateTypes;
+        /** The nanoseconds of timestamps or null if there are no timestamps. */
+        private int[] nanos;
+
+        /**
+         * Constructor which allocates the column.
+         * @param rowCount The number of rows.
+         */
+        private DateColumn(final int rowCount) {
+            super(rowCount);
+            values = new long[rowCount];
+            dateTypes = new byte[rowCount];
+        }
+
+        /**
+         * Stores value in primitive form.
+         * @param row The row index.
+         * @param value The value which is not null.
+         * @return false if value is not of the column type.
+         */
+        @Override
+        protected boolean setPrimitiveValue(final int row, final Object value) {
+            final Class<?> valueClass = value.getClass();
+            if (valueClass == Date.class) {
+                dateTypes[row] = UTIL_DATE;
+            } else if (valueClass == java.sql.Date.class) {
+                dateTypes[row] = SQL_DATE;
+            } else if (valueClass == Time.class) {
+                dateTypes[row] = SQL_TIME;
+            } else if (valueClass == Timestamp.class) {
+                dateTypes[row] = SQL_TIMESTAMP;
+                if (nanos == null) {
+                    nanos = new int[values.length];
+                }
+                nanos[row] = ((Timestamp) value).getNanos();
+            } else {
+                return false;
+            }
+            values[row] = ((Date) value).getTime();
+            return true;
+        }
+
+        /**
+         * Gets value stored in primitive form.
+         * @param row The row index.
+         * @return the value.
+         */
+        @Override
+        protected Object getPrimitiveValue(final int row) {
+            switch (dateTypes[row]) {
+            case SQL_DATE:
+                return new java.sql.Date(values[row]);
+            case SQL_TIME:
+                return new Time(values[row]);
+            case SQL_TIMESTAMP:
+                final Timestamp timestamp = new Timestamp(values[row]);
+                timestamp.setNanos(nanos[row]);
+                return timestamp;
+            default:
+                return new Date(values[row]);
+            }
+        }
+    }
+
+    /**
+     * Column of object values.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class ObjectColumn extends Column {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+        /** The values. */
+        private final Object[] values;
+
+        /**
+         * Constructor which allocates the column.
+         * @param rowCount The number of rows.
+         */
+        private ObjectColumn(final int rowCount) {
+            super(rowCount);
+            values = new Object[rowCount];
+        }
+
+        /**
+         * Stores value.
+         * @param row The row index.
+         * @param value The value which is not null.
+         * @return always true.
+         */
+        @Override
+        protected boolean setPrimitiveValue(final int row, final Object value) {
+            values[row] = value;
+            return true;
+        }
+
+        /**
+         * Gets stored value.
+         * @param row The row index.
+         * @return the value.
+         */
+        @Override
+        protected Object getPrimitiveValue(final int row) {
+            return values[row];
+        }
+    }
+}
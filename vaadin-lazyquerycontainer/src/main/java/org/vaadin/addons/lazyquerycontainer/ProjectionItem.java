@@ -0,0 +1,47 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import com.vaadin.data.util.PropertysetItem;
+
+/**
+ * Lightweight item containing property values projected from a query row
+ * and the identifier of the row. Projected properties are read only and
+ * the full bean can be loaded on demand by the identifier.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class ProjectionItem extends PropertysetItem {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The identifier of the row. */
+    private final Object identifier;
+
+    /**
+     * Constructor which sets the row identifier.
+     * @param identifier The identifier of the row.
+     */
+    public ProjectionItem(final Object identifier) {
+        this.identifier = identifier;
+    }
+
+    /**
+     * @return the identifier of the row.
+     */
+    public Object getIdentifier() {
+        return identifier;
+    }
+
+}
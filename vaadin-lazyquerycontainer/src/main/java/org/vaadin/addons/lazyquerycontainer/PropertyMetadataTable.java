@@ -0,0 +1,221 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Immutable table of property metadata of a query definition. Metadata is
+ * stored to arrays indexed by property ordinal so that lookups do not box and
+ * components can access the properties by index. Modifications construct a new
+ * table.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class PropertyMetadataTable implements Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The table without properties. */
+    public static final PropertyMetadataTable EMPTY = new PropertyMetadataTable(new Object[0], new Class<?>[0],
+            new Object[0], new boolean[0], new boolean[0]);
+    /** The property IDs by ordinal. */
+    private final Object[] propertyIds;
+    /** The property types by ordinal. */
+    private final Class<?>[] propertyTypes;
+    /** The default values by ordinal. */
+    private final Object[] defaultValues;
+    /** The read only states by ordinal. */
+    private final boolean[] readOnlyStates;
+    /** The sortable states by ordinal. */
+    private final boolean[] sortableStates;
+    /** The ordinals by property ID. */
+    private final Map<Object, Integer> ordinals;
+    /** Unmodifiable list of the property IDs. */
+    private final List<Object> propertyIdList;
+    /** Unmodifiable list of the sortable property IDs. */
+    private final List<Object> sortablePropertyIdList;
+
+    /**
+     * Constructor which takes ownership of the given arrays.
+     * @param propertyIds The property IDs.
+     * @param propertyTypes The property types.
+     * @param defaultValues The default values.
+     * @param readOnlyStates The read only states.
+     * @param sortableStates The sortable states.
+     */
+    private PropertyMetadataTable(final Object[] propertyIds, final Class<?>[] propertyTypes,
+            final Object[] defaultValues, final boolean[] readOnlyStates, final boolean[] sortableStates) {
+        this.propertyIds = propertyIds;
+        this.propertyTypes = propertyTypes;
+        this.defaultValues = defaultValues;
+        this.readOnlyStates = readOnlyStates;
+        this.sortableStates = sortableStates;
+        this.ordinals = new HashMap<Object, Integer>(propertyIds.length * 2);
+        final List<Object> sortablePropertyIds = new ArrayList<Object>();
+        for (int i = 0; i < propertyIds.length; i++) {
+            ordinals.put(propertyIds[i], i);
+            if (sortableStates[i]) {
+                sortablePropertyIds.add(propertyIds[i]);
+            }
+        }
+        this.propertyIdList = Collections.unmodifiableList(Arrays.asList(propertyIds));
+        this.sortablePropertyIdList = Collections.unmodifiableList(sortablePropertyIds);
+    }
+
+    /**
+     * Constructs table with given property added to the end or replaced in place
+     * if property with the same ID already exists.
+     * @param propertyId ID of the property.
+     * @param type Type of the property.
+     * @param defaultValue Default value of the property.
+     * @param readOnly True if property is read only.
+     * @param sortable True if property is sortable.
+     * @return the new table.
+     */
+    public PropertyMetadataTable withProperty(final Object propertyId, final Class<?> type,
+            final Object defaultValue, final boolean readOnly, final boolean sortable) {
+        int ordinal = getOrdinal(propertyId);
+        final int size = ordinal == -1 ? propertyIds.length + 1 : propertyIds.length;
+        if (ordinal == -1) {
+            ordinal = propertyIds.length;
+        }
+        final Object[] newPropertyIds = Arrays.copyOf(propertyIds, size);
+        final Class<?>[] newPropertyTypes = Arrays.copyOf(propertyTypes, size);
+        final Object[] newDefaultValues = Arrays.copyOf(defaultValues, size);
+        final boolean[] newReadOnlyStates = Arrays.copyOf(readOnlyStates, size);
+        final boolean[] newSortableStates = Arrays.copyOf(sortableStates, size);
+        newPropertyIds[ordinal] = propertyId;
+        newPropertyTypes[ordinal] = type;
+        newDefaultValues[ordinal] = defaultValue;
+        newReadOnlyStates[ordinal] = readOnly;
+        newSortableStates[ordinal] = sortable;
+        return new PropertyMetadataTable(newPropertyIds, newPropertyTypes, newDefaultValues, newReadOnlyStates,
+                newSortableStates);
+    }
+
+    /**
+     * Constructs table without given property. Ordinals of the properties
+     * following the removed property are decremented.
+     * @param propertyId ID of the property.
+     * @return the new table or this table if property does not exist.
+     */
+    public PropertyMetadataTable withoutProperty(final Object propertyId) {
+        final int ordinal = getOrdinal(propertyId);
+        if (ordinal == -1) {
+            return this;
+        }
+        final int size = propertyIds.length - 1;
+        final Object[] newPropertyIds = new Object[size];
+        final Class<?>[] newPropertyTypes = new Class<?>[size];
+        final Object[] newDefaultValues = new Object[size];
+        final boolean[] newReadOnlyStates = new boolean[size];
+        final boolean[] newSortableStates = new boolean[size];
+        for (int i = 0, j = 0; i < propertyIds.length; i++) {
+            if (i != ordinal) {
+                newPropertyIds[j] = propertyIds[i];
+                newPropertyTypes[j] = propertyTypes[i];
+                newDefaultValues[j] = defaultValues[i];
+                newReadOnlyStates[j] = readOnlyStates[i];
+                newSortableStates[j] = sortableStates[i];
+                j++;
+            }
+        }
+        return new PropertyMetadataTable(newPropertyIds, newPropertyTypes, newDefaultValues, newReadOnlyStates,
+                newSortableStates);
+    }
+
+    /**
+     * @return the number of properties.
+     */
+    public int size() {
+        return propertyIds.length;
+    }
+
+    /**
+     * Gets ordinal of given property.
+     * @param propertyId ID identifying the property.
+     * @return the ordinal or -1 if property does not exist.
+     */
+    public int getOrdinal(final Object propertyId) {
+        final Integer ordinal = ordinals.get(propertyId);
+        return ordinal == null ? -1 : ordinal;
+    }
+
+    /**
+     * @return unmodifiable list of the property IDs in ordinal order.
+     */
+    public List<Object> getPropertyIds() {
+        return propertyIdList;
+    }
+
+    /**
+     * @return unmodifiable list of the sortable property IDs in ordinal order.
+     */
+    public List<Object> getSortablePropertyIds() {
+        return sortablePropertyIdList;
+    }
+
+    /**
+     * Gets property ID.
+     * @param ordinal The property ordinal.
+     * @return the property ID.
+     */
+    public Object getPropertyId(final int ordinal) {
+        return propertyIds[ordinal];
+    }
+
+    /**
+     * Gets property type.
+     * @param ordinal The property ordinal.
+     * @return the property type.
+     */
+    public Class<?> getPropertyType(final int ordinal) {
+        return propertyTypes[ordinal];
+    }
+
+    /**
+     * Gets property default value.
+     * @param ordinal The property ordinal.
+     * @return the default value or null.
+     */
+    public Object getPropertyDefaultValue(final int ordinal) {
+        return defaultValues[ordinal];
+    }
+
+    /**
+     * Checks whether property is read only.
+     * @param ordinal The property ordinal.
+     * @return true if property is read only.
+     */
+    public boolean isPropertyReadOnly(final int ordinal) {
+        return readOnlyStates[ordinal];
+    }
+
+    /**
+     * Checks whether property is sortable.
+     * @param ordinal The property ordinal.
+     * @return true if property is sortable.
+     */
+    public boolean isPropertySortable(final int ordinal) {
+        return sortableStates[ordinal];
+    }
+
+}
@@ -0,0 +1,451 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import com.vaadin.data.Item;
+import com.vaadin.data.Property;
+
+/**
+ * Exports items of a query view as comma or tab separated values. Export
+ * iterates the current sort and filter of the view without touching the
+ * item cache and runs in background as pipeline: the export task fetches
+ * item batches and writes converted text to the output while the batches
+ * are converted to text by separate tasks. At most PIPELINE_CAPACITY
+ * batches are in the pipeline at once so that memory consumption stays
+ * constant. Values are written in the order of the property IDs and quoted
+ * when they contain separator, quote or line break characters.
+ * <p>
+ * The export and conversion tasks are run with the executor given by the
+ * application, which can bound and shut down export work. The export task
+ * converts batches itself if the executor has not started them by the time
+ * they are written and hence any executor, including a single thread
+ * executor, can be used. By default each task runs in new daemon thread.
+ * @author Tommi S.E. Laukkanen
+ */
+public final class QueryExporter {
+    /** Separator of comma separated values. */
+    public static final char CSV_SEPARATOR = ',';
+    /** Separator of tab separated values. */
+    public static final char TSV_SEPARATOR = '\t';
+    /** Default number of items fetched at once. */
+    private static final int DEFAULT_BATCH_SIZE = 1000;
+    /** Maximum number of batches in the pipeline. */
+    private static final int PIPELINE_CAPACITY = 4;
+    /** The line separator. */
+    private static final String LINE_SEPARATOR = "\r\n";
+    /** The quote character. */
+    private static final char QUOTE = '"';
+    /** The query view to export. */
+    private final BatchQueryView queryView;
+    /** The exported property IDs. */
+    private final List<Object> propertyIds;
+    /** The executor running the export and conversion tasks. */
+    private final Executor executor;
+    /** The value separator. */
+    private char separator = CSV_SEPARATOR;
+    /** The character set name. */
+    private String charsetName = "UTF-8";
+    /** The number of items fetched at once. */
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    /** True if property IDs are written as first line. */
+    private boolean header = true;
+    /** The progress listener or null. */
+    private ProgressListener progressListener;
+
+    /**
+     * Constructor for exporting container property IDs of the container.
+     * @param container The container to export.
+     * @throws IllegalArgumentException if the query view of the container does not implement BatchQueryView.
+     */
+    public QueryExporter(final LazyQueryContainer container) {
+        this(container, new DaemonThreadExecutor("QueryExporter"));
+    }
+
+    /**
+     * Constructor for exporting container property IDs of the container with the given executor.
+     * @param container The container to export.
+     * @param executor The executor running the export and conversion tasks.
+     * @throws IllegalArgumentException if the query view of the container does not implement BatchQueryView.
+     */
+    public QueryExporter(final LazyQueryContainer container, final Executor executor) {
+        this(toBatchQueryView(container.getQueryView()), container.getContainerPropertyIds(), executor);
+    }
+
+    /**
+     * Constructor for exporting given properties of the query view.
+     * @param queryView The query view to export.
+     * @param propertyIds The property IDs to export in column order.
+     */
+    public QueryExporter(final BatchQueryView queryView, final Collection<?> propertyIds) {
+        this(queryView, propertyIds, new DaemonThreadExecutor("QueryExporter"));
+    }
+
+    /**
+     * Constructor for exporting given properties of the query view with the given executor.
+     * @param queryView The query view to export.
+     * @param propertyIds The property IDs to export in column order.
+     * @param executor The executor running the export and conversion tasks.
+     */
+    public QueryExporter(final BatchQueryView queryView, final Collection<?> propertyIds,
+            final Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor has to be provided.");
+        }
+        this.queryView = queryView;
+        this.propertyIds = new ArrayList<Object>(propertyIds);
+        this.executor = executor;
+    }
+
+    /**
+     * Casts query view to BatchQueryView which is required for iterating
+     * items without the item cache.
+     * @param queryView The query view.
+     * @return the query view as BatchQueryView.
+     * @throws IllegalArgumentException if the query view does not implement BatchQueryView.
+     */
+    private static BatchQueryView toBatchQueryView(final QueryView queryView) {
+        if (!(queryView instanceof BatchQueryView)) {
+            throw new IllegalArgumentException("Query view does not support item iteration: "
+                    + queryView.getClass().getName());
+        }
+        return (BatchQueryView) queryView;
+    }
+
+    /**
+     * @return the separator
+     */
+    public char getSeparator() {
+        return separator;
+    }
+
+    /**
+     * @param separator the separator to set, for example CSV_SEPARATOR or TSV_SEPARATOR.
+     */
+    public void setSeparator(final char separator) {
+        this.separator = separator;
+    }
+
+    /**
+     * @return the charsetName
+     */
+    public String getCharsetName() {
+        return charsetName;
+    }
+
+    /**
+     * @param charsetName the charsetName to set
+     */
+    public void setCharsetName(final String charsetName) {
+        this.charsetName = charsetName;
+    }
+
+    /**
+     * @return the batchSize
+     */
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the batchSize to set
+     */
+    public void setBatchSize(final int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return true if property IDs are written as first line.
+     */
+    public boolean isHeader() {
+        return header;
+    }
+
+    /**
+     * @param header true if property IDs are written as first line.
+     */
+    public void setHeader(final boolean header) {
+        this.header = header;
+    }
+
+    /**
+     * @return the progressListener
+     */
+    public ProgressListener getProgressListener() {
+        return progressListener;
+    }
+
+    /**
+     * Sets listener which is notified after each written batch. The listener
+     * is invoked from export task and has to synchronize access to UI.
+     * @param progressListener the progressListener to set
+     */
+    public void setProgressListener(final ProgressListener progressListener) {
+        this.progressListener = progressListener;
+    }
+
+    /**
+     * Exports items to file in background. The file is closed when export ends.
+     * @param file The file to write.
+     * @return Future of the exported item count. Export can be cancelled with Future.cancel.
+     * @throws FileNotFoundException if file can not be opened for writing.
+     */
+    public Future<Integer> export(final File file) throws FileNotFoundException {
+        return export(new FileOutputStream(file), true);
+    }
+
+    /**
+     * Exports items to output stream in background. The output stream is flushed
+     * but not closed when export ends.
+     * @param outputStream The output stream to write.
+     * @return Future of the exported item count. Export can be cancelled with Future.cancel.
+     */
+    public Future<Integer> export(final OutputStream outputStream) {
+        return export(outputStream, false);
+    }
+
+    /**
+     * Starts the export pipeline. Iteration of the view is started in calling
+     * thread so that the sort and filter state at the time of call is exported.
+     * @param outputStream The output stream to write.
+     * @param closeOutputStream True if output stream is closed when export ends.
+     * @return Future of the exported item count.
+     */
+    private Future<Integer> export(final OutputStream outputStream, final boolean closeOutputStream) {
+        final Iterator<Item> iterator = queryView.iterateItems(batchSize);
+        final int expectedCount = queryView.size() - queryView.getAddedItems().size();
+        final FutureTask<Integer> exportTask = new FutureTask<Integer>(new Callable<Integer>() {
+            @Override
+            public Integer call() throws Exception {
+                try {
+                    return runPipeline(iterator, expectedCount, outputStream);
+                } finally {
+                    if (closeOutputStream) {
+                        outputStream.close();
+                    }
+                }
+            }
+        });
+        executor.execute(exportTask);
+        return exportTask;
+    }
+
+    /**
+     * Fetches item batches and writes converted text in the current thread while
+     * the batches are converted by tasks run with the executor. Batches are written
+     * in fetch order as soon as they are converted and at the latest when the
+     * pipeline is full, in which case a batch the executor has not started yet is
+     * converted in the current thread. Interrupting the current thread cancels the
+     * export and conversion tasks left in the pipeline are cancelled when the export
+     * ends.
+     * @param iterator The item iterator.
+     * @param expectedCount The expected item count for progress reporting.
+     * @param outputStream The output stream to write.
+     * @return The exported item count.
+     * @throws Exception if fetching, converting or writing fails.
+     */
+    private int runPipeline(final Iterator<Item> iterator, final int expectedCount, final OutputStream outputStream)
+            throws Exception {
+        final LinkedList<FutureTask<TextBatch>> pendingBatches = new LinkedList<FutureTask<TextBatch>>();
+        try {
+            final Writer writer = new BufferedWriter(new OutputStreamWriter(outputStream, charsetName));
+            if (header) {
+                final StringBuilder text = new StringBuilder();
+                for (int i = 0; i < propertyIds.size(); i++) {
+                    appendValue(text, i, propertyIds.get(i));
+                }
+                writer.write(text.append(LINE_SEPARATOR).toString());
+            }
+            int exportedCount = 0;
+            boolean fetching = true;
+            while (fetching || !pendingBatches.isEmpty()) {
+                if (Thread.interrupted()) {
+                    throw new InterruptedException();
+                }
+                fetching = fetching && iterator.hasNext();
+                if (fetching) {
+                    final List<Item> batch = new ArrayList<Item>(batchSize);
+                    while (batch.size() < batchSize && iterator.hasNext()) {
+                        batch.add(iterator.next());
+                    }
+                    final FutureTask<TextBatch> convertTask = new FutureTask<TextBatch>(new Callable<TextBatch>() {
+                        @Override
+                        public TextBatch call() {
+                            final StringBuilder text = new StringBuilder();
+                            for (final Item item : batch) {
+                                appendItem(text, item);
+                            }
+                            return new TextBatch(text.toString(), batch.size());
+                        }
+                    });
+                    pendingBatches.add(convertTask);
+                    executor.execute(convertTask);
+                }
+                while (!pendingBatches.isEmpty() && (!fetching || pendingBatches.size() >= PIPELINE_CAPACITY
+                        || pendingBatches.getFirst().isDone())) {
+                    final FutureTask<TextBatch> convertTask = pendingBatches.removeFirst();
+                    // Converts the batch in this thread unless executor has started it already.
+                    convertTask.run();
+                    final TextBatch textBatch = getResult(convertTask);
+                    writer.write(textBatch.getText());
+                    exportedCount += textBatch.getItemCount();
+                    if (progressListener != null) {
+                        progressListener.exportProgress(exportedCount, expectedCount);
+                    }
+                }
+            }
+            writer.flush();
+            return exportedCount;
+        } finally {
+            for (final FutureTask<TextBatch> convertTask : pendingBatches) {
+                convertTask.cancel(false);
+            }
+        }
+    }
+
+    /**
+     * Waits for task to complete and rethrows its failure.
+     * @param task The task.
+     * @param <T> The result type.
+     * @return the result of the task.
+     * @throws Exception if the task failed.
+     */
+    private static <T> T getResult(final Future<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (final ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Appends values of item as line to text.
+     * @param text The text to append to.
+     * @param item The item.
+     */
+    private void appendItem(final StringBuilder text, final Item item) {
+        for (int i = 0; i < propertyIds.size(); i++) {
+            final Property property = item.getItemProperty(propertyIds.get(i));
+            appendValue(text, i, property != null ? property.getValue() : null);
+        }
+        text.append(LINE_SEPARATOR);
+    }
+
+    /**
+     * Appends value to text preceded by separator if it is not the first value on the line.
+     * @param text The text to append to.
+     * @param column The column index of the value.
+     * @param value The value.
+     */
+    private void appendValue(final StringBuilder text, final int column, final Object value) {
+        if (column > 0) {
+            text.append(separator);
+        }
+        if (value == null) {
+            return;
+        }
+        final String valueText = value.toString();
+        boolean quoted = false;
+        for (int i = 0; i < valueText.length(); i++) {
+            final char c = valueText.charAt(i);
+            if (c == separator || c == QUOTE || c == '\r' || c == '\n') {
+                quoted = true;
+                break;
+            }
+        }
+        if (!quoted) {
+            text.append(valueText);
+            return;
+        }
+        text.append(QUOTE);
+        for (int i = 0; i < valueText.length(); i++) {
+            final char c = valueText.charAt(i);
+            if (c == QUOTE) {
+                text.append(QUOTE);
+            }
+            text.append(c);
+        }
+        text.append(QUOTE);
+    }
+
+    /**
+     * Listener for export progress.
+     * @author Tommi S.E. Laukkanen
+     */
+    public interface ProgressListener {
+        /**
+         * Invoked after batch of items has been written.
+         * @param exportedCount Number of items written so far.
+         * @param expectedCount Number of items in the view when export was started.
+         */
+        void exportProgress(int exportedCount, int expectedCount);
+    }
+
+    /**
+     * Converted text of item batch.
+     * @author Tommi S.E. Laukkanen
+     */
+    private static final class TextBatch {
+        /** The text. */
+        private final String text;
+        /** The number of items in the text. */
+        private final int itemCount;
+
+        /**
+         * Constructor for configuring the batch.
+         * @param text The text.
+         * @param itemCount The number of items in the text.
+         */
+        private TextBatch(final String text, final int itemCount) {
+            this.text = text;
+            this.itemCount = itemCount;
+        }
+
+        /**
+         * @return the text
+         */
+        public String getText() {
+            return text;
+        }
+
+        /**
+         * @return the itemCount
+         */
+        public int getItemCount() {
+            return itemCount;
+        }
+    }
+}
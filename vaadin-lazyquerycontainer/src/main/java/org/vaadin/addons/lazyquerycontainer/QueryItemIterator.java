@@ -0,0 +1,122 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.vaadin.data.Item;
+
+/**
+ * Iterator which walks through all items of a query in batches. Only the
+ * current batch is referred by the iterator and hence memory consumption
+ * is constant regardless of the query size. Query size is resolved when
+ * the first batch is loaded.
+ * @author Tommi S.E. Laukkanen
+ */
+public class QueryItemIterator implements Iterator<Item> {
+    /** The query to iterate. */
+    private final Query query;
+    /** The number of items loaded at once. */
+    private final int batchSize;
+    /** The current batch. */
+    private List<Item> batch = Collections.emptyList();
+    /** Index of the next item in the current batch. */
+    private int batchIndex;
+    /** Start index of the next batch in the query. */
+    private int nextStartIndex;
+    /** The query size or -1 if not resolved yet. */
+    private int querySize = -1;
+
+    /**
+     * Constructor for configuring the iterator.
+     * @param query The query to iterate.
+     * @param batchSize The number of items loaded at once.
+     */
+    public QueryItemIterator(final Query query, final int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size has to be positive: " + batchSize);
+        }
+        this.query = query;
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Checks whether there are more items and loads next batch if current batch has been iterated.
+     * @return true if there are more items.
+     */
+    @Override
+    public final boolean hasNext() {
+        if (batchIndex < batch.size()) {
+            return true;
+        }
+        if (querySize == -1) {
+            querySize = size(query);
+        }
+        final int count = Math.min(batchSize, querySize - nextStartIndex);
+        if (count <= 0) {
+            return false;
+        }
+        // Release the previous batch before loading the next one.
+        batch = Collections.emptyList();
+        batch = loadItems(query, nextStartIndex, count);
+        batchIndex = 0;
+        nextStartIndex += count;
+        return !batch.isEmpty();
+    }
+
+    /**
+     * Gets the next item.
+     * @return the next item.
+     */
+    @Override
+    public final Item next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return batch.get(batchIndex++);
+    }
+
+    /**
+     * Not supported as iterated items are not part of the buffered query view.
+     */
+    @Override
+    public final void remove() {
+        throw new UnsupportedOperationException("Items can not be removed while iterating query.");
+    }
+
+    /**
+     * Gets size of the query. By default delegates to Query.size.
+     * @param iteratedQuery The iterated query.
+     * @return number of items.
+     */
+    protected int size(final Query iteratedQuery) {
+        return iteratedQuery.size();
+    }
+
+    /**
+     * Loads batch of items. By default delegates to Query.loadItems.
+     * @param iteratedQuery The iterated query.
+     * @param startIndex Starting index of the item list.
+     * @param count Count of the items to be retrieved.
+     * @return List of items.
+     */
+    protected List<Item> loadItems(final Query iteratedQuery, final int startIndex, final int count) {
+        return iteratedQuery.loadItems(startIndex, count);
+    }
+}
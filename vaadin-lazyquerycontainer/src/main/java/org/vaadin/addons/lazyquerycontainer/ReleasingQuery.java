@@ -0,0 +1,42 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.util.Collection;
+
+import com.vaadin.data.Item;
+
+/**
+ * Interface for queries which hold resources for loaded items or background
+ * loads. QueryView notifies the query when unmodified items are evicted from
+ * its cache or discarded in refresh and when the query itself is discarded.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface ReleasingQuery extends Query {
+	/**
+	 * Releases resources held for the given items. Released items are
+	 * not modified and are no longer referred by the view.
+	 * @param items The items to release.
+	 */
+	void releaseItems(Collection<Item> items);
+
+	/**
+	 * Releases resources held by the query itself, for example by cancelling
+	 * background loads which have not completed. Invoked when the view discards
+	 * the query after the cached items have been released.
+	 */
+	void releaseQuery();
+}
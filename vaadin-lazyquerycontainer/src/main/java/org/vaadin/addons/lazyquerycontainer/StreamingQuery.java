@@ -0,0 +1,36 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer;
+
+import java.util.Iterator;
+
+import com.vaadin.data.Item;
+
+/**
+ * Interface for queries which provide own strategy for iterating all items
+ * in constant memory. QueryView uses QueryItemIterator for other queries.
+ * @author Tommi S.E. Laukkanen
+ */
+public interface StreamingQuery extends Query {
+	/**
+	 * Iterates all items of the query in batches. Iterated items are not
+	 * tracked for modifications and batches are loaded independently of
+	 * resources held for items loaded with loadItems.
+	 * @param batchSize The number of items loaded at once.
+	 * @return Iterator of the items.
+	 */
+	Iterator<Item> iterateItems(int batchSize);
+}
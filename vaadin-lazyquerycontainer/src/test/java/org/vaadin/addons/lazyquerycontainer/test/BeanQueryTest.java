@@ -7,6 +7,7 @@ import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
 import org.vaadin.addons.lazyquerycontainer.AbstractBeanQuery;
+import org.vaadin.addons.lazyquerycontainer.BeanMetadata;
 import org.vaadin.addons.lazyquerycontainer.BeanQueryFactory;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryDefinition;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryView;
@@ -135,6 +136,24 @@ public class BeanQueryTest {
         view.addItem();
     }
 
+    @Test
+    public void testBeanMetadata() throws Exception {
+        BeanMetadata beanMetadata = BeanMetadata.getBeanMetadata(MockBean.class);
+        Assert.assertSame(beanMetadata, BeanMetadata.getBeanMetadata(MockBean.class));
+        Assert.assertEquals(3, beanMetadata.getReadablePropertyDescriptors().size());
+        Assert.assertNotNull(beanMetadata.getWriteMethod("name"));
+        Assert.assertNull(beanMetadata.getWriteMethod("class"));
+
+        LazyQueryDefinition queryDefinition = new LazyQueryDefinition(true, 50);
+        queryDefinition.addProperty(LazyQueryView.PROPERTY_ID_ITEM_STATUS, QueryItemStatus.class, QueryItemStatus.None,
+                true, false);
+        queryDefinition.addProperty("name", String.class, "test-bean-2", true, false);
+        MockBean bean = new MockBean();
+        beanMetadata.getDefaultValues(queryDefinition).apply(bean);
+        Assert.assertEquals("test-bean-2", bean.getName());
+        Assert.assertNull(bean.getDescription());
+    }
+
     @Test
     public void testAbstractBeanQueryDefaultConstructor() {
         new MockBeanQuery();
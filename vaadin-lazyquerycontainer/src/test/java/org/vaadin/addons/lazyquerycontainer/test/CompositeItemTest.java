@@ -15,6 +15,10 @@
  */
 package org.vaadin.addons.lazyquerycontainer.test;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
 import junit.framework.Assert;
 
 import org.junit.After;
@@ -127,4 +131,78 @@ public class CompositeItemTest {
 		Assert.assertNull("Does asking the property return null after remove", testItem.getItemProperty(TEST_PROPERTY_ID));
 	}
 
+	/**
+	 * Test that property IDs are cached until properties change.
+	 */
+	@Test
+	public void testPropertyIdCache() {
+		Collection<?> propertyIds = testItem.getItemPropertyIds();
+		Assert.assertSame("Are property ids cached?", propertyIds, testItem.getItemPropertyIds());
+		testItem.addItemProperty(TEST_PROPERTY_ID_2, testProperty2);
+		Assert.assertEquals("Are property ids updated after property addition?", 2, testItem.getItemPropertyIds().size());
+		PropertysetItem subItem = new PropertysetItem();
+		subItem.addItemProperty(TEST_PROPERTY_ID, new ObjectProperty(new Object()));
+		testItem.addItem(TEST_ITEM_KEY, subItem);
+		Assert.assertEquals("Are duplicate property ids listed once?", 2, testItem.getItemPropertyIds().size());
+		Assert.assertEquals("Does first item win?", testProperty, testItem.getItemProperty(TEST_PROPERTY_ID));
+		testItem.removeItemProperty(TEST_PROPERTY_ID);
+		Assert.assertNotSame("Does later item property become visible?", testProperty, testItem.getItemProperty(TEST_PROPERTY_ID));
+		Assert.assertNotNull(testItem.getItemProperty(TEST_PROPERTY_ID));
+	}
+
+	/**
+	 * Test that value change listener of the item is notified of changes of existing and added properties.
+	 */
+	@Test
+	public void testValueChangeListener() {
+		final ObjectProperty<String> property = new ObjectProperty<String>("a");
+		final ObjectProperty<String> addedProperty = new ObjectProperty<String>("b");
+		testItem.addItemProperty(TEST_PROPERTY_ID_2, property);
+		final List<Property> changedProperties = new ArrayList<Property>();
+		final Property.ValueChangeListener listener = new Property.ValueChangeListener() {
+			private static final long serialVersionUID = 1L;
+			@Override
+			public void valueChange(final Property.ValueChangeEvent event) {
+				changedProperties.add(event.getProperty());
+			}
+		};
+		testItem.addValueChangeListener(listener);
+		testItem.addItemProperty("added-property-id", addedProperty);
+		property.setValue("c");
+		addedProperty.setValue("d");
+		Assert.assertEquals("Are changes of existing and added properties notified?", 2, changedProperties.size());
+		testItem.removeValueChangeListener(listener);
+		property.setValue("e");
+		Assert.assertEquals("Are changes not notified after listener removal?", 2, changedProperties.size());
+	}
+
+	/**
+	 * Test that properties added and removed through the item keep the item order of the index.
+	 */
+	@Test
+	public void testInterleavedPropertyChanges() {
+		PropertysetItem subItem = new PropertysetItem();
+		Property subProperty = new ObjectProperty(new Object());
+		subItem.addItemProperty(TEST_PROPERTY_ID_2, subProperty);
+		testItem.addItem(TEST_ITEM_KEY, subItem);
+		Assert.assertEquals("Is sub item property returned?", subProperty, testItem.getItemProperty(TEST_PROPERTY_ID_2));
+		for (int i = 0; i < 100; i++) {
+			testItem.addItemProperty(i, new ObjectProperty(i));
+			Assert.assertEquals("Is added property returned?", i, testItem.getItemProperty(i).getValue());
+		}
+		testItem.addItemProperty(TEST_PROPERTY_ID_2, testProperty2);
+		Assert.assertEquals("Does default item win?", testProperty2, testItem.getItemProperty(TEST_PROPERTY_ID_2));
+		Assert.assertEquals("Are property ids listed once?", 102, testItem.getItemPropertyIds().size());
+		Assert.assertEquals("Are property ids in item order?", TEST_PROPERTY_ID_2,
+				new ArrayList<Object>(testItem.getItemPropertyIds()).get(101));
+		testItem.removeItemProperty(TEST_PROPERTY_ID_2);
+		Assert.assertEquals("Is sub item property visible after removal?", subProperty,
+				testItem.getItemProperty(TEST_PROPERTY_ID_2));
+		testItem.removeItemProperty(0);
+		Assert.assertNull("Is removed property not returned?", testItem.getItemProperty(0));
+		Assert.assertEquals("Are property ids updated after removal?", 101, testItem.getItemPropertyIds().size());
+		Assert.assertEquals("Is sub item property listed last?", TEST_PROPERTY_ID_2,
+				new ArrayList<Object>(testItem.getItemPropertyIds()).get(100));
+	}
+
 }
@@ -0,0 +1,106 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer.test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.vaadin.addons.lazyquerycontainer.DefaultPropertyItem;
+import org.vaadin.addons.lazyquerycontainer.LazyQueryDefinition;
+
+import com.vaadin.data.Property;
+
+/**
+ * Unit tests for DefaultPropertyItem.
+ * @author Tommi Laukkanen
+ */
+public class DefaultPropertyItemTest {
+
+    @Test
+    public void testValueChangeListener() {
+        final LazyQueryDefinition queryDefinition = new LazyQueryDefinition(true, 10);
+        queryDefinition.addProperty("readOnly", String.class, "a", true, false);
+        queryDefinition.addProperty("writable", String.class, "b", false, false);
+        final DefaultPropertyItem.Defaults defaults = new DefaultPropertyItem.Defaults(queryDefinition,
+                Collections.emptyList());
+        final DefaultPropertyItem first = new DefaultPropertyItem(defaults);
+        final DefaultPropertyItem second = new DefaultPropertyItem(defaults);
+        Assert.assertSame("Is read only default property retained?", first.getItemProperty("readOnly"),
+                first.getItemProperty("readOnly"));
+        Assert.assertSame("Are read only default values shared?", first.getItemProperty("readOnly").getValue(),
+                second.getItemProperty("readOnly").getValue());
+
+        final List<Property> changedProperties = new ArrayList<Property>();
+        first.addValueChangeListener(new Property.ValueChangeListener() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            public void valueChange(final Property.ValueChangeEvent event) {
+                changedProperties.add(event.getProperty());
+            }
+        });
+        first.getItemProperty("writable").setValue("c");
+        Assert.assertEquals("Is change of copied property notified?", 1, changedProperties.size());
+        Assert.assertEquals("Is value changed?", "c", first.getItemProperty("writable").getValue());
+        Assert.assertEquals("Is default value of other item unchanged?", "b",
+                second.getItemProperty("writable").getValue());
+    }
+
+    @Test
+    public void testReadOnlyToWritable() {
+        final LazyQueryDefinition queryDefinition = new LazyQueryDefinition(true, 10);
+        queryDefinition.addProperty("readOnly", String.class, "a", true, false);
+        final DefaultPropertyItem.Defaults defaults = new DefaultPropertyItem.Defaults(queryDefinition,
+                Collections.emptyList());
+        final DefaultPropertyItem first = new DefaultPropertyItem(defaults);
+        final DefaultPropertyItem second = new DefaultPropertyItem(defaults);
+        final List<Property> changedProperties = new ArrayList<Property>();
+        first.addValueChangeListener(new Property.ValueChangeListener() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            public void valueChange(final Property.ValueChangeEvent event) {
+                changedProperties.add(event.getProperty());
+            }
+        });
+
+        final Property property = first.getItemProperty("readOnly");
+        Assert.assertTrue("Is property read only?", property.isReadOnly());
+        try {
+            property.setValue("b");
+            Assert.fail("Is setting value of read only property rejected?");
+        } catch (final Property.ReadOnlyException e) {
+            Assert.assertEquals("Is value unchanged?", "a", property.getValue());
+        }
+
+        property.setReadOnly(false);
+        Assert.assertFalse("Is property writable?", property.isReadOnly());
+        property.setValue("b");
+        Assert.assertEquals("Is value changed?", "b", property.getValue());
+        Assert.assertEquals("Is value changed in item?", "b", first.getItemProperty("readOnly").getValue());
+        Assert.assertFalse("Is property writable in item?", first.getItemProperty("readOnly").isReadOnly());
+        Assert.assertEquals("Is change notified?", 1, changedProperties.size());
+        Assert.assertTrue("Is other item read only?", second.getItemProperty("readOnly").isReadOnly());
+        Assert.assertEquals("Is default value of other item unchanged?", "a",
+                second.getItemProperty("readOnly").getValue());
+
+        property.setReadOnly(true);
+        Assert.assertTrue("Is property read only again?", first.getItemProperty("readOnly").isReadOnly());
+    }
+
+}
@@ -17,6 +17,7 @@ package org.vaadin.addons.lazyquerycontainer.test;
 
 import java.security.InvalidParameterException;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map;
 
 import javax.persistence.EntityManager;
@@ -30,6 +31,7 @@ import org.junit.Before;
 import org.junit.Test;
 import org.vaadin.addons.lazyquerycontainer.CompositeItem;
 import org.vaadin.addons.lazyquerycontainer.EntityContainer;
+import org.vaadin.addons.lazyquerycontainer.EntityQueryDefinition;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryView;
 import org.vaadin.addons.lazyquerycontainer.QueryItemStatus;
 
@@ -272,4 +274,118 @@ public class EntityContainerAttachedEntitiesTest {
 
         Assert.assertEquals("Verify container size", 1, entityContainer.size());
     }
+
+    /**
+     * Test saving items with flushes between write batches.
+     */
+    @Test
+    public final void testWriteBatches() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, false, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        ((EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition()).setWriteBatchSize(10);
+
+        for (int i = 0; i < 55; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        Assert.assertEquals("Verify added entities", 55, entityContainer.size());
+
+        for (int i = 0; i < 25; i++) {
+            entityContainer.getItem(new Integer(i)).getItemProperty("reporter").setValue("reporter-" + i);
+        }
+        for (int i = 50; i < 55; i++) {
+            entityContainer.removeItem(new Integer(i));
+        }
+        entityContainer.commit();
+
+        Assert.assertEquals("Verify removed entities", 50, entityContainer.size());
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals("Verify modified entity", "reporter-" + i, entityContainer.getEntity(i).getReporter());
+        }
+        Assert.assertNull("Verify unmodified entity", entityContainer.getEntity(25).getReporter());
+    }
+
+    /**
+     * Test that saving in write batches does not clear the EntityManager shared with the view.
+     */
+    @Test
+    public final void testWriteBatchesKeepSharedPersistenceContext() {
+        entityManager.getTransaction().begin();
+        final Project project = new Project();
+        project.setName("project");
+        entityManager.persist(project);
+        entityManager.getTransaction().commit();
+
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, false, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        ((EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition()).setWriteBatchSize(10);
+        for (int i = 0; i < 25; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+
+        Assert.assertEquals("Verify added entities", 25, entityContainer.size());
+        Assert.assertTrue("Verify unrelated entity is still managed", entityManager.contains(project));
+        entityManager.getTransaction().begin();
+        entityManager.remove(project);
+        entityManager.getTransaction().commit();
+    }
+
+    /**
+     * Test that entities of items evicted from view cache are detached from persistence context.
+     */
+    @Test
+    public final void testReleasedEntitiesDetached() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, false, true,
+                Task.class, 10, new String[] { "name" }, new boolean[] { true });
+        for (int i = 0; i < 50; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        ((LazyQueryView) entityContainer.getQueryView()).setMaxCacheSize(20);
+
+        final Task unmodifiedTask = entityContainer.getEntity(0);
+        final Task modifiedTask = entityContainer.getEntity(1);
+        entityContainer.getItem(new Integer(1)).getItemProperty("reporter").setValue("reporter-1");
+        Assert.assertTrue("Verify entity is managed", entityManager.contains(unmodifiedTask));
+
+        for (int i = 0; i < 50; i++) {
+            entityContainer.getItem(new Integer(i));
+        }
+
+        Assert.assertFalse("Verify evicted entity is detached", entityManager.contains(unmodifiedTask));
+        Assert.assertTrue("Verify modified entity is managed", entityManager.contains(modifiedTask));
+
+        entityContainer.commit();
+        Assert.assertEquals("Verify modified entity", "reporter-1", entityContainer.getEntity(1).getReporter());
+    }
+
+    /**
+     * Test iterating all entities without loading them to the shared persistence context.
+     */
+    @Test
+    public final void testIterateItems() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, false, true,
+                Task.class, 10, new String[] { "name" }, new boolean[] { true });
+        for (int i = 0; i < 45; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        final Task cachedTask = entityContainer.getEntity(0);
+
+        final Iterator<Item> iterator = entityContainer.iterateItems(20);
+        int index = 0;
+        while (iterator.hasNext()) {
+            final Item item = iterator.next();
+            Assert.assertEquals("Verify iteration order", "task-" + (100 + index),
+                    item.getItemProperty("name").getValue());
+            final Task task = (Task) ((BeanItem<?>) ((CompositeItem) item).getItem("bean")).getBean();
+            Assert.assertFalse("Verify iterated entity is not managed", entityManager.contains(task));
+            index++;
+        }
+
+        Assert.assertEquals("Verify all entities were iterated", 45, index);
+        Assert.assertTrue("Verify cached entity is still managed", entityManager.contains(cachedTask));
+        Assert.assertSame("Verify cache was not touched", cachedTask, entityContainer.getEntity(0));
+    }
 }
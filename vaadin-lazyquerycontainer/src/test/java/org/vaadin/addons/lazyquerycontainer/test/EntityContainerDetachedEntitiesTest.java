@@ -15,10 +15,23 @@
  */
 package org.vaadin.addons.lazyquerycontainer.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
 import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
+import javax.persistence.CacheRetrieveMode;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
 import javax.persistence.Persistence;
@@ -28,11 +41,28 @@ import junit.framework.Assert;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
+import org.vaadin.addons.lazyquerycontainer.CappedCountStrategy;
 import org.vaadin.addons.lazyquerycontainer.EntityContainer;
+import org.vaadin.addons.lazyquerycontainer.EntityQueryDefinition;
+import org.vaadin.addons.lazyquerycontainer.LazyEntityItem;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryView;
+import org.vaadin.addons.lazyquerycontainer.LightweightBeanItem;
+import org.vaadin.addons.lazyquerycontainer.PageItem;
+import org.vaadin.addons.lazyquerycontainer.LookAheadCountStrategy;
+import org.vaadin.addons.lazyquerycontainer.ProjectionItem;
+import org.vaadin.addons.lazyquerycontainer.QueryExporter;
 import org.vaadin.addons.lazyquerycontainer.QueryItemStatus;
 
+import com.vaadin.data.Container.Filter;
+import com.vaadin.data.Container.UnsupportedFilterException;
 import com.vaadin.data.Item;
+import com.vaadin.data.util.filter.Between;
+import com.vaadin.data.util.filter.Compare;
+import com.vaadin.data.util.filter.IsNull;
+import com.vaadin.data.util.filter.Like;
+import com.vaadin.data.util.filter.Not;
+import com.vaadin.data.util.filter.Or;
+import com.vaadin.data.util.filter.SimpleStringFilter;
 
 /**
  * Unit test for EntityContainer.
@@ -266,4 +296,803 @@ public class EntityContainerDetachedEntitiesTest {
 
         Assert.assertEquals("Verify container size", 1, entityContainer.size());
     }
+
+    /**
+     * Test that generated PSQLs are reused while where criteria and sort state are unchanged.
+     */
+    @Test
+    public final void testEntityPsqlDefinitionCache() {
+        final EntityQueryDefinition definition = new EntityQueryDefinition(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        definition.setSortState(new Object[0], new boolean[0]);
+
+        final EntityQueryDefinition.EntityPsqlDefinition nativeSortDefinition = definition.getEntityPsqlDefinition();
+        Assert.assertEquals("Verify native sort select", "select e from Task as e order by e.name asc",
+                nativeSortDefinition.getSelectPsql());
+        Assert.assertSame("Verify definition is reused", nativeSortDefinition, definition.getEntityPsqlDefinition());
+
+        definition.setSortState(new Object[] { "name" }, new boolean[] { false });
+        final EntityQueryDefinition.EntityPsqlDefinition descendingDefinition = definition.getEntityPsqlDefinition();
+        Assert.assertEquals("Verify descending select", "select e from Task as e order by e.name desc",
+                descendingDefinition.getSelectPsql());
+
+        final Map<String, Object> whereParameters = new HashMap<String, Object>();
+        whereParameters.put("name", "alpha");
+        definition.setWhereCriteria("e.name=:name", whereParameters);
+        Assert.assertEquals("Verify filtered count", "select count(e) from Task as e where e.name=:name",
+                definition.getEntityPsqlDefinition().getSelectCountPsql());
+
+        definition.setWhereCriteria(null, null);
+        Assert.assertSame("Verify definition is reused", descendingDefinition, definition.getEntityPsqlDefinition());
+    }
+
+    /**
+     * Test container filters translated to JPQL.
+     */
+    @Test
+    public final void testContainerFilters() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+
+        final String[] names = new String[] { "alpha", "beta", "gamma", "delta_1" };
+        for (final String name : names) {
+            final Task task = entityContainer.addEntity();
+            task.setName(name);
+            task.setAssignee("assignee-" + name);
+        }
+        entityContainer.addEntity().setAssignee("assignee-unnamed");
+        entityContainer.commit();
+        Assert.assertEquals("Verify all entities are in container", 5, entityContainer.size());
+
+        final Filter equalFilter = new Compare.Equal("name", "beta");
+        entityContainer.addContainerFilter(equalFilter);
+        Assert.assertEquals("Verify equal filter", 1, entityContainer.size());
+        Assert.assertEquals("Verify equal filter", "beta", entityContainer.getEntity(0).getName());
+
+        final Map<String, Object> whereParameters = new HashMap<String, Object>();
+        whereParameters.put("assignee", "assignee-alpha");
+        entityContainer.filter("e.assignee=:assignee", whereParameters);
+        Assert.assertEquals("Verify filter combined with where criteria", 0, entityContainer.size());
+        entityContainer.filter(null, null);
+
+        final Map<String, Object> reservedParameters = new HashMap<String, Object>();
+        reservedParameters.put(EntityQueryDefinition.FILTER_PARAMETER_PREFIX + "0", "beta");
+        try {
+            entityContainer.filter("e.name=:" + EntityQueryDefinition.FILTER_PARAMETER_PREFIX + "0", reservedParameters);
+            Assert.fail("Verify where parameter names reserved for filters are rejected");
+        } catch (final InvalidParameterException e) {
+            Assert.assertEquals("Verify rejected where criteria is not applied", 1, entityContainer.size());
+        }
+
+        entityContainer.removeContainerFilter(equalFilter);
+        Assert.assertEquals("Verify filter removal", 5, entityContainer.size());
+
+        entityContainer.addContainerFilter(new Or(new Like("name", "A%", false), new Compare.Greater("name", "f")));
+        Assert.assertEquals("Verify or filter", 2, entityContainer.size());
+        Assert.assertEquals("Verify or filter", "alpha", entityContainer.getEntity(0).getName());
+        Assert.assertEquals("Verify or filter", "gamma", entityContainer.getEntity(1).getName());
+        entityContainer.removeAllContainerFilters();
+
+        entityContainer.addContainerFilter(new Between("name", "b", "e"));
+        entityContainer.addContainerFilter(new Not(new Compare.Equal("name", "beta")));
+        Assert.assertEquals("Verify between filter", 1, entityContainer.size());
+        Assert.assertEquals("Verify between filter", "delta_1", entityContainer.getEntity(0).getName());
+        entityContainer.removeAllContainerFilters();
+
+        entityContainer.addContainerFilter(new SimpleStringFilter("name", "A_", true, false));
+        Assert.assertEquals("Verify wildcards are escaped", 1, entityContainer.size());
+        entityContainer.removeAllContainerFilters();
+
+        entityContainer.addContainerFilter(new Like("name", "delta_%", true));
+        Assert.assertEquals("Verify like filter matches underscore literally", 1, entityContainer.size());
+        entityContainer.removeAllContainerFilters();
+        entityContainer.addContainerFilter(new Like("name", "_eta", true));
+        Assert.assertEquals("Verify like filter does not treat underscore as wildcard", 0, entityContainer.size());
+        entityContainer.removeAllContainerFilters();
+
+        entityContainer.addContainerFilter(new IsNull("name"));
+        Assert.assertEquals("Verify is null filter", 1, entityContainer.size());
+        Assert.assertEquals("Verify is null filter", "assignee-unnamed", entityContainer.getEntity(0).getAssignee());
+        entityContainer.removeAllContainerFilters();
+
+        try {
+            entityContainer.addContainerFilter(new Filter() {
+                private static final long serialVersionUID = 1L;
+                public boolean passesFilter(final Object itemId, final Item item) {
+                    return true;
+                }
+                public boolean appliesToProperty(final Object propertyId) {
+                    return true;
+                }
+            });
+            Assert.fail("Unsupported filter should be rejected.");
+        } catch (final UnsupportedFilterException e) {
+            Assert.assertEquals("Verify unsupported filter was not added", 0,
+                    entityContainer.getContainerFilters().size());
+        }
+    }
+
+    /**
+     * Test projection mode loading only the queried properties.
+     */
+    @Test
+    public final void testProjection() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        entityContainer.addContainerProperty("name", String.class, "", true, true);
+        entityContainer.addContainerProperty("assignee", String.class, "", true, true);
+        entityContainer.addContainerProperty("description", String.class, "none", true, false);
+
+        final Task taskAlpha = entityContainer.addEntity();
+        taskAlpha.setName("alpha");
+        taskAlpha.setAssignee("assignee-alpha");
+        taskAlpha.setReporter("reporter-alpha");
+        final Task taskBeta = entityContainer.addEntity();
+        taskBeta.setName("beta");
+        entityContainer.commit();
+
+        ((EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition()).setProjection(true);
+        entityContainer.refresh();
+
+        Assert.assertEquals("Verify entities are in container", 2, entityContainer.size());
+        final Item alphaItem = entityContainer.getItem(new Integer(0));
+        Assert.assertTrue("Verify item is projected", alphaItem instanceof ProjectionItem);
+        Assert.assertEquals("Verify identifier", taskAlpha.getTaskId(), ((ProjectionItem) alphaItem).getIdentifier());
+        Assert.assertEquals("Verify projected name", "alpha", alphaItem.getItemProperty("name").getValue());
+        Assert.assertEquals("Verify projected assignee", "assignee-alpha",
+                alphaItem.getItemProperty("assignee").getValue());
+        Assert.assertTrue("Verify projected property is read only", alphaItem.getItemProperty("name").isReadOnly());
+        Assert.assertEquals("Verify default value", "none", alphaItem.getItemProperty("description").getValue());
+        Assert.assertNull("Verify reporter is not loaded", alphaItem.getItemProperty("reporter"));
+
+        Assert.assertEquals("Verify entity is loaded on demand", "reporter-alpha",
+                entityContainer.getEntity(0).getReporter());
+
+        entityContainer.removeItem(new Integer(0));
+        entityContainer.commit();
+
+        Assert.assertEquals("Verify projected item removal", 1, entityContainer.size());
+        Assert.assertEquals("Verify remaining entity", "beta",
+                entityContainer.getItem(new Integer(0)).getItemProperty("name").getValue());
+    }
+
+    /**
+     * Test projection mode loading rows as flyweight page items.
+     */
+    @Test
+    public final void testPageItems() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        entityContainer.addContainerProperty("name", String.class, "", true, true);
+        entityContainer.addContainerProperty("assignee", String.class, "", true, true);
+        entityContainer.addContainerProperty("description", String.class, "none", false, false);
+
+        final Task taskAlpha = entityContainer.addEntity();
+        taskAlpha.setName("alpha");
+        taskAlpha.setAssignee("assignee-alpha");
+        final Task taskBeta = entityContainer.addEntity();
+        taskBeta.setName("beta");
+        entityContainer.commit();
+
+        final EntityQueryDefinition definition = (EntityQueryDefinition) entityContainer.getQueryView()
+                .getQueryDefinition();
+        definition.setProjection(true);
+        definition.setPageItems(true);
+        entityContainer.refresh();
+
+        Assert.assertEquals("Verify entities are in container", 2, entityContainer.size());
+        final Item alphaItem = entityContainer.getItem(new Integer(0));
+        Assert.assertTrue("Verify item is page item", alphaItem instanceof PageItem);
+        Assert.assertEquals("Verify identifier", taskAlpha.getTaskId(), ((PageItem) alphaItem).getIdentifier());
+        Assert.assertEquals("Verify projected name", "alpha", alphaItem.getItemProperty("name").getValue());
+        Assert.assertEquals("Verify projected assignee", "assignee-alpha",
+                alphaItem.getItemProperty("assignee").getValue());
+        Assert.assertTrue("Verify projected property is read only", alphaItem.getItemProperty("name").isReadOnly());
+        Assert.assertEquals("Verify beta shares page", "beta",
+                entityContainer.getItem(new Integer(1)).getItemProperty("name").getValue());
+        Assert.assertEquals("Verify default value", "none", alphaItem.getItemProperty("description").getValue());
+        Assert.assertSame("Verify default property is retained", alphaItem.getItemProperty("description"),
+                alphaItem.getItemProperty("description"));
+        alphaItem.getItemProperty("description").setValue("changed");
+        Assert.assertEquals("Verify default property value is kept", "changed",
+                alphaItem.getItemProperty("description").getValue());
+        Assert.assertNull("Verify reporter is not loaded", alphaItem.getItemProperty("reporter"));
+        Assert.assertEquals("Verify entity is loaded on demand", "alpha", entityContainer.getEntity(0).getName());
+        entityContainer.discard();
+
+        entityContainer.removeItem(new Integer(0));
+        entityContainer.commit();
+
+        Assert.assertEquals("Verify page item removal", 1, entityContainer.size());
+        Assert.assertEquals("Verify remaining entity", "beta",
+                entityContainer.getItem(new Integer(0)).getItemProperty("name").getValue());
+    }
+
+    /**
+     * Test that projections do not drop rows with null associations.
+     */
+    @Test
+    public final void testProjectionWithNullAssociation() {
+        entityManager.getTransaction().begin();
+        entityManager.createQuery("delete from Milestone").executeUpdate();
+        entityManager.createQuery("delete from Project").executeUpdate();
+        final Project project = new Project();
+        project.setName("project");
+        entityManager.persist(project);
+        for (int i = 0; i < 4; i++) {
+            final Milestone milestone = new Milestone();
+            milestone.setName("milestone-" + i);
+            if (i % 2 == 0) {
+                milestone.setProject(project);
+            }
+            entityManager.persist(milestone);
+        }
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+
+        final EntityContainer<Milestone> milestoneContainer = new EntityContainer<Milestone>(entityManager, true,
+                true, true, Milestone.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" },
+                new boolean[] { true });
+        milestoneContainer.addContainerProperty("name", String.class, "", true, true);
+        milestoneContainer.addContainerProperty("project", Project.class, null, true, false);
+        final EntityQueryDefinition definition = (EntityQueryDefinition) milestoneContainer.getQueryView()
+                .getQueryDefinition();
+
+        definition.setProjection(true);
+        milestoneContainer.refresh();
+        assertAllMilestonesLoaded(milestoneContainer, "projection");
+
+        definition.setPageItems(true);
+        milestoneContainer.refresh();
+        assertAllMilestonesLoaded(milestoneContainer, "page items");
+
+        definition.setPageItems(false);
+        definition.setProjection(false);
+        milestoneContainer.setVisiblePropertyIds(Arrays.asList(new Object[] { "name", "project" }));
+        assertAllMilestonesLoaded(milestoneContainer, "visible properties");
+        Assert.assertNull("Verify null association is loaded lazily",
+                milestoneContainer.getItem(new Integer(1)).getItemProperty("project").getValue());
+        Assert.assertEquals("Verify association is loaded lazily", "project",
+                ((Project) milestoneContainer.getItem(new Integer(0)).getItemProperty("project").getValue())
+                .getName());
+    }
+
+    /**
+     * Asserts that container size matches the loaded milestones.
+     * @param milestoneContainer the milestone container
+     * @param mode the description of the loading mode
+     */
+    private void assertAllMilestonesLoaded(final EntityContainer<Milestone> milestoneContainer, final String mode) {
+        Assert.assertEquals("Verify size with " + mode, 4, milestoneContainer.size());
+        Assert.assertEquals("Verify loaded rows with " + mode, 4, milestoneContainer.getItemIds(0, 4).size());
+        for (int i = 0; i < 4; i++) {
+            Assert.assertEquals("Verify row with " + mode, "milestone-" + i,
+                    milestoneContainer.getItem(new Integer(i)).getItemProperty("name").getValue());
+        }
+    }
+
+    /**
+     * Test loading only visible properties eagerly.
+     */
+    @Test
+    public final void testVisiblePropertyIds() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        entityContainer.addContainerProperty("description", String.class, "none", true, false);
+
+        final Task taskAlpha = entityContainer.addEntity();
+        taskAlpha.setName("alpha");
+        taskAlpha.setReporter("reporter-alpha");
+        final Task taskBeta = entityContainer.addEntity();
+        taskBeta.setName("beta");
+        taskBeta.setReporter("reporter-beta");
+        entityContainer.commit();
+
+        entityContainer.setVisiblePropertyIds(Arrays.asList(new Object[] { "name", "description" }));
+
+        final LazyEntityItem alphaItem = (LazyEntityItem) entityContainer.getItem(new Integer(0));
+        final LazyEntityItem betaItem = (LazyEntityItem) entityContainer.getItem(new Integer(1));
+        Assert.assertEquals("Verify visible property", "alpha", alphaItem.getItemProperty("name").getValue());
+        Assert.assertEquals("Verify default property", "none", alphaItem.getItemProperty("description").getValue());
+        Assert.assertNotNull("Verify lazy property exists", alphaItem.getItemProperty("reporter"));
+        Assert.assertFalse("Verify entity is not loaded", alphaItem.isEntityLoaded());
+
+        Assert.assertEquals("Verify lazy property", "reporter-alpha", alphaItem.getItemProperty("reporter").getValue());
+        Assert.assertTrue("Verify entity is loaded", alphaItem.isEntityLoaded());
+        Assert.assertTrue("Verify page entities are loaded together", betaItem.isEntityLoaded());
+
+        betaItem.getItemProperty("assignee").setValue("assignee-beta");
+        Assert.assertTrue("Verify modification is buffered", entityContainer.isModified());
+        entityContainer.commit();
+
+        Assert.assertEquals("Verify modification was saved", "assignee-beta",
+                entityContainer.getEntity(1).getAssignee());
+
+        entityContainer.setVisiblePropertyIds(null);
+        Assert.assertFalse("Verify entities are loaded when all properties are visible",
+                entityContainer.getItem(new Integer(0)) instanceof LazyEntityItem);
+    }
+
+    /**
+     * Test saving items with flushes between write batches.
+     */
+    @Test
+    public final void testWriteBatches() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        ((EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition()).setWriteBatchSize(10);
+
+        for (int i = 0; i < 55; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        Assert.assertEquals("Verify added entities", 55, entityContainer.size());
+
+        for (int i = 0; i < 25; i++) {
+            entityContainer.getItem(new Integer(i)).getItemProperty("reporter").setValue("reporter-" + i);
+        }
+        for (int i = 50; i < 55; i++) {
+            entityContainer.removeItem(new Integer(i));
+        }
+        entityContainer.commit();
+
+        Assert.assertEquals("Verify removed entities", 50, entityContainer.size());
+        for (int i = 0; i < 25; i++) {
+            Assert.assertEquals("Verify modified entity", "reporter-" + i, entityContainer.getEntity(i).getReporter());
+        }
+        Assert.assertNull("Verify unmodified entity", entityContainer.getEntity(25).getReporter());
+    }
+
+    /**
+     * Test loading and saving with own EntityManager for each batch and commit.
+     */
+    @Test
+    public final void testEntityManagerPerBatch() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManagerFactory, true,
+                Task.class, 10, new String[] { "name" }, new boolean[] { true });
+
+        for (int i = 0; i < 35; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        Assert.assertEquals("Verify added entities", 35, entityContainer.size());
+
+        final Task task = entityContainer.getEntity(20);
+        Assert.assertEquals("Verify entity is loaded", "task-120", task.getName());
+        Assert.assertFalse("Verify entity is not managed by shared entity manager", entityManager.contains(task));
+
+        entityContainer.getItem(new Integer(20)).getItemProperty("reporter").setValue("reporter-20");
+        entityContainer.removeItem(new Integer(34));
+        entityContainer.commit();
+
+        Assert.assertEquals("Verify removed entity", 34, entityContainer.size());
+        Assert.assertEquals("Verify modified entity", "reporter-20", entityContainer.getEntity(20).getReporter());
+    }
+
+    /**
+     * Test exporting container contents as comma separated values in background.
+     * @throws Exception if export fails.
+     */
+    @Test
+    public final void testExport() throws Exception {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        entityContainer.addContainerProperty("name", String.class, "", true, true);
+        entityContainer.addContainerProperty("assignee", String.class, "", true, true);
+        for (int i = 0; i < 250; i++) {
+            final Task task = entityContainer.addEntity();
+            task.setName("task-" + (100 + i));
+            task.setAssignee(i == 0 ? "doe, \"john\"" : null);
+        }
+        entityContainer.commit();
+        entityContainer.sort(new Object[] { "name" }, new boolean[] { false });
+        final Item cachedItem = entityContainer.getItem(new Integer(0));
+
+        final int[] progress = new int[2];
+        final QueryExporter exporter = new QueryExporter(entityContainer);
+        exporter.setBatchSize(40);
+        exporter.setProgressListener(new QueryExporter.ProgressListener() {
+            @Override
+            public void exportProgress(final int exportedCount, final int expectedCount) {
+                progress[0] = exportedCount;
+                progress[1] = expectedCount;
+            }
+        });
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Assert.assertEquals("Verify exported count", 250, exporter.export(outputStream).get().intValue());
+        Assert.assertEquals("Verify progress", 250, progress[0]);
+        Assert.assertEquals("Verify expected count", 250, progress[1]);
+
+        final String[] lines = new String(outputStream.toByteArray(), "UTF-8").split("\r\n");
+        Assert.assertEquals("Verify line count", 251, lines.length);
+        Assert.assertEquals("Verify header", "name,assignee", lines[0]);
+        Assert.assertEquals("Verify sort order", "task-349,", lines[1]);
+        Assert.assertEquals("Verify quoting", "task-100,\"doe, \"\"john\"\"\"", lines[250]);
+        Assert.assertSame("Verify cache was not touched", cachedItem, entityContainer.getItem(new Integer(0)));
+    }
+
+    /**
+     * Test export throughput over the test database. The export rate is
+     * printed for comparing pipeline changes.
+     * @throws Exception if export fails.
+     */
+    @Test
+    public final void testExportThroughput() throws Exception {
+        final int itemCount = 20000;
+        entityManager.getTransaction().begin();
+        for (int i = 0; i < itemCount; i++) {
+            final Task task = new Task();
+            task.setName("task-" + (100000 + i));
+            task.setAssignee("assignee-" + i % 10);
+            entityManager.persist(task);
+        }
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, false,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        entityContainer.addContainerProperty("name", String.class, "", true, true);
+        entityContainer.addContainerProperty("assignee", String.class, "", true, true);
+        final QueryExporter exporter = new QueryExporter(entityContainer);
+
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        final long startTime = System.nanoTime();
+        Assert.assertEquals("Verify exported count", itemCount, exporter.export(outputStream).get().intValue());
+        final long elapsedMillis = Math.max(1, (System.nanoTime() - startTime) / 1000000);
+        System.out.println("Exported " + itemCount + " items in " + elapsedMillis + " ms ("
+                + itemCount * 1000L / elapsedMillis + " items/s).");
+        Assert.assertEquals("Verify line count", itemCount + 1,
+                new String(outputStream.toByteArray(), "UTF-8").split("\r\n").length);
+    }
+
+    /**
+     * Test that failing write stops the export tasks of the application executor.
+     * @throws Exception if test fails.
+     */
+    @Test
+    public final void testExportWriteFailure() throws Exception {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        entityContainer.addContainerProperty("name", String.class, "", true, true);
+        for (int i = 0; i < 2000; i++) {
+            entityContainer.addEntity().setName("task-" + (1000 + i));
+        }
+        entityContainer.commit();
+
+        final ExecutorService executor = Executors.newFixedThreadPool(2);
+        final QueryExporter exporter = new QueryExporter(entityContainer, executor);
+        exporter.setBatchSize(5);
+        exporter.setHeader(false);
+        try {
+            exporter.export(new OutputStream() {
+                @Override
+                public void write(final int b) throws IOException {
+                    throw new IOException("Write failure");
+                }
+            }).get();
+            Assert.fail("Verify write failure is reported");
+        } catch (final ExecutionException e) {
+            Assert.assertTrue("Verify write failure", e.getCause() instanceof IOException);
+        } finally {
+            executor.shutdown();
+        }
+        Assert.assertTrue("Verify export tasks have stopped", executor.awaitTermination(5, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Test fetching associations together with the entities.
+     */
+    @Test
+    public final void testFetchPaths() {
+        entityManager.getTransaction().begin();
+        entityManager.createQuery("delete from Milestone").executeUpdate();
+        entityManager.createQuery("delete from Project").executeUpdate();
+        for (int i = 0; i < 3; i++) {
+            final Project project = new Project();
+            project.setName("project-" + i);
+            entityManager.persist(project);
+            for (int j = 0; j < 2; j++) {
+                final Milestone milestone = new Milestone();
+                milestone.setName("milestone-" + i + "-" + j);
+                milestone.setProject(project);
+                entityManager.persist(milestone);
+            }
+        }
+        entityManager.getTransaction().commit();
+        entityManager.clear();
+
+        final EntityContainer<Project> projectContainer = new EntityContainer<Project>(entityManager, true, true,
+                false, Project.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        final EntityQueryDefinition projectDefinition =
+                (EntityQueryDefinition) projectContainer.getQueryView().getQueryDefinition();
+        projectDefinition.addFetchPath("milestones");
+        try {
+            projectDefinition.addFetchPath("name");
+            Assert.fail("Basic attribute is not a fetch path.");
+        } catch (final InvalidParameterException e) {
+            Assert.assertEquals("Verify fetch paths", Arrays.asList("milestones"), projectDefinition.getFetchPaths());
+        }
+        projectContainer.refresh();
+
+        Assert.assertEquals("Verify project count", 3, projectContainer.size());
+        for (int i = 0; i < 3; i++) {
+            final Project project = projectContainer.getEntity(i);
+            Assert.assertFalse("Verify project is detached", entityManager.contains(project));
+            Assert.assertTrue("Verify milestones are fetched", entityManagerFactory.getPersistenceUnitUtil()
+                    .isLoaded(project, "milestones"));
+            Assert.assertEquals("Verify milestone count", 2, project.getMilestones().size());
+        }
+
+        final EntityContainer<Milestone> milestoneContainer = new EntityContainer<Milestone>(entityManager, true,
+                true, false, Milestone.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" },
+                new boolean[] { true });
+        ((EntityQueryDefinition) milestoneContainer.getQueryView().getQueryDefinition()).addFetchPath("project");
+        milestoneContainer.refresh();
+
+        Assert.assertEquals("Verify milestone count", 6, milestoneContainer.size());
+        Assert.assertEquals("Verify project is fetched", "project-2", milestoneContainer.getEntity(5).getProject()
+                .getName());
+    }
+
+    /**
+     * Test query hints applied to batch and count queries.
+     */
+    @Test
+    public final void testQueryHints() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, false,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        final EntityQueryDefinition definition =
+                (EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition();
+        Assert.assertEquals("Verify fetch size defaults to batch size", ENTITY_CONTAINER_BATCH_SIZE,
+                definition.getQueryHints().get("eclipselink.jdbc.fetch-size"));
+
+        for (int i = 0; i < 5; i++) {
+            entityContainer.addEntity().setName("task-" + i);
+        }
+        entityContainer.commit();
+
+        definition.setReadOnly(true);
+        definition.setFetchSize(50);
+        definition.setQueryTimeout(10000);
+        definition.setCacheRetrieveMode(CacheRetrieveMode.BYPASS);
+        entityContainer.refresh();
+
+        final Map<String, Object> hints = definition.getQueryHints();
+        Assert.assertEquals("Verify fetch size", 50, hints.get("eclipselink.jdbc.fetch-size"));
+        Assert.assertEquals("Verify timeout", 10000, hints.get("javax.persistence.query.timeout"));
+        Assert.assertEquals("Verify cache retrieve mode", CacheRetrieveMode.BYPASS,
+                hints.get("javax.persistence.cache.retrieveMode"));
+        Assert.assertEquals("Verify read only", Boolean.TRUE, hints.get("eclipselink.read-only"));
+
+        Assert.assertEquals("Verify size with hints", 5, entityContainer.size());
+        Assert.assertEquals("Verify entity with hints", "task-3", entityContainer.getEntity(3).getName());
+    }
+
+    /**
+     * Test loading first batch in parallel with the count query.
+     */
+    @Test
+    public final void testPrefetchFirstBatch() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        for (int i = 0; i < 150; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        ((EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition()).setPrefetchFirstBatch(true);
+        entityContainer.refresh();
+
+        Assert.assertEquals("Verify size", 150, entityContainer.size());
+        for (int i = 0; i < 150; i++) {
+            Assert.assertEquals("Verify entity", "task-" + (100 + i), entityContainer.getEntity(i).getName());
+        }
+        Assert.assertFalse("Verify prefetched entity is detached", entityManager.contains(entityContainer
+                .getEntity(0)));
+    }
+
+    /**
+     * Test using prefetched first batch which is shorter than the batch size.
+     */
+    @Test
+    public final void testPrefetchShortFirstBatch() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        for (int i = 0; i < 5; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        ((EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition()).setPrefetchFirstBatch(true);
+        entityContainer.refresh();
+
+        Assert.assertEquals("Verify size", 5, entityContainer.size());
+        for (int i = 0; i < 5; i++) {
+            Assert.assertEquals("Verify entity", "task-" + (100 + i), entityContainer.getEntity(i).getName());
+        }
+    }
+
+    /**
+     * Test running first batch prefetch with application provided executor and
+     * cancelling prefetch of discarded query.
+     */
+    @Test
+    public final void testPrefetchExecutor() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        for (int i = 0; i < 150; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        final List<Runnable> prefetches = new ArrayList<Runnable>();
+        final EntityQueryDefinition queryDefinition = (EntityQueryDefinition) entityContainer.getQueryView()
+                .getQueryDefinition();
+        queryDefinition.setPrefetchExecutor(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+                prefetches.add(command);
+            }
+        });
+        queryDefinition.setPrefetchFirstBatch(true);
+        entityContainer.refresh();
+
+        Assert.assertEquals("Verify size", 150, entityContainer.size());
+        Assert.assertEquals("Verify prefetch is submitted to executor", 1, prefetches.size());
+        Assert.assertEquals("Verify entity loaded by unstarted prefetch", "task-100",
+                entityContainer.getEntity(0).getName());
+        Assert.assertTrue("Verify prefetch is run in loading thread", ((Future<?>) prefetches.get(0)).isDone());
+        Assert.assertFalse("Verify prefetch is not cancelled", ((Future<?>) prefetches.get(0)).isCancelled());
+
+        entityContainer.refresh();
+        Assert.assertEquals("Verify size", 150, entityContainer.size());
+        Assert.assertEquals("Verify prefetch is submitted to executor", 2, prefetches.size());
+        entityContainer.refresh();
+        Assert.assertTrue("Verify prefetch of discarded query is cancelled",
+                ((Future<?>) prefetches.get(1)).isCancelled());
+    }
+
+    /**
+     * Test counting entities up to a cap which grows when end of the count is loaded.
+     */
+    @Test
+    public final void testCappedCount() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, 10, new String[] { "name" }, new boolean[] { true });
+        for (int i = 0; i < 45; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        entityContainer.setCountStrategy(new CappedCountStrategy(20));
+
+        Assert.assertEquals("Verify capped size", 20, entityContainer.size());
+        Assert.assertFalse("Verify size is provisional", entityContainer.isSizeExact());
+        Assert.assertEquals("Verify entity", "task-119", entityContainer.getEntity(19).getName());
+        Assert.assertEquals("Verify grown size", 40, entityContainer.size());
+        Assert.assertEquals("Verify entity", "task-139", entityContainer.getEntity(39).getName());
+        Assert.assertEquals("Verify exact size", 45, entityContainer.size());
+        Assert.assertTrue("Verify size is exact", entityContainer.isSizeExact());
+    }
+
+    /**
+     * Tests that look ahead count grows with full batches and is fixed by a short batch.
+     */
+    @Test
+    public final void testLookAheadCount() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, 10, new String[] { "name" }, new boolean[] { true });
+        for (int i = 0; i < 25; i++) {
+            entityContainer.addEntity().setName("task-" + (100 + i));
+        }
+        entityContainer.commit();
+        entityContainer.setCountStrategy(new LookAheadCountStrategy(10));
+
+        Assert.assertEquals("Verify look ahead size", 10, entityContainer.size());
+        Assert.assertFalse("Verify size is provisional", entityContainer.isSizeExact());
+        Assert.assertEquals("Verify entity", "task-109", entityContainer.getEntity(9).getName());
+        Assert.assertEquals("Verify grown size", 20, entityContainer.size());
+        Assert.assertEquals("Verify entity", "task-119", entityContainer.getEntity(19).getName());
+        Assert.assertEquals("Verify grown size", 30, entityContainer.size());
+        Assert.assertEquals("Verify entity", "task-124", entityContainer.getEntity(24).getName());
+        Assert.assertEquals("Verify exact size", 25, entityContainer.size());
+        Assert.assertTrue("Verify size is exact", entityContainer.isSizeExact());
+    }
+
+    /**
+     * Tests that counts are reused across sorts and filters and cleared on commit.
+     */
+    @Test
+    public final void testCacheCounts() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        final EntityQueryDefinition definition = (EntityQueryDefinition) entityContainer.getQueryView()
+                .getQueryDefinition();
+        definition.setCacheCounts(true);
+        for (int i = 0; i < 3; i++) {
+            entityContainer.addEntity().setName("task-" + i);
+        }
+        entityContainer.commit();
+        Assert.assertEquals("Verify entity count", 3, entityContainer.size());
+
+        entityManager.getTransaction().begin();
+        final Task outsideTask = new Task();
+        outsideTask.setName("task-outside");
+        entityManager.persist(outsideTask);
+        entityManager.getTransaction().commit();
+
+        entityContainer.sort(new Object[] { "name" }, new boolean[] { false });
+        Assert.assertEquals("Verify cached count is used after sort", 3, entityContainer.size());
+
+        final Map<String, Object> whereParameters = new HashMap<String, Object>();
+        whereParameters.put("name", "task-0");
+        entityContainer.filter("e.name=:name", whereParameters);
+        Assert.assertEquals("Verify filtered count", 1, entityContainer.size());
+        entityContainer.filter(null, null);
+        Assert.assertEquals("Verify cached count is used for previous filter", 3, entityContainer.size());
+
+        entityContainer.addEntity().setName("task-3");
+        entityContainer.commit();
+        Assert.assertEquals("Verify count is cleared on commit", 5, entityContainer.size());
+
+        definition.clearCountCache();
+        entityContainer.refresh();
+        Assert.assertEquals("Verify count after clearing cache", 5, entityContainer.size());
+    }
+
+    /**
+     * Tests reading and modifying entities through lightweight bean items.
+     */
+    @Test
+    public final void testLightweightBeanItems() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, false,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        ((EntityQueryDefinition) entityContainer.getQueryView().getQueryDefinition()).setLightweightBeanItems(true);
+        entityContainer.refresh();
+        entityContainer.addEntity().setName("alpha");
+        entityContainer.commit();
+
+        final Item item = entityContainer.getItem(new Integer(0));
+        Assert.assertEquals("Verify item is LightweightBeanItem", LightweightBeanItem.class, item.getClass());
+        Assert.assertEquals("Verify property value", "alpha", item.getItemProperty("name").getValue());
+        Assert.assertSame("Verify property is reused", item.getItemProperty("name"), item.getItemProperty("name"));
+        Assert.assertNull("Verify missing property", item.getItemProperty("missing"));
+
+        item.getItemProperty("name").setValue("beta");
+        Assert.assertTrue("Verify container is modified", entityContainer.isModified());
+        Assert.assertEquals("Verify entity is modified", "beta", entityContainer.getEntity(0).getName());
+        entityContainer.commit();
+        Assert.assertEquals("Verify modification is committed", "beta", entityContainer.getEntity(0).getName());
+    }
+
+    /**
+     * Tests that read only default values are shared by composite items and
+     * writable default properties are item specific.
+     */
+    @Test
+    public final void testSharedDefaultProperties() {
+        final EntityContainer<Task> entityContainer = new EntityContainer<Task>(entityManager, true, true, true,
+                Task.class, ENTITY_CONTAINER_BATCH_SIZE, new String[] { "name" }, new boolean[] { true });
+        entityContainer.addContainerProperty(LazyQueryView.PROPERTY_ID_ITEM_STATUS, QueryItemStatus.class,
+                QueryItemStatus.None, true, false);
+        entityContainer.addContainerProperty("name", String.class, "", false, true);
+        entityContainer.addContainerProperty("generated", String.class, "generated", true, false);
+        entityContainer.addContainerProperty("comment", String.class, "", false, false);
+        entityContainer.addEntity().setName("alpha");
+        entityContainer.addEntity().setName("beta");
+        entityContainer.commit();
+
+        final Item alphaItem = entityContainer.getItem(new Integer(0));
+        final Item betaItem = entityContainer.getItem(new Integer(1));
+        Assert.assertSame("Verify read only default value is shared",
+                alphaItem.getItemProperty("generated").getValue(), betaItem.getItemProperty("generated").getValue());
+        Assert.assertEquals("Verify shared default value", "generated",
+                betaItem.getItemProperty("generated").getValue());
+        Assert.assertNotSame("Verify writable default is not shared", alphaItem.getItemProperty("comment"),
+                betaItem.getItemProperty("comment"));
+
+        alphaItem.getItemProperty("comment").setValue("changed");
+        Assert.assertEquals("Verify written value", "changed", alphaItem.getItemProperty("comment").getValue());
+        Assert.assertEquals("Verify other item keeps default", "", betaItem.getItemProperty("comment").getValue());
+        Assert.assertEquals("Verify item status of modified item", QueryItemStatus.Modified,
+                alphaItem.getItemProperty(LazyQueryView.PROPERTY_ID_ITEM_STATUS).getValue());
+        Assert.assertEquals("Verify item status of other item", QueryItemStatus.None,
+                betaItem.getItemProperty(LazyQueryView.PROPERTY_ID_ITEM_STATUS).getValue());
+    }
 }
@@ -0,0 +1,97 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer.test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.vaadin.addons.lazyquerycontainer.LazyEntityItem;
+
+import com.vaadin.data.Property;
+import com.vaadin.data.Property.ValueChangeEvent;
+import com.vaadin.data.util.ObjectProperty;
+
+/**
+ * Unit tests for LazyEntityItem.
+ * @author Tommi Laukkanen
+ */
+public class LazyEntityItemTest {
+
+    @Test
+    public void testPropertiesOnDemand() {
+        final Map<Object, Object> entities = new HashMap<Object, Object>();
+        for (long i = 0; i < 2; i++) {
+            final Task task = new Task();
+            task.setTaskId(i);
+            task.setName("name-" + i);
+            task.setReporter("reporter-" + i);
+            entities.put(i, task);
+        }
+        final int[] loadCount = new int[1];
+        final LazyEntityItem.Page page = new LazyEntityItem.Page(new LazyEntityItem.EntityLoader() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            public Map<Object, Object> loadEntities(final List<Object> identifiers) {
+                loadCount[0]++;
+                Assert.assertEquals(2, identifiers.size());
+                return entities;
+            }
+        });
+        page.addEntityProperty("taskId", Long.class, false, 0);
+        page.addEntityProperty("name", String.class, false, 1);
+        page.addEntityProperty("reporter", String.class, false, -1);
+        page.addDefaultProperty("description", String.class, "none", false);
+
+        final LazyEntityItem first = new LazyEntityItem(0L, new Object[] { 0L, "name-0" }, page);
+        final LazyEntityItem second = new LazyEntityItem(1L, new Object[] { 1L, "name-1" }, page);
+        Assert.assertEquals(4, first.getItemPropertyIds().size());
+        Assert.assertSame(first.getItemPropertyIds(), second.getItemPropertyIds());
+        Assert.assertNull(first.getItemProperty("assignee"));
+
+        Assert.assertEquals("name-0", first.getItemProperty("name").getValue());
+        Assert.assertSame(first.getItemProperty("name"), first.getItemProperty("name"));
+        Assert.assertEquals("none", first.getItemProperty("description").getValue());
+        Assert.assertFalse(first.isEntityLoaded());
+
+        final int[] changeCount = new int[1];
+        second.addValueChangeListener(new Property.ValueChangeListener() {
+            private static final long serialVersionUID = 1L;
+            @Override
+            public void valueChange(final ValueChangeEvent event) {
+                changeCount[0]++;
+            }
+        });
+        Assert.assertEquals("reporter-1", second.getItemProperty("reporter").getValue());
+        Assert.assertTrue(first.isEntityLoaded());
+        second.getItemProperty("description").setValue("changed");
+        second.getItemProperty("name").setValue("renamed");
+        Assert.assertEquals(2, changeCount[0]);
+        Assert.assertEquals("renamed", ((Task) second.getEntity()).getName());
+        Assert.assertEquals("none", first.getItemProperty("description").getValue());
+        Assert.assertEquals(1, loadCount[0]);
+
+        Assert.assertTrue(second.removeItemProperty("reporter"));
+        Assert.assertNull(second.getItemProperty("reporter"));
+        Assert.assertTrue(second.addItemProperty("status", new ObjectProperty<String>("new")));
+        Assert.assertEquals(4, second.getItemPropertyIds().size());
+        Assert.assertTrue(second.getItemPropertyIds().contains("status"));
+        Assert.assertEquals(4, first.getItemPropertyIds().size());
+    }
+}
@@ -15,14 +15,29 @@
  */
 package org.vaadin.addons.lazyquerycontainer.test;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 import junit.framework.TestCase;
 
+import org.vaadin.addons.lazyquerycontainer.AsyncCountStrategy;
+import org.vaadin.addons.lazyquerycontainer.CappedCountStrategy;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryContainer;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryDefinition;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryView;
+import org.vaadin.addons.lazyquerycontainer.LookAheadCountStrategy;
+import org.vaadin.addons.lazyquerycontainer.QueryExporter;
 import org.vaadin.addons.lazyquerycontainer.QueryItemStatus;
 import org.vaadin.addons.lazyquerycontainer.QueryView;
 
@@ -30,8 +45,10 @@ import com.vaadin.data.Container.ItemSetChangeEvent;
 import com.vaadin.data.Container.ItemSetChangeListener;
 import com.vaadin.data.Container.PropertySetChangeEvent;
 import com.vaadin.data.Container.PropertySetChangeListener;
+import com.vaadin.data.Container.UnsupportedFilterException;
 import com.vaadin.data.Item;
 import com.vaadin.data.Property;
+import com.vaadin.data.util.filter.Compare;
 
 /**
  * JUnit test for testing LazyQueryContainer implementation.
@@ -42,8 +59,10 @@ public class LazyQueryContainerTest extends TestCase implements ItemSetChangeLis
 
     private final int viewSize = 100;
     private LazyQueryContainer container;
-    private boolean itemSetChangeOccurred = false;
+    private MockQueryFactory factory;
+    private volatile boolean itemSetChangeOccurred = false;
     private boolean propertySetChangeOccurred = false;
+    private final List<ItemSetChangeEvent> itemSetChangeEvents = new ArrayList<ItemSetChangeEvent>();
 
     protected void setUp() throws Exception {
         super.setUp();
@@ -55,7 +74,7 @@ public class LazyQueryContainerTest extends TestCase implements ItemSetChangeLis
         definition.addProperty(LazyQueryView.PROPERTY_ID_ITEM_STATUS, QueryItemStatus.class, QueryItemStatus.None,
                 true, false);
 
-        MockQueryFactory factory = new MockQueryFactory(viewSize, 0, 0);
+        factory = new MockQueryFactory(viewSize, 0, 0);
         QueryView view = new LazyQueryView(definition, factory);
         container = new LazyQueryContainer(view);
         container.addListener((ItemSetChangeListener) this);
@@ -77,6 +96,46 @@ public class LazyQueryContainerTest extends TestCase implements ItemSetChangeLis
             assertEquals(i, idIterator.next());
         }
     }
+
+    public void testItemIdReuse() {
+        assertSame("Item ID list must be reused", container.getItemIds(), container.getItemIds());
+        assertSame("Item IDs must be cached", container.getIdByIndex(50), container.getIdByIndex(50));
+        assertSame(container.getIdByIndex(51), container.nextItemId(container.getIdByIndex(50)));
+        assertSame(container.getIdByIndex(49), container.prevItemId(container.getIdByIndex(50)));
+        assertSame(container.getIdByIndex(viewSize - 1), container.lastItemId());
+
+        List<?> range = container.getItemIds(90, 20);
+        assertEquals(10, range.size());
+        assertEquals(90, range.get(0));
+        assertEquals(99, range.get(9));
+        assertEquals(5, range.indexOf(95));
+        assertFalse(range.contains(89));
+        assertEquals(2, range.subList(3, 5).size());
+        assertEquals(93, range.subList(3, 5).get(0));
+        assertEquals(0, container.getItemIds(viewSize, 10).size());
+        assertTrue(Arrays.equals(new Integer[] { 90, 91 }, container.getItemIds(90, 2).toArray()));
+        try {
+            container.getItemIds(-1, 10);
+            fail("Negative start index must be rejected");
+        } catch (IndexOutOfBoundsException e) {
+            assertEquals(viewSize, container.size());
+        }
+        try {
+            container.getItemIds(viewSize + 1, 10);
+            fail("Start index beyond size must be rejected");
+        } catch (IndexOutOfBoundsException e) {
+            assertEquals(viewSize, container.size());
+        }
+        try {
+            container.getItemIds(0, -1);
+            fail("Negative number of items must be rejected");
+        } catch (IllegalArgumentException e) {
+            assertEquals(viewSize, container.size());
+        }
+
+        container.addItem();
+        assertEquals(viewSize + 1, container.getItemIds().size());
+    }
     
     public void testGetItem() {
         for (int i = 0; i < viewSize; i++) {
@@ -115,6 +174,216 @@ public class LazyQueryContainerTest extends TestCase implements ItemSetChangeLis
         assertEquals("Index", sortablePropertyIds.iterator().next());
     }
 
+    public void testCappedCount() {
+        container.setCountStrategy(new CappedCountStrategy(30));
+        itemSetChangeOccurred = false;
+        assertEquals(30, container.size());
+        assertFalse(container.isSizeExact());
+
+        container.getItem(0);
+        assertTrue(itemSetChangeOccurred);
+        assertEquals(60, container.size());
+        assertFalse(container.isSizeExact());
+
+        container.getItem(59);
+        assertEquals(viewSize, container.size());
+        assertTrue(container.isSizeExact());
+    }
+
+    public void testLookAheadCount() {
+        container.setCountStrategy(new LookAheadCountStrategy(30));
+        itemSetChangeOccurred = false;
+        assertEquals(30, container.size());
+        assertFalse(container.isSizeExact());
+
+        container.getItem(0);
+        assertTrue(itemSetChangeOccurred);
+        assertEquals(60, container.size());
+
+        container.getItem(59);
+        assertEquals(90, container.size());
+        container.getItem(89);
+        assertEquals(120, container.size());
+        assertFalse(container.isSizeExact());
+
+        assertNull(container.getItem(119));
+        assertEquals(viewSize, container.size());
+        assertTrue(container.isSizeExact());
+    }
+
+    public void testCappedCountNotifiedAfterItemLoad() {
+        container.setCountStrategy(new CappedCountStrategy(20));
+        assertEquals(20, container.size());
+        final List<Integer> notifiedSizes = new ArrayList<Integer>();
+        final ItemSetChangeListener refreshingListener = new ItemSetChangeListener() {
+            public void containerItemSetChange(final ItemSetChangeEvent event) {
+                notifiedSizes.add(container.size());
+                if (notifiedSizes.size() == 1) {
+                    container.refresh();
+                }
+            }
+        };
+        container.addListener(refreshingListener);
+        final Item item = container.getItem(19);
+        assertNotNull(item);
+        assertEquals(19, item.getItemProperty("Index").getValue());
+        assertEquals(2, notifiedSizes.size());
+        assertEquals(40, (int) notifiedSizes.get(0));
+        assertEquals(20, (int) notifiedSizes.get(1));
+        container.removeListener(refreshingListener);
+    }
+
+    public void testLookAheadCountKeepsModifiedItems() {
+        container.getQueryView().getQueryDefinition().setBatchSize(50);
+        container.setCountStrategy(new LookAheadCountStrategy(30));
+        final Item modifiedItem = container.getItem(10);
+        modifiedItem.getItemProperty("Editable").setValue("modified");
+        final Item removedItem = container.getItem(20);
+        container.removeItem(20);
+        assertEquals(60, container.size());
+
+        final Item scrolledItem = container.getItem(40);
+        assertEquals(40, scrolledItem.getItemProperty("Index").getValue());
+        assertSame(modifiedItem, container.getItem(10));
+        assertEquals("modified", container.getItem(10).getItemProperty("Editable").getValue());
+        assertEquals(QueryItemStatus.Modified,
+                container.getItem(10).getItemProperty(LazyQueryView.PROPERTY_ID_ITEM_STATUS).getValue());
+        assertSame(removedItem, container.getItem(20));
+        assertEquals(QueryItemStatus.Removed,
+                container.getItem(20).getItemProperty(LazyQueryView.PROPERTY_ID_ITEM_STATUS).getValue());
+        assertTrue(container.isModified());
+
+        container.getItem(10).getItemProperty("Editable").setValue("modified again");
+        assertEquals("modified again", container.getItem(10).getItemProperty("Editable").getValue());
+    }
+
+    public void testAsyncCount() {
+        final List<Runnable> notifications = new ArrayList<Runnable>();
+        container.setCountStrategy(new AsyncCountStrategy(10, new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new Executor() {
+            public void execute(Runnable command) {
+                notifications.add(command);
+            }
+        }));
+        assertEquals(10, container.size());
+        assertFalse(container.isSizeExact());
+        itemSetChangeEvents.clear();
+        assertEquals(1, notifications.size());
+        notifications.get(0).run();
+        assertTrue(container.isSizeExact());
+        assertEquals(viewSize, container.size());
+        assertEquals(1, itemSetChangeEvents.size());
+        LazyQueryContainer.ItemAddEvent event = (LazyQueryContainer.ItemAddEvent) itemSetChangeEvents.get(0);
+        assertEquals(10, event.getFirstIndex());
+        assertEquals(viewSize - 10, event.getAddedItemsCount());
+    }
+
+    public void testAsyncCountShrink() {
+        container.setCountStrategy(new AsyncCountStrategy(2 * viewSize, new Executor() {
+            public void execute(Runnable command) {
+            }
+        }, new Executor() {
+            public void execute(Runnable command) {
+            }
+        }));
+        assertEquals(2 * viewSize, container.size());
+        itemSetChangeEvents.clear();
+        assertNull(container.getItem(viewSize + 50));
+        assertEquals(viewSize, container.size());
+        assertFalse(container.isSizeExact());
+        assertEquals(1, itemSetChangeEvents.size());
+        LazyQueryContainer.ItemRemoveEvent event = (LazyQueryContainer.ItemRemoveEvent) itemSetChangeEvents.get(0);
+        assertEquals(viewSize, event.getFirstIndex());
+        assertEquals(viewSize, event.getRemovedItemsCount());
+    }
+
+    public void testAsyncCountFailure() {
+        factory.setFailingSize(true);
+        final List<Runnable> notifications = new ArrayList<Runnable>();
+        container.setCountStrategy(new AsyncCountStrategy(10, new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        }, new Executor() {
+            public void execute(Runnable command) {
+                notifications.add(command);
+            }
+        }));
+        assertEquals(10, container.size());
+        try {
+            notifications.get(0).run();
+            fail("Count failure must be reported.");
+        } catch (RuntimeException e) {
+            assertEquals("Size failure", e.getCause().getMessage());
+        }
+        assertFalse(container.isSizeExact());
+    }
+
+    public void testExportWithApplicationExecutor() throws Exception {
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final QueryExporter exporter = new QueryExporter(container, executor);
+            exporter.setBatchSize(7);
+            final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+            assertEquals(viewSize, exporter.export(outputStream).get(10, TimeUnit.SECONDS).intValue());
+            final String[] lines = new String(outputStream.toByteArray(), "UTF-8").split("\r\n");
+            assertEquals(viewSize + 1, lines.length);
+            assertTrue(lines[0].startsWith("Index,Reverse Index"));
+            assertTrue(lines[viewSize].startsWith((viewSize - 1) + "," + 0 + ","));
+
+            try {
+                exporter.export(new OutputStream() {
+                    @Override
+                    public void write(final int b) throws IOException {
+                        throw new IOException("Write failure");
+                    }
+                }).get(10, TimeUnit.SECONDS);
+                fail("Write failure must be reported.");
+            } catch (ExecutionException e) {
+                assertTrue(e.getCause() instanceof IOException);
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+
+        final QueryExporter directExporter = new QueryExporter(container, new Executor() {
+            public void execute(Runnable command) {
+                command.run();
+            }
+        });
+        final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        assertEquals(viewSize, directExporter.export(outputStream).get().intValue());
+    }
+
+    public void testUnsupportedFilter() {
+        try {
+            container.addContainerFilter(new Compare.Equal("Index", 1));
+            fail("Filter which queries do not apply must be rejected.");
+        } catch (UnsupportedFilterException e) {
+            assertEquals(0, container.getContainerFilters().size());
+        }
+        ((LazyQueryDefinition) container.getQueryView().getQueryDefinition()).addSupportedFilterType(Compare.class);
+        container.addContainerFilter(new Compare.Equal("Index", 1));
+        assertEquals(1, container.getContainerFilters().size());
+    }
+
+    public void testVisiblePropertyIdsWithBufferedChanges() {
+        container.addItem();
+        try {
+            container.setVisiblePropertyIds(Arrays.asList("Index"));
+            fail("Changing visible properties must not discard buffered changes.");
+        } catch (IllegalStateException e) {
+            assertTrue(container.isModified());
+        }
+        container.discard();
+        container.setVisiblePropertyIds(Arrays.asList("Index"));
+        assertEquals(viewSize, container.size());
+    }
+
     public void testItemSetChangeNotification() {
         container.refresh();
         assertTrue(itemSetChangeOccurred);
@@ -122,6 +391,79 @@ public class LazyQueryContainerTest extends TestCase implements ItemSetChangeLis
 
     public void containerItemSetChange(ItemSetChangeEvent event) {
         itemSetChangeOccurred = true;
+        itemSetChangeEvents.add(event);
+    }
+
+    public void testItemAddEvent() {
+        container.size();
+        itemSetChangeEvents.clear();
+        container.addItem();
+        assertEquals(1, itemSetChangeEvents.size());
+        LazyQueryContainer.ItemAddEvent event = (LazyQueryContainer.ItemAddEvent) itemSetChangeEvents.get(0);
+        assertEquals(0, event.getFirstIndex());
+        assertEquals(0, event.getFirstItemId());
+        assertEquals(1, event.getAddedItemsCount());
+    }
+
+    public void testItemSetChangeBatch() {
+        container.size();
+        itemSetChangeEvents.clear();
+        container.startItemSetChangeBatch();
+        container.startItemSetChangeBatch();
+        for (int i = 0; i < 3; i++) {
+            container.addItem();
+        }
+        container.endItemSetChangeBatch();
+        assertEquals("Nested batch must not fire events", 0, itemSetChangeEvents.size());
+        container.endItemSetChangeBatch();
+        assertEquals(1, itemSetChangeEvents.size());
+        LazyQueryContainer.ItemAddEvent event = (LazyQueryContainer.ItemAddEvent) itemSetChangeEvents.get(0);
+        assertEquals(0, event.getFirstIndex());
+        assertEquals(3, event.getAddedItemsCount());
+
+        itemSetChangeEvents.clear();
+        container.startItemSetChangeBatch();
+        for (int i = 0; i < 10; i++) {
+            container.removeItem(i);
+        }
+        container.addItem();
+        container.endItemSetChangeBatch();
+        assertEquals(1, itemSetChangeEvents.size());
+        assertFalse(itemSetChangeEvents.get(0) instanceof LazyQueryContainer.ItemAddEvent);
+
+        itemSetChangeEvents.clear();
+        container.startItemSetChangeBatch();
+        container.endItemSetChangeBatch();
+        assertEquals(0, itemSetChangeEvents.size());
+
+        try {
+            container.endItemSetChangeBatch();
+            fail("Ending batch which has not been started must fail.");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testCountChangeEvents() {
+        container.setCountStrategy(new LookAheadCountStrategy(30));
+        assertEquals(30, container.size());
+        itemSetChangeEvents.clear();
+        container.getItem(0);
+        assertEquals(1, itemSetChangeEvents.size());
+        LazyQueryContainer.ItemAddEvent addEvent = (LazyQueryContainer.ItemAddEvent) itemSetChangeEvents.get(0);
+        assertEquals(30, addEvent.getFirstIndex());
+        assertEquals(30, addEvent.getAddedItemsCount());
+
+        container.getItem(59);
+        container.getItem(89);
+        assertEquals(120, container.size());
+        itemSetChangeEvents.clear();
+        container.getItem(119);
+        assertEquals(1, itemSetChangeEvents.size());
+        LazyQueryContainer.ItemRemoveEvent removeEvent =
+                (LazyQueryContainer.ItemRemoveEvent) itemSetChangeEvents.get(0);
+        assertEquals(viewSize, removeEvent.getFirstIndex());
+        assertEquals(20, removeEvent.getRemovedItemsCount());
     }
 
     public void testPropertySetChangeNotification() {
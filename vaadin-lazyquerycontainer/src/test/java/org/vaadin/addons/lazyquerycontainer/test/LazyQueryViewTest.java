@@ -16,9 +16,12 @@
 package org.vaadin.addons.lazyquerycontainer.test;
 
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 import org.vaadin.addons.lazyquerycontainer.LazyQueryDefinition;
 import org.vaadin.addons.lazyquerycontainer.LazyQueryView;
+import org.vaadin.addons.lazyquerycontainer.PropertyMetadataTable;
 import org.vaadin.addons.lazyquerycontainer.QueryItemStatus;
 
 import junit.framework.Assert;
@@ -80,6 +83,28 @@ public class LazyQueryViewTest extends TestCase {
         }
     }
 
+    public void testGetItems() {
+        LazyQueryDefinition batchDefinition = new LazyQueryDefinition(false, 10);
+        batchDefinition.addProperty("Index", Integer.class, 0, true, true);
+        batchDefinition.addProperty(LazyQueryView.DEBUG_PROPERTY_ID_BATCH_INDEX, Integer.class, 0, true, false);
+        MockQueryFactory factory = new MockQueryFactory(viewSize, 0, 0);
+        factory.setQueryDefinition(batchDefinition);
+        LazyQueryView batchView = new LazyQueryView(batchDefinition, factory);
+
+        List<Item> items = batchView.getItems(5, 20);
+        assertEquals(20, items.size());
+        for (int i = 0; i < items.size(); i++) {
+            assertEquals(5 + i, items.get(i).getItemProperty("Index").getValue());
+            assertEquals("Each batch must be loaded once", (5 + i) / 10,
+                    items.get(i).getItemProperty(LazyQueryView.DEBUG_PROPERTY_ID_BATCH_INDEX).getValue());
+        }
+        assertSame("Loaded items must be cached", items.get(7), batchView.getItem(12));
+        assertSame("Cached batches must not be reloaded", items.get(15), batchView.getItems(20, 1).get(0));
+
+        assertEquals(5, batchView.getItems(95, 10).size());
+        assertEquals(0, batchView.getItems(viewSize, 10).size());
+    }
+
     public void testAscendingSort() {
         view.sort(new Object[] { "Index" }, new boolean[] { true });
 
@@ -108,6 +133,44 @@ public class LazyQueryViewTest extends TestCase {
         assertEquals("Index", sortablePropertyIds.iterator().next());
     }
 
+    public void testPropertyTable() {
+        PropertyMetadataTable table = definition.getPropertyTable();
+        assertSame("Sortable property IDs must be cached", definition.getSortablePropertyIds(),
+                definition.getSortablePropertyIds());
+        assertEquals(7, table.size());
+        int ordinal = table.getOrdinal("Editable");
+        assertEquals(2, ordinal);
+        assertEquals("Editable", table.getPropertyId(ordinal));
+        assertEquals(String.class, table.getPropertyType(ordinal));
+        assertEquals("", table.getPropertyDefaultValue(ordinal));
+        assertFalse(table.isPropertyReadOnly(ordinal));
+        assertFalse(table.isPropertySortable(ordinal));
+        assertEquals(-1, table.getOrdinal("Missing"));
+
+        definition.addProperty("Sortable", String.class, "", true, true);
+        assertEquals(7, table.size());
+        assertEquals(2, definition.getSortablePropertyIds().size());
+        definition.removeProperty("Reverse Index");
+        assertEquals(1, definition.getPropertyTable().getOrdinal("Editable"));
+        assertEquals(6, definition.getPropertyTable().getOrdinal("Sortable"));
+        definition.removeProperty("Sortable");
+        definition.addProperty("Reverse Index", Integer.class, 0, true, false);
+        assertEquals(1, definition.getSortablePropertyIds().size());
+    }
+
+    public void testIterateItems() {
+        Item cachedItem = view.getItem(0);
+        Iterator<Item> iterator = view.iterateItems(30);
+        int index = 0;
+        while (iterator.hasNext()) {
+            Item item = iterator.next();
+            assertEquals(index, item.getItemProperty("Index").getValue());
+            index++;
+        }
+        assertEquals(viewSize, index);
+        assertSame("Item cache must be left untouched", cachedItem, view.getItem(0));
+    }
+
     public void testAddCommitItem() {
         int originalViewSize = view.size();
         assertFalse(view.isModified());
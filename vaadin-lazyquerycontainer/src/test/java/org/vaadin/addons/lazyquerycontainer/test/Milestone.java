@@ -0,0 +1,77 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer.test;
+
+import java.io.Serializable;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.ManyToOne;
+
+/**
+ * Milestone entity for JPA association testing.
+ */
+@Entity
+public final class Milestone implements Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** Unique identifier of the milestone. */
+    @Id
+    @GeneratedValue
+    private long milestoneId;
+    /** Name of the milestone. */
+    private String name;
+    /** Project of the milestone. */
+    @ManyToOne
+    private Project project;
+    /**
+     * @return the milestoneId
+     */
+    public long getMilestoneId() {
+        return milestoneId;
+    }
+    /**
+     * @param milestoneId the milestoneId to set
+     */
+    public void setMilestoneId(final long milestoneId) {
+        this.milestoneId = milestoneId;
+    }
+    /**
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+    /**
+     * @param name the name to set
+     */
+    public void setName(final String name) {
+        this.name = name;
+    }
+    /**
+     * @return the project
+     */
+    public Project getProject() {
+        return project;
+    }
+    /**
+     * @param project the project to set
+     */
+    public void setProject(final Project project) {
+        this.project = project;
+    }
+}
@@ -49,7 +49,7 @@ public class MockQuery implements Query {
 
 	public List<Item> loadItems(int startIndex, int count) {
 		List<Item> resultItems=new ArrayList<Item>();
-		for(int i=0;i<count;i++) {
+		for(int i=0;i<count&&startIndex+i<items.size();i++) {
 			// Returning clones to be able to control commit/discard of modifications.
 			Item original=items.get(startIndex+i);
 			Item clone=cloneItem(original);
@@ -68,6 +68,9 @@ public class MockQuery implements Query {
 
 
 	public int size() {
+		if(queryFactory.isFailingSize()) {
+			throw new RuntimeException("Size failure");
+		}
 		return items.size();
 	}
 
@@ -40,6 +40,7 @@ public class MockQueryFactory implements QueryFactory {
 	private int resultSize;
 	private int batchQueryMinTime;
 	private int batchQueryMaxTime;
+	private boolean failingSize;
 	
 	public MockQueryFactory(int resultSize, int batchQueryMinTime, int batchQueryMaxTime) {
 		this.resultSize=resultSize;
@@ -48,6 +49,14 @@ public class MockQueryFactory implements QueryFactory {
 	}
 	
 
+	public boolean isFailingSize() {
+		return failingSize;
+	}
+
+	public void setFailingSize(boolean failingSize) {
+		this.failingSize=failingSize;
+	}
+
 	public void setQueryDefinition(QueryDefinition definition) {
 		this.definition=definition;
 	}
@@ -0,0 +1,129 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer.test;
+
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.Date;
+
+import junit.framework.Assert;
+
+import org.junit.Test;
+import org.vaadin.addons.lazyquerycontainer.PageItem;
+
+import com.vaadin.data.Item;
+
+/**
+ * Unit tests for PageItem.
+ * @author Tommi Laukkanen
+ */
+public class PageItemTest {
+
+    @Test
+    public void testColumnValues() {
+        final PageItem.Page page = new PageItem.Page(
+                new Object[] { "int", "long", "double", "boolean", "date", "string" },
+                new Class<?>[] { Integer.class, Long.TYPE, Double.class, Boolean.class, Date.class, String.class },
+                new boolean[] { true, true, true, true, true, true },
+                new boolean[] { true, true, true, true, true, true }, 3);
+        final Date date = new Date(1000L);
+        final Timestamp timestamp = new Timestamp(2000L);
+        timestamp.setNanos(123456789);
+        page.setIdentifier(0, "a");
+        page.setIdentifier(1, "b");
+        page.setIdentifier(2, "c");
+        setRow(page, 0, new Object[] { 1, 2L, 3.5, true, date, "x" });
+        setRow(page, 1, new Object[] { null, null, null, null, null, null });
+        setRow(page, 2, new Object[] { 4L, -1L, 0.0, false, timestamp, "y" });
+
+        final Item first = new PageItem(page, 0);
+        Assert.assertEquals("a", ((PageItem) first).getIdentifier());
+        Assert.assertEquals(1, first.getItemProperty("int").getValue());
+        Assert.assertEquals(2L, first.getItemProperty("long").getValue());
+        Assert.assertEquals(3.5, first.getItemProperty("double").getValue());
+        Assert.assertEquals(Boolean.TRUE, first.getItemProperty("boolean").getValue());
+        Assert.assertEquals(date, first.getItemProperty("date").getValue());
+        Assert.assertEquals("x", first.getItemProperty("string").getValue());
+
+        final Item second = new PageItem(page, 1);
+        for (final Object propertyId : second.getItemPropertyIds()) {
+            Assert.assertNull(second.getItemProperty(propertyId).getValue());
+        }
+
+        final Item third = new PageItem(page, 2);
+        Assert.assertEquals("Value of other type is kept", 4L, third.getItemProperty("int").getValue());
+        Assert.assertEquals(Boolean.FALSE, third.getItemProperty("boolean").getValue());
+        Assert.assertEquals("Timestamp type is kept", Timestamp.class, third.getItemProperty("date").getValue()
+                .getClass());
+        Assert.assertEquals("Timestamp precision is kept", timestamp, third.getItemProperty("date").getValue());
+        Assert.assertTrue(third.getItemProperty("int").isReadOnly());
+        Assert.assertNull(third.getItemProperty("missing"));
+    }
+
+    @Test
+    public void testDateColumnValues() {
+        final PageItem.Page page = new PageItem.Page(new Object[] { "date" }, new Class<?>[] { Timestamp.class },
+                new boolean[] { true }, new boolean[] { true }, 4);
+        final java.sql.Date sqlDate = new java.sql.Date(3000L);
+        final Time time = new Time(4000L);
+        final Date subclassDate = new Date(5000L) {
+            private static final long serialVersionUID = 1L;
+        };
+        page.setValue(0, 0, new Date(2000L));
+        page.setValue(1, 0, sqlDate);
+        page.setValue(2, 0, time);
+        page.setValue(3, 0, subclassDate);
+
+        Assert.assertEquals(Date.class, page.getValue(0, 0).getClass());
+        Assert.assertEquals(new Date(2000L), page.getValue(0, 0));
+        Assert.assertEquals(java.sql.Date.class, page.getValue(1, 0).getClass());
+        Assert.assertEquals(sqlDate, page.getValue(1, 0));
+        Assert.assertEquals(Time.class, page.getValue(2, 0).getClass());
+        Assert.assertEquals(time, page.getValue(2, 0));
+        Assert.assertSame("Other Date subclass is kept", subclassDate, page.getValue(3, 0));
+        page.setValue(3, 0, new Date(6000L));
+        Assert.assertEquals("Replaced value is stored in primitive form", new Date(6000L), page.getValue(3, 0));
+    }
+
+    @Test
+    public void testRetainedProperties() {
+        final PageItem.Page page = new PageItem.Page(new Object[] { "date", "status" },
+                new Class<?>[] { Date.class, String.class }, new boolean[] { true, false },
+                new boolean[] { true, false }, 1);
+        page.setValue(0, 0, new Date(1000L));
+        page.setValue(0, 1, "new");
+
+        final Item item = new PageItem(page, 0);
+        Assert.assertSame("Projected property is retained", item.getItemProperty("date"),
+                item.getItemProperty("date"));
+        Assert.assertSame("Other property is retained", item.getItemProperty("status"),
+                item.getItemProperty("status"));
+
+        final Date date = (Date) item.getItemProperty("date").getValue();
+        date.setTime(2000L);
+        Assert.assertEquals("Date value is a copy", new Date(1000L), item.getItemProperty("date").getValue());
+
+        item.getItemProperty("status").setValue("modified");
+        Assert.assertEquals("modified", item.getItemProperty("status").getValue());
+        Assert.assertEquals("Page value is not changed", "new", page.getValue(0, 1));
+    }
+
+    private static void setRow(final PageItem.Page page, final int row, final Object[] values) {
+        for (int i = 0; i < values.length; i++) {
+            page.setValue(row, i, values[i]);
+        }
+    }
+}
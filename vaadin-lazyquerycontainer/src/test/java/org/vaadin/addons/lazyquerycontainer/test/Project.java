@@ -0,0 +1,79 @@
+/**
+ * Copyright 2010 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.vaadin.addons.lazyquerycontainer.test;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.OneToMany;
+
+/**
+ * Project entity for JPA association testing.
+ */
+@Entity
+public final class Project implements Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** Unique identifier of the project. */
+    @Id
+    @GeneratedValue
+    private long projectId;
+    /** Name of the project. */
+    private String name;
+    /** Milestones of the project. */
+    @OneToMany(mappedBy = "project")
+    private List<Milestone> milestones = new ArrayList<Milestone>();
+    /**
+     * @return the projectId
+     */
+    public long getProjectId() {
+        return projectId;
+    }
+    /**
+     * @param projectId the projectId to set
+     */
+    public void setProjectId(final long projectId) {
+        this.projectId = projectId;
+    }
+    /**
+     * @return the name
+     */
+    public String getName() {
+        return name;
+    }
+    /**
+     * @param name the name to set
+     */
+    public void setName(final String name) {
+        this.name = name;
+    }
+    /**
+     * @return the milestones
+     */
+    public List<Milestone> getMilestones() {
+        return milestones;
+    }
+    /**
+     * @param milestones the milestones to set
+     */
+    public void setMilestones(final List<Milestone> milestones) {
+        this.milestones = milestones;
+    }
+}